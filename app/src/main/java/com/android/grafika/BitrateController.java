@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Decides what bit rate an encoder should be running at, based on what comes out of it.
+ * <p>
+ * For every encoded frame we get its size, when it came out, and how full the downstream
+ * queue is.  Once per window (about a second of presentation time) we look back:
+ * <ul>
+ * <li>If the queue was backing up, or frames were taking noticeably longer to come out
+ *     than they used to, the rate is cut by a quarter, down to a floor.
+ * <li>Otherwise, if we're below the target and the encoder is actually using most of what
+ *     it's been given, the rate goes up by a tenth of the target.
+ * </ul>
+ * Output delay is measured against the smallest delay seen, so the timestamp base doesn't
+ * matter.  A jump in arrival time that isn't matched by the presentation time (such as a
+ * pause) restarts the measurement rather than counting as delay.
+ * <p>
+ * No Android dependencies, so it can be tested with synthetic traces.  frameEncoded()
+ * must be called from a single thread; setTargetBitRate() may be called from any thread.
+ */
+public class BitrateController {
+    private static final long WINDOW_USEC = 1000000;
+    private static final float HIGH_QUEUE_FILL = 0.5f;
+    private static final long HIGH_DELAY_USEC = 150000;
+    private static final long DISCONTINUITY_USEC = 500000;
+    private static final float MIN_UTILIZATION = 0.7f;
+
+    private final int mMinBitRate;
+    private volatile int mTargetBitRate;
+    private int mCurrentBitRate;
+    private int mMeasuredBitRate;
+
+    private long mBaseDelayUsec = Long.MAX_VALUE;
+    private long mLastPtsUsec = -1;
+    private long mLastArrivalUsec;
+
+    private long mWindowStartUsec = -1;
+    private long mWindowBytes;
+    private int mWindowFrames;
+    private long mWindowDelayUsec;      // sum over the window
+    private float mWindowMaxFill;
+
+    /**
+     * Creates a controller for an encoder that was configured with the given bit rate,
+     * which becomes the target.  The rate is never lowered below minBitRate.
+     */
+    public BitrateController(int initialBitRate, int minBitRate) {
+        if (minBitRate <= 0 || minBitRate > initialBitRate) {
+            throw new IllegalArgumentException("bad min bit rate " + minBitRate);
+        }
+        mMinBitRate = minBitRate;
+        mTargetBitRate = initialBitRate;
+        mCurrentBitRate = initialBitRate;
+    }
+
+    /**
+     * Sets the rate we'd like to run at when nothing's backed up.  A lower target takes
+     * effect on the next frame; a higher one is approached gradually.
+     */
+    public void setTargetBitRate(int bitRate) {
+        mTargetBitRate = Math.max(bitRate, mMinBitRate);
+    }
+
+    /**
+     * Returns the rate we'd like to run at.
+     */
+    public int getTargetBitRate() {
+        return mTargetBitRate;
+    }
+
+    /**
+     * Returns the rate the encoder was last told to use.
+     */
+    public int getCurrentBitRate() {
+        return mCurrentBitRate;
+    }
+
+    /**
+     * Returns the rate the encoder actually produced over the last complete window, or 0
+     * if there hasn't been one yet.
+     */
+    public int getMeasuredBitRate() {
+        return mMeasuredBitRate;
+    }
+
+    /**
+     * Records one encoded frame.
+     *
+     * @param ptsUsec The frame's presentation time.
+     * @param arrivalUsec When the frame came out of the encoder, on a monotonic clock.
+     * @param size Size of the encoded frame, in bytes.
+     * @param queueFill How full the downstream queue is, from 0 to 1.
+     * @return The new bit rate to give the encoder, or 0 to leave it alone.
+     */
+    public int frameEncoded(long ptsUsec, long arrivalUsec, int size, float queueFill) {
+        if (mLastPtsUsec >= 0 && (arrivalUsec - mLastArrivalUsec) -
+                (ptsUsec - mLastPtsUsec) > DISCONTINUITY_USEC) {
+            mBaseDelayUsec = Long.MAX_VALUE;
+            mWindowStartUsec = -1;
+        }
+        mLastPtsUsec = ptsUsec;
+        mLastArrivalUsec = arrivalUsec;
+
+        long delayUsec = arrivalUsec - ptsUsec;
+        if (delayUsec < mBaseDelayUsec) {
+            mBaseDelayUsec = delayUsec;
+        }
+
+        if (mWindowStartUsec < 0) {
+            startWindow(ptsUsec);
+        }
+        mWindowBytes += size;
+        mWindowFrames++;
+        mWindowDelayUsec += delayUsec - mBaseDelayUsec;
+        mWindowMaxFill = Math.max(mWindowMaxFill, queueFill);
+
+        int target = mTargetBitRate;
+        if (mCurrentBitRate > target) {
+            return setCurrent(target);
+        }
+
+        long elapsedUsec = ptsUsec - mWindowStartUsec;
+        if (elapsedUsec < WINDOW_USEC) {
+            return 0;
+        }
+        mMeasuredBitRate = (int) (mWindowBytes * 8 * 1000000 / elapsedUsec);
+        boolean congested = mWindowMaxFill >= HIGH_QUEUE_FILL ||
+                mWindowDelayUsec / mWindowFrames >= HIGH_DELAY_USEC;
+        startWindow(ptsUsec);
+
+        if (congested) {
+            return setCurrent(Math.max(mMinBitRate, mCurrentBitRate / 4 * 3));
+        } else if (mCurrentBitRate < target &&
+                mMeasuredBitRate >= mCurrentBitRate * MIN_UTILIZATION) {
+            return setCurrent(Math.min(target, mCurrentBitRate + target / 10));
+        }
+        return 0;
+    }
+
+    private void startWindow(long ptsUsec) {
+        mWindowStartUsec = ptsUsec;
+        mWindowBytes = 0;
+        mWindowFrames = 0;
+        mWindowDelayUsec = 0;
+        mWindowMaxFill = 0.0f;
+    }
+
+    private int setCurrent(int bitRate) {
+        if (bitRate == mCurrentBitRate) {
+            return 0;
+        }
+        mCurrentBitRate = bitRate;
+        return bitRate;
+    }
+}
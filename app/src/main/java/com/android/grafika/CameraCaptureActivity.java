@@ -134,6 +134,10 @@ import javax.microedition.khronos.opengles.GL10;
  * "paused" message and hold on that in the recording, or leave the Camera running so it
  * continues to generate preview frames while the Activity is paused.)  The video encoder object
  * is managed as a static property of the Activity.
+ * <p>
+ * While recording, the last few seconds of encoded output are also kept in memory by a
+ * CircularBufferSink on the same encoder, and "Capture" saves them to a separate file.  The
+ * movie and the clips come from one encoder rather than two.
  */
 public class CameraCaptureActivity extends Activity
         implements SurfaceTexture.OnFrameAvailableListener, OnItemSelectedListener {
@@ -159,6 +163,27 @@ public class CameraCaptureActivity extends Activity
     // this is static so it survives activity restarts
     private static TextureMovieEncoder sVideoEncoder = new TextureMovieEncoder();
 
+    // Recent history for clips, attached to the recording.  Static for the same reason.
+    private static final int CLIP_FRAME_RATE = 30;
+    private static final int CLIP_SPAN_SEC = 10;
+    private static volatile CircularBufferSink sClipSink;
+    private static volatile CameraHandler sClipHandler;
+
+    // Passes clip save results to whichever activity instance is current.
+    private static final CircularEncoder.Callback sClipCallback = new CircularEncoder.Callback() {
+        @Override
+        public void fileSaveComplete(int status) {
+            CameraHandler handler = sClipHandler;
+            if (handler != null) {
+                handler.sendMessage(handler.obtainMessage(CameraHandler.MSG_CLIP_SAVED,
+                        status, 0));
+            }
+        }
+
+        @Override
+        public void bufferStatus(long totalTimeMsec) {}
+    };
+
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
     public static final File getCaptureFile(final String type, final String ext) {
         final File dir = new File(Environment.getExternalStoragePublicDirectory(type), "Grafica");
@@ -205,7 +230,10 @@ public class CameraCaptureActivity extends Activity
         // to Camera must be made on the same thread.  Note we create this before the renderer
         // thread, so we know the fully-constructed object will be visible.
         mCameraHandler = new CameraHandler(this);
+        sClipHandler = mCameraHandler;
 
+        // Keep the encoder ready between clips, so toggling recording back on is quick.
+        sVideoEncoder.setKeepWarm(true);
         mRecordingEnabled = sVideoEncoder.isRecording();
 
         // Configure the GLSurfaceView.  This will start the Renderer thread, with an
@@ -249,6 +277,9 @@ public class CameraCaptureActivity extends Activity
         Log.d(TAG, "onPause -- releasing camera");
         super.onPause();
         releaseCamera();
+        // No frames until we're back; keep the gap out of the movie.  The renderer resumes
+        // the encoder once it has the new EGL context.
+        sVideoEncoder.pause();
         mGLView.queueEvent(new Runnable() {
             @Override public void run() {
                 // Tell the renderer that it's about to be paused so it can clean up.
@@ -264,6 +295,13 @@ public class CameraCaptureActivity extends Activity
         Log.d(TAG, "onDestroy");
         super.onDestroy();
         mCameraHandler.invalidateHandler();     // paranoia
+        if (sClipHandler == mCameraHandler) {
+            sClipHandler = null;
+        }
+        if (isFinishing() && !sVideoEncoder.isRecording()) {
+            // Nobody's coming back for the warm encoder.
+            sVideoEncoder.shutdown();
+        }
     }
 
     @Override
@@ -395,6 +433,57 @@ public class CameraCaptureActivity extends Activity
         updateControls();
     }
 
+    /**
+     * onClick handler for "capture" button.  Saves the last few seconds of the recording.
+     */
+    public void clickCaptureClip(@SuppressWarnings("unused") View unused) {
+        CircularBufferSink sink = sClipSink;
+        if (sink == null) {
+            Log.w(TAG, "not recording, nothing to capture");
+            return;
+        }
+        File clipFile = getCaptureFile(Environment.DIRECTORY_MOVIES, "-clip.mp4");
+        if (clipFile == null) {
+            Log.w(TAG, "can't write clip");
+            return;
+        }
+        Log.d(TAG, "capturing clip to " + clipFile);
+        sink.saveVideo(clipFile);
+    }
+
+    /**
+     * Reports the result of a clip capture.
+     */
+    private void clipSaveComplete(int status) {
+        String str;
+        if (status == 0) {
+            str = getString(R.string.recordingSucceeded);
+        } else {
+            str = getString(R.string.recordingFailed, status);
+        }
+        Toast.makeText(this, str, Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Attaches a ring buffer to the recording that just started, so clips can be saved from
+     * it.  (Called on the renderer thread.)
+     */
+    static void attachClipBuffer(TextureMovieEncoder encoder, int bitRate) {
+        CircularBufferSink sink = new CircularBufferSink(
+                new CircularEncoderBuffer(bitRate, CLIP_FRAME_RATE, CLIP_SPAN_SEC),
+                sClipCallback);
+        sClipSink = sink;
+        encoder.addSink(sink);
+    }
+
+    /**
+     * Forgets the ring buffer.  Stopping the recording detaches it from the encoder.
+     * (Called on the renderer thread.)
+     */
+    static void detachClipBuffer() {
+        sClipSink = null;
+    }
+
 //    /**
 //     * onClick handler for "rebind" checkbox.
 //     */
@@ -411,6 +500,8 @@ public class CameraCaptureActivity extends Activity
         int id = mRecordingEnabled ?
                 R.string.toggleRecordingOff : R.string.toggleRecordingOn;
         toggleRelease.setText(id);
+        Button capture = (Button) findViewById(R.id.captureClip_button);
+        capture.setEnabled(mRecordingEnabled);
 
         //CheckBox cb = (CheckBox) findViewById(R.id.rebindHack_checkbox);
         //cb.setChecked(TextureRender.sWorkAroundContextProblem);
@@ -456,6 +547,7 @@ public class CameraCaptureActivity extends Activity
      */
     static class CameraHandler extends Handler {
         public static final int MSG_SET_SURFACE_TEXTURE = 0;
+        public static final int MSG_CLIP_SAVED = 1;
 
         // Weak reference to the Activity; only access this from the UI thread.
         private WeakReference<CameraCaptureActivity> mWeakActivity;
@@ -487,6 +579,9 @@ public class CameraCaptureActivity extends Activity
                 case MSG_SET_SURFACE_TEXTURE:
                     activity.handleSetSurfaceTexture((SurfaceTexture) inputMessage.obj);
                     break;
+                case MSG_CLIP_SAVED:
+                    activity.clipSaveComplete(inputMessage.arg1);
+                    break;
                 default:
                     throw new RuntimeException("unknown msg " + what);
             }
@@ -508,6 +603,8 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private static final int RECORDING_ON = 1;
     private static final int RECORDING_RESUMED = 2;
 
+    private static final int BIT_RATE = 1000000;
+
     private CameraCaptureActivity.CameraHandler mCameraHandler;
     private TextureMovieEncoder mVideoEncoder;
     private File mOutputFile;
@@ -770,12 +867,14 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                     Log.d(TAG, "START recording");
                     // start recording
                     mVideoEncoder.startRecording(new TextureMovieEncoder.EncoderConfig(
-                            mOutputFile, 640, 480, 1000000, EGL14.eglGetCurrentContext()));
+                            mOutputFile, 640, 480, BIT_RATE, EGL14.eglGetCurrentContext()));
+                    CameraCaptureActivity.attachClipBuffer(mVideoEncoder, BIT_RATE);
                     mRecordingStatus = RECORDING_ON;
                     break;
                 case RECORDING_RESUMED:
                     Log.d(TAG, "RESUME recording");
                     mVideoEncoder.updateSharedContext(EGL14.eglGetCurrentContext());
+                    mVideoEncoder.resume();
                     mRecordingStatus = RECORDING_ON;
                     break;
                 case RECORDING_ON:
@@ -791,6 +890,7 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                     // stop recording
                     Log.d(TAG, "STOP recording");
                     mVideoEncoder.stopRecording();
+                    CameraCaptureActivity.detachClipBuffer();
                     mRecordingStatus = RECORDING_OFF;
                     break;
                 case RECORDING_OFF:
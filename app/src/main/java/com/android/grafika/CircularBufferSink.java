@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * EncoderSink that keeps the most recent output in a CircularEncoderBuffer, so it can be
+ * saved on demand.  This is what CircularEncoder does, but fed by an encoder that's
+ * already running for something else, rather than one of its own.
+ * <p>
+ * Saves are written by the same code CircularEncoder uses, on a thread owned by the sink.
+ */
+public class CircularBufferSink implements EncoderSink {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final CircularEncoderBuffer mEncBuffer;
+    private final CircularEncoder.Callback mCallback;
+    private final Handler mSaveHandler;
+    private int mFrameNum;
+
+    // Guarded by mEncBuffer.
+    private MediaFormat mFormat;
+
+    /**
+     * Creates the sink.  It takes ownership of the buffer, which is released after the
+     * sink is detached and any saves in progress have finished.
+     */
+    public CircularBufferSink(CircularEncoderBuffer encBuffer, CircularEncoder.Callback cb) {
+        mEncBuffer = encBuffer;
+        mCallback = cb;
+        HandlerThread saveThread = new HandlerThread("CircularBufferSink-save");
+        saveThread.start();
+        mSaveHandler = new Handler(saveThread.getLooper());
+    }
+
+    @Override
+    public void formatChanged(MediaFormat format) {
+        synchronized (mEncBuffer) {
+            mFormat = format;
+        }
+    }
+
+    @Override
+    public void sampleAvailable(ByteBuffer buf, MediaCodec.BufferInfo info) {
+        synchronized (mEncBuffer) {
+            mEncBuffer.add(buf, info.flags, info.presentationTimeUs);
+        }
+        mFrameNum++;
+        if ((mFrameNum % 10) == 0) {
+            long spanUsec;
+            synchronized (mEncBuffer) {
+                spanUsec = mEncBuffer.computeTimeSpanUsec();
+            }
+            mCallback.bufferStatus(spanUsec);
+        }
+    }
+
+    @Override
+    public void detached() {
+        // Let any pending saves finish, then free the buffer and stop the save thread.
+        mSaveHandler.post(new Runnable() {
+            @Override public void run() {
+                synchronized (mEncBuffer) {
+                    mEncBuffer.release();
+                }
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    /**
+     * Saves the buffered frames to a .mp4 file, starting from the oldest sync frame.  The
+     * call returns immediately; the callback's fileSaveComplete() is called when done.
+     * <p>
+     * Frames that arrive while the file is being written aren't part of it.
+     */
+    public void saveVideo(File outputFile) {
+        CircularEncoder.SnapshotWriter writer = null;
+        synchronized (mEncBuffer) {
+            int index = mEncBuffer.getSyncIndexAtOrBefore(Long.MIN_VALUE);
+            if (index >= 0 && mFormat != null) {
+                if (VERBOSE) Log.d(TAG, "saving from seq " + mEncBuffer.getSequence(index));
+                writer = new CircularEncoder.SnapshotWriter(mEncBuffer,
+                        new MediaFormat[] { mFormat },
+                        new CircularEncoder.SaveRequest(outputFile, Long.MIN_VALUE,
+                                Long.MAX_VALUE),
+                        mEncBuffer.getSequence(index), mEncBuffer.getPtsUsec(index),
+                        mEncBuffer.getTailSequence(), mEncBuffer.getHeadSequence(),
+                        mCallback);
+            }
+        }
+        if (writer == null) {
+            Log.w(TAG, "Nothing buffered yet, can't save");
+            mCallback.fileSaveComplete(1);
+            return;
+        }
+        mSaveHandler.post(writer);
+    }
+}
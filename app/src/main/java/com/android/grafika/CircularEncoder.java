@@ -20,7 +20,10 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
@@ -30,6 +33,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
 /**
  * Encodes video in a fixed-size circular buffer.
@@ -45,8 +49,31 @@ import java.nio.ByteBuffer;
  * the head of the list and the next sync frame, or have the file save function know that
  * it needs to scan forward for a sync frame before it can start saving data.
  * <p>
- * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
- * and then go back to what we were doing.
+ * When we're told to save a snapshot, we note the sequence numbers of the packets we want
+ * and hand them to a separate I/O thread, which creates a MediaMuxer and writes the frames
+ * out.  The encoder thread keeps draining the encoder and adding packets to the buffer the
+ * whole time, so a slow disk doesn't back up the codec.  The I/O thread copies each packet
+ * out of the buffer while holding the buffer's lock, and fails the save if the packet was
+ * evicted before it got there (which only happens if the disk can't keep up with the
+ * encoder's bit rate).
+ * <p>
+ * Event capture works the same way, except that the file stays open after the buffered
+ * data has been written.  The encoder thread tells the I/O thread whenever new packets
+ * arrive, and they're appended until the post-trigger deadline passes.  Triggers that
+ * arrive while a capture is still open just push the deadline out.
+ * <p>
+ * Other encoders (e.g. an AAC audio encoder) can feed their output into the same buffer
+ * with addTrack() and writeSampleData().  Their packets are evicted along with the video,
+ * and saved files include them, so we don't need a separate buffer or a remux pass.
+ * <p>
+ * For history longer than fits in memory, a SegmentRecorder can be attached.  Everything
+ * that goes into the buffer is also appended to rolling segment files on disk.
+ * <p>
+ * Sync frames are expensive, and most of them are never used as a starting point.  On
+ * API 19+ we run the encoder with a long sync frame interval and ask for sync frames
+ * when they're actually useful: when the newest one in the buffer is getting old (see
+ * CircularEncoderBuffer#isSyncFrameDue), when a save or event capture is triggered,
+ * and when the segment recorder is ready to cut.  The bits saved go into the other frames.
  */
 public class CircularEncoder {
     private static final String TAG = MainActivity.TAG;
@@ -54,10 +81,23 @@ public class CircularEncoder {
 
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int IFRAME_INTERVAL = 1;           // sync frame every second
+    private static final int LONG_IFRAME_INTERVAL = 10;     // when we can request them
+
+    // Ask for a sync frame when the newest one is this far back in the buffer.
+    private static final float SYNC_FRAME_GUARD = 0.25f;
+    // If a requested sync frame doesn't show up after this many frames, ask again.
+    private static final int SYNC_REQUEST_RETRY_FRAMES = 30;
 
     private EncoderThread mEncoderThread;
     private Surface mInputSurface;
     private MediaCodec mEncoder;
+    private CircularEncoderBuffer mEncBuffer;
+    private HandlerThread mSaveThread;
+    private int mDesiredSpanSec;
+
+    // Output format for each track in the buffer.  Track 0 is our video, and is filled in
+    // when the encoder reports its output format.  Guarded by mEncBuffer.
+    private final ArrayList<MediaFormat> mTrackFormats = new ArrayList<MediaFormat>();
 
     /**
      * Callback function definitions.  CircularEncoder caller must provide one.
@@ -65,7 +105,7 @@ public class CircularEncoder {
     public interface Callback {
         /**
          * Called some time after saveVideo(), when all data has been written to the
-         * output file.
+         * output file.  May be called on the encoder thread or the save thread.
          *
          * @param status Zero means success, nonzero indicates failure.
          */
@@ -90,12 +130,28 @@ public class CircularEncoder {
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
             Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec,
+                CircularEncoderBuffer.Storage.HEAP, null, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.  The encoded data is kept in the
+     * specified type of storage, which allows long spans to be held outside the Java heap.
+     *
+     * @param storage Where the circular buffer keeps the encoded data.
+     * @param backingFile File to use for CircularEncoderBuffer.Storage.MAPPED_FILE, e.g. in
+     *     the app's cache directory.  Ignored for other storage types.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            CircularEncoderBuffer.Storage storage, File backingFile, Callback cb)
+            throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
         //
-        // Sync frames will appear every (frameRate * IFRAME_INTERVAL) frames.  If the frame
-        // rate is higher or lower than expected, various calculations may not work out right.
+        // Sync frames will appear at least every (frameRate * IFRAME_INTERVAL) frames (more
+        // often than that once we're requesting them).  If the frame rate is higher or lower
+        // than expected, various calculations may not work out right.
         //
         // Since we have to start muxing from a sync frame, we want to ensure that there's
         // room for at least one full GOP in the buffer, preferrably two.
@@ -104,7 +160,9 @@ public class CircularEncoder {
                     " vs. " + (IFRAME_INTERVAL * 2));
         }
         CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate,
-                desiredSpanSec);
+                desiredSpanSec, storage, backingFile);
+        mEncBuffer = encBuffer;
+        mDesiredSpanSec = desiredSpanSec;
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -114,7 +172,9 @@ public class CircularEncoder {
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        boolean syncOnDemand = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+                syncOnDemand ? LONG_IFRAME_INTERVAL : IFRAME_INTERVAL);
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
@@ -126,7 +186,11 @@ public class CircularEncoder {
 
         // Start the encoder thread last.  That way we're sure it can see all of the state
         // we've initialized.
-        mEncoderThread = new EncoderThread(mEncoder, encBuffer, cb);
+        mSaveThread = new HandlerThread("CircularEncoder-save");
+        mSaveThread.start();
+        mTrackFormats.add(null);
+        mEncoderThread = new EncoderThread(mEncoder, encBuffer, mTrackFormats,
+                new Handler(mSaveThread.getLooper()), cb, syncOnDemand);
         mEncoderThread.start();
         mEncoderThread.waitUntilReady();
     }
@@ -154,11 +218,27 @@ public class CircularEncoder {
             Log.w(TAG, "Encoder thread join() was interrupted", ie);
         }
 
+        // Let any pending saves finish, then stop the I/O thread.
+        new Handler(mSaveThread.getLooper()).post(new Runnable() {
+            @Override public void run() {
+                Looper.myLooper().quit();
+            }
+        });
+        try {
+            mSaveThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Save thread join() was interrupted", ie);
+        }
+
         if (mEncoder != null) {
             mEncoder.stop();
             mEncoder.release();
             mEncoder = null;
         }
+        if (mEncBuffer != null) {
+            mEncBuffer.release();
+            mEncBuffer = null;
+        }
     }
 
     /**
@@ -181,19 +261,541 @@ public class CircularEncoder {
                 EncoderThread.EncoderHandler.MSG_FRAME_AVAILABLE_SOON));
     }
 
+    /**
+     * Adds a track for the output of another encoder, e.g. audio.  Its packets will be
+     * buffered alongside the video and included in saved files.
+     *
+     * @param format The encoder's output format, as reported by
+     *     MediaCodec.getOutputFormat() (it must include the codec-specific data).
+     * @return The track number to pass to {@link #writeSampleData}.
+     */
+    public int addTrack(MediaFormat format) {
+        int track;
+        synchronized (mEncBuffer) {
+            mTrackFormats.add(format);
+            track = mTrackFormats.size() - 1;
+        }
+        mEncoderThread.recordFormat(track, format);
+        return track;
+    }
+
+    /**
+     * Adds an encoded packet from another encoder to the buffer.  May be called from any
+     * thread.  Packets for a track must be added in presentation time order.  Codec config
+     * packets should not be passed in; the data is expected to be in the track format.
+     *
+     * @param track Track number returned by {@link #addTrack}.
+     * @param buf Encoded data, from info.offset to info.offset + info.size.
+     */
+    public void writeSampleData(int track, ByteBuffer buf, MediaCodec.BufferInfo info) {
+        if (track <= 0) {
+            throw new IllegalArgumentException("bad track " + track);
+        }
+        buf.position(info.offset);
+        buf.limit(info.offset + info.size);
+        synchronized (mEncBuffer) {
+            mEncBuffer.add(track, buf, info.flags, info.presentationTimeUs);
+        }
+        mEncoderThread.recordSample(track, buf, info);
+    }
+
+    /**
+     * Starts or stops recording everything we encode to rolling segment files on disk, in
+     * addition to the circular buffer.  Use {@link SegmentRecorder#export} to pull clips
+     * out of it.
+     * <p>
+     * The recorder must already be open.  It's not closed by shutdown(); the caller should
+     * close it after shutdown() returns, or after passing null here, so the segment being
+     * written is preserved.  If the recorder hits an I/O error (e.g. the disk fills up) it's
+     * dropped, and capture to the circular buffer continues.
+     *
+     * @param recorder The recorder to use, or null to stop.
+     */
+    public void setSegmentRecorder(SegmentRecorder recorder) {
+        mEncoderThread.setRecorder(recorder);
+    }
+
+    /**
+     * Switches the circular buffer to time-based retention, so it holds the desired span
+     * of video regardless of how closely the encoder sticks to the requested bit rate.  The
+     * buffer is resized as needed, within the specified bounds.
+     *
+     * @param minDataBytes Smallest size for the encoded data buffer.
+     * @param maxDataBytes Largest size for the encoded data buffer.
+     * @see CircularEncoderBuffer#setRetentionPolicy(long, int, int)
+     */
+    public void setRetentionBounds(int minDataBytes, int maxDataBytes) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SET_RETENTION, minDataBytes, maxDataBytes,
+                mDesiredSpanSec));
+    }
+
+    /**
+     * Returns the presentation time of the oldest sync frame in the buffer, i.e. the
+     * earliest point a save can start from, or -1 if nothing has been buffered yet.
+     * Frames still in the encoder aren't considered.
+     */
+    public long getBufferStartUsec() {
+        synchronized (mEncBuffer) {
+            int index = mEncBuffer.getFirstIndex();
+            return (index < 0) ? -1 : mEncBuffer.getPtsUsec(index);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the circular buffer's occupancy and eviction counters.  May be
+     * called from any thread.
+     */
+    public CircularEncoderBuffer.Stats getBufferStats() {
+        synchronized (mEncBuffer) {
+            return mEncBuffer.getStats();
+        }
+    }
+
+    /**
+     * Creates a player that decodes straight from the buffer, for instant replay.  Capture
+     * continues while it plays.  Stop the player before calling shutdown().
+     *
+     * @param outputSurface The Surface where frames will be sent.
+     * @param frameCallback Callback object, used to pace output.
+     * @return The player, or null if the encoder hasn't produced any output yet.
+     */
+    public ReplayPlayer createReplayPlayer(Surface outputSurface,
+            MoviePlayer.FrameCallback frameCallback) {
+        MediaFormat format;
+        synchronized (mEncBuffer) {
+            format = mTrackFormats.get(0);
+        }
+        if (format == null) {
+            Log.w(TAG, "encoder format not known yet, can't replay");
+            return null;
+        }
+        return new ReplayPlayer(mEncBuffer, format, outputSurface, frameCallback);
+    }
+
     /**
      * Initiates saving the currently-buffered frames to the specified output file.  The
      * data will be written as a .mp4 file.  The call returns immediately.  When the file
      * save completes, the callback will be notified.
      * <p>
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * The file generation is performed on a separate I/O thread.  Frames may continue to be
+     * submitted while it runs; they're added to the buffer but aren't part of the file.
      */
     public void saveVideo(File outputFile) {
+        saveVideo(outputFile, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Initiates saving part of the buffered frames to the specified output file.  Works
+     * like {@link #saveVideo(File)}, but only writes frames in the requested time range.
+     * <p>
+     * Time stamps are in the encoder's time base, i.e. the presentation times of the frames
+     * submitted to the input surface, in microseconds.  The clip starts at the newest sync
+     * frame at or before "startUsec" (or the oldest buffered sync frame, if the range starts
+     * before the buffered data), and includes every frame up to and including "endUsec".
+     */
+    public void saveVideo(File outputFile, long startUsec, long endUsec) {
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(
-                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
+                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO,
+                new SaveRequest(outputFile, startUsec, endUsec)));
+    }
+
+    /**
+     * Initiates capturing an event to the specified output file.  The file will hold the
+     * "preTriggerUsec" microseconds of buffered video before the trigger (starting from a
+     * sync frame), plus everything the encoder produces for "postTriggerUsec" after it.
+     * The call returns immediately; the callback is notified when the file is complete.
+     * <p>
+     * If a capture is already in progress, no new file is created.  Instead, the existing
+     * capture is extended to cover "postTriggerUsec" after this trigger, and the output file
+     * argument is ignored.  Only one fileSaveComplete() callback is issued for the merged
+     * capture.
+     * <p>
+     * The trigger time is the presentation time of the most recent frame that has come out
+     * of the encoder when the request is processed.
+     */
+    public void captureEvent(File outputFile, long preTriggerUsec, long postTriggerUsec) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_CAPTURE_EVENT,
+                new SaveRequest(outputFile, preTriggerUsec, postTriggerUsec)));
+    }
+
+    /**
+     * Parameters for a save operation, passed to the encoder thread.  For event capture,
+     * the start and end are the pre- and post-trigger durations.
+     */
+    static class SaveRequest {
+        final File mOutputFile;
+        final long mStartUsec;
+        final long mEndUsec;
+
+        SaveRequest(File outputFile, long startUsec, long endUsec) {
+            mOutputFile = outputFile;
+            mStartUsec = startUsec;
+            mEndUsec = endUsec;
+        }
+    }
+
+    /**
+     * Creates a muxer for the output file and adds a track for each known format.
+     *
+     * @param muxTracks Filled in with the muxer track for each buffer track, or -1 if the
+     *     track's format isn't known yet (in which case its packets are dropped).
+     */
+    private static MediaMuxer createMuxer(File outputFile, MediaFormat[] formats,
+            int[] muxTracks) throws IOException {
+        MediaMuxer muxer = new MediaMuxer(outputFile.getPath(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        for (int i = 0; i < formats.length; i++) {
+            muxTracks[i] = (formats[i] == null) ? -1 : muxer.addTrack(formats[i]);
+        }
+        muxer.start();
+        return muxer;
+    }
+
+    /**
+     * Writes a range of packets from the circular buffer to a .mp4 file.  Runs on the
+     * save thread, concurrently with the encoder thread adding packets to the buffer.
+     * <p>
+     * Packets are written in presentation time order across all tracks, starting with the
+     * video sync frame.  Packets from other tracks that precede it are skipped.
+     */
+    static class SnapshotWriter implements Runnable {
+        private final CircularEncoderBuffer mEncBuffer;
+        private final MediaFormat[] mFormats;
+        private final SaveRequest mRequest;
+        private final long mStartSeq;
+        private final long mStartPtsUsec;
+        private final long mTailSeq;
+        private final long mEndSeq;         // exclusive
+        private final CircularEncoder.Callback mCallback;
+
+        SnapshotWriter(CircularEncoderBuffer encBuffer, MediaFormat[] formats,
+                SaveRequest req, long startSeq, long startPtsUsec, long tailSeq, long endSeq,
+                CircularEncoder.Callback cb) {
+            mEncBuffer = encBuffer;
+            mFormats = formats;
+            mRequest = req;
+            mStartSeq = startSeq;
+            mStartPtsUsec = startPtsUsec;
+            mTailSeq = tailSeq;
+            mEndSeq = endSeq;
+            mCallback = cb;
+        }
+
+        /**
+         * Finds the next packet on "track", at or after "seq", that belongs in the file.
+         * <p>
+         * The buffer keeps evicting from its tail while we work, so packets ahead of the
+         * sync frame may be gone by the time we look.  They'd be skipped for preceding the
+         * start time anyway, so we just step over them.  Only a missing packet at or after
+         * the sync frame counts as an eviction.
+         *
+         * @return The packet's sequence number, mEndSeq if there are no more, or -1 if we
+         *     ran into a packet that has been evicted.
+         */
+        private long findNext(int track, long seq) {
+            synchronized (mEncBuffer) {
+                if (seq < mStartSeq) {
+                    seq = Math.max(seq, Math.min(mEncBuffer.getTailSequence(), mStartSeq));
+                }
+                for ( ; seq < mEndSeq; seq++) {
+                    int index = mEncBuffer.getIndexForSequence(seq);
+                    if (index < 0) {
+                        return -1;
+                    }
+                    if (mEncBuffer.getTrack(index) == track &&
+                            mEncBuffer.getPtsUsec(index) >= mStartPtsUsec) {
+                        return seq;
+                    }
+                }
+            }
+            return mEndSeq;
+        }
+
+        @Override
+        public void run() {
+            if (VERBOSE) Log.d(TAG, "writing seq " + mStartSeq + " to " + mEndSeq);
+
+            final int numTracks = mFormats.length;
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteBuffer buf = null;
+            MediaMuxer muxer = null;
+            int[] muxTracks = new int[numTracks];
+            long[] next = new long[numTracks];
+            long[] nextPts = new long[numTracks];
+            int result = -1;
+            try {
+                muxer = createMuxer(mRequest.mOutputFile, mFormats, muxTracks);
+
+                // Video starts at the sync frame.  Other tracks may have packets for the
+                // same time that arrived a bit earlier, so look from the start of the buffer.
+                for (int i = 0; i < numTracks; i++) {
+                    next[i] = (muxTracks[i] < 0) ? mEndSeq :
+                            findNext(i, (i == 0) ? mStartSeq : mTailSeq);
+                }
+
+                result = 0;
+                while (true) {
+                    // Merge by presentation time.
+                    int track = -1;
+                    synchronized (mEncBuffer) {
+                        for (int i = 0; i < numTracks; i++) {
+                            if (next[i] < 0) {
+                                break;
+                            }
+                            if (next[i] == mEndSeq) {
+                                continue;
+                            }
+                            int index = mEncBuffer.getIndexForSequence(next[i]);
+                            if (index < 0 && next[i] < mStartSeq) {
+                                next[i] = findNext(i, next[i]);
+                                if (next[i] == mEndSeq) {
+                                    continue;
+                                }
+                                index = mEncBuffer.getIndexForSequence(next[i]);
+                            }
+                            if (index < 0) {
+                                next[i] = -1;
+                                break;
+                            }
+                            nextPts[i] = mEncBuffer.getPtsUsec(index);
+                            if (track < 0 || nextPts[i] < nextPts[track]) {
+                                track = i;
+                            }
+                        }
+                    }
+                    boolean evicted = false;
+                    for (int i = 0; i < numTracks; i++) {
+                        evicted |= (next[i] < 0);
+                    }
+                    if (evicted) {
+                        Log.w(TAG, "packet was evicted before it could be saved");
+                        result = 3;
+                        break;
+                    }
+                    if (track < 0 || nextPts[track] > mRequest.mEndUsec) {
+                        break;
+                    }
+
+                    // Copy the packet out while we hold the lock, so the encoder thread
+                    // can't overwrite it while the muxer is looking at it.
+                    synchronized (mEncBuffer) {
+                        buf = mEncBuffer.copyChunk(next[track], buf, info);
+                    }
+                    if (buf == null && next[track] < mStartSeq) {
+                        // Went while we weren't holding the lock; look again.
+                        next[track] = findNext(track, next[track]);
+                        continue;
+                    }
+                    if (buf == null) {
+                        Log.w(TAG, "packet " + next[track] +
+                                " was evicted before it could be saved");
+                        result = 3;
+                        break;
+                    }
+                    if (VERBOSE) {
+                        Log.d(TAG, "SAVE " + next[track] + " track=" + track + " flags=0x" +
+                                Integer.toHexString(info.flags));
+                    }
+                    muxer.writeSampleData(muxTracks[track], buf, info);
+                    next[track] = findNext(track, next[track] + 1);
+                }
+            } catch (IOException ioe) {
+                Log.w(TAG, "muxer failed", ioe);
+                result = 2;
+            } finally {
+                if (muxer != null) {
+                    muxer.stop();
+                    muxer.release();
+                }
+            }
+
+            if (VERBOSE) {
+                Log.d(TAG, "muxer stopped, result=" + result);
+            }
+            mCallback.fileSaveComplete(result);
+        }
+    }
+
+    /**
+     * Writes an event capture to a .mp4 file.  Runs on the save thread.
+     * <p>
+     * Each time it runs, it writes whatever packets the encoder thread has told it about
+     * that it hasn't written yet.  Once it sees a video packet past the deadline it finishes
+     * the file.  The encoder thread re-posts this object when new packets are available,
+     * and may push the deadline out if another trigger arrives before then.
+     * <p>
+     * Packets are written in the order they arrived.  We can't look ahead to sort them the
+     * way SnapshotWriter does, but each track is in order, which is all MediaMuxer needs.
+     */
+    private static class EventWriter implements Runnable {
+        private final CircularEncoderBuffer mEncBuffer;
+        private final MediaFormat[] mFormats;
+        private final File mOutputFile;
+        private final long mStartPtsUsec;
+        private final CircularEncoder.Callback mCallback;
+
+        // Guarded by "this".  Once mFinished is set the deadline can't be extended.
+        private long mDeadlineUsec;
+        private boolean mEndRequested;
+        private boolean mFinished;
+
+        // Written by the encoder thread, read by the save thread.
+        private volatile long mAvailableSeq;
+
+        // Only touched on the save thread.
+        private MediaMuxer mMuxer;
+        private int[] mMuxTracks;
+        private int mSamplesWritten;
+        private long mNextSeq;
+        private ByteBuffer mBuf;
+        private MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        EventWriter(CircularEncoderBuffer encBuffer, MediaFormat[] formats, File outputFile,
+                long startSeq, long startPtsUsec, long availableSeq, long deadlineUsec,
+                CircularEncoder.Callback cb) {
+            mEncBuffer = encBuffer;
+            mFormats = formats;
+            mOutputFile = outputFile;
+            mNextSeq = startSeq;
+            mStartPtsUsec = startPtsUsec;
+            mAvailableSeq = availableSeq;
+            mDeadlineUsec = deadlineUsec;
+            mCallback = cb;
+        }
+
+        /**
+         * Moves the deadline out, if it's later than the current one.  Call from the
+         * encoder thread.
+         *
+         * @return False if the capture has already finished, in which case the caller should
+         *     start a new one.
+         */
+        synchronized boolean extendDeadline(long deadlineUsec) {
+            if (mFinished) {
+                return false;
+            }
+            mDeadlineUsec = Math.max(mDeadlineUsec, deadlineUsec);
+            return true;
+        }
+
+        /**
+         * Ends the capture at whatever has been made available so far.  Call from the
+         * encoder thread when shutting down.
+         */
+        synchronized void endNow() {
+            mEndRequested = true;
+        }
+
+        /**
+         * Tells the writer that packets up to (but not including) "headSeq" can be written.
+         * Call from the encoder thread, then post this object to the save thread.
+         */
+        void setAvailable(long headSeq) {
+            mAvailableSeq = headSeq;
+        }
+
+        synchronized boolean isFinished() {
+            return mFinished;
+        }
+
+        private synchronized long getDeadline() {
+            return mDeadlineUsec;
+        }
+
+        /**
+         * Finishes the capture if "ptsUsec" is past the deadline.  Checking and finishing
+         * happen under one lock, so a concurrent extendDeadline() either gets in first and
+         * moves the deadline, or sees mFinished and returns false.
+         */
+        private synchronized boolean finishIfPast(long ptsUsec) {
+            if (ptsUsec > mDeadlineUsec) {
+                mFinished = true;
+            }
+            return mFinished;
+        }
+
+        private synchronized boolean isEndRequested() {
+            return mEndRequested;
+        }
+
+        @Override
+        public void run() {
+            if (isFinished()) {
+                return;
+            }
+
+            int result = 0;
+            boolean done = false;
+            try {
+                if (mMuxer == null) {
+                    mMuxTracks = new int[mFormats.length];
+                    mMuxer = createMuxer(mOutputFile, mFormats, mMuxTracks);
+                }
+
+                long availableSeq = mAvailableSeq;
+                while (mNextSeq < availableSeq) {
+                    int track;
+                    synchronized (mEncBuffer) {
+                        int index = mEncBuffer.getIndexForSequence(mNextSeq);
+                        track = (index < 0) ? 0 : mEncBuffer.getTrack(index);
+                        mBuf = mEncBuffer.copyChunk(mNextSeq, mBuf, mInfo);
+                    }
+                    if (mBuf == null) {
+                        Log.w(TAG, "packet " + mNextSeq + " was evicted before it could be saved");
+                        result = 3;
+                        done = true;
+                        break;
+                    }
+                    mNextSeq++;
+                    if (track >= mMuxTracks.length || mMuxTracks[track] < 0 ||
+                            mInfo.presentationTimeUs < mStartPtsUsec) {
+                        // unknown track, or from before the video starts
+                        continue;
+                    }
+                    if (track == 0) {
+                        if (finishIfPast(mInfo.presentationTimeUs)) {
+                            done = true;
+                            break;
+                        }
+                    } else if (mInfo.presentationTimeUs > getDeadline()) {
+                        continue;
+                    }
+                    mMuxer.writeSampleData(mMuxTracks[track], mBuf, mInfo);
+                    mSamplesWritten++;
+                }
+                if (isEndRequested()) {
+                    done = true;
+                }
+            } catch (IOException ioe) {
+                Log.w(TAG, "muxer failed", ioe);
+                result = 2;
+                done = true;
+            }
+
+            if (done) {
+                synchronized (this) {
+                    mFinished = true;
+                }
+                if (mMuxer != null) {
+                    // MediaMuxer.stop() throws if nothing was written.
+                    if (mSamplesWritten > 0) {
+                        mMuxer.stop();
+                    } else if (result == 0) {
+                        Log.w(TAG, "event capture has no samples");
+                        result = 4;
+                    }
+                    mMuxer.release();
+                    mMuxer = null;
+                }
+                if (VERBOSE) Log.d(TAG, "event capture finished, result=" + result);
+                mCallback.fileSaveComplete(result);
+            }
+        }
     }
 
     /**
@@ -203,9 +805,11 @@ public class CircularEncoder {
      * arrives at the encoder, because the other thread is sending frames directly to the
      * input surface.  We will see data appear at the decoder output, so we can either use
      * an infinite timeout on dequeueOutputBuffer() or wait() on an object and require the
-     * calling app wake us.  It's very useful to have all of the buffer management local to
-     * this thread -- avoids synchronization -- so we want to do the file muxing in here.
-     * So, it's best to sleep on an object and do something appropriate when awakened.
+     * calling app wake us.  So, it's best to sleep on an object and do something
+     * appropriate when awakened.
+     * <p>
+     * The buffer is shared with the save thread and with any other encoders feeding
+     * additional tracks, so we hold its lock whenever we touch it.
      * <p>
      * This class does not manage the MediaCodec encoder startup/shutdown.  The encoder
      * should be fully started before the thread is created, and not shut down until this
@@ -218,17 +822,27 @@ public class CircularEncoder {
 
         private EncoderHandler mHandler;
         private CircularEncoderBuffer mEncBuffer;
+        private ArrayList<MediaFormat> mTrackFormats;
+        private Handler mSaveHandler;
         private CircularEncoder.Callback mCallback;
+        private EventWriter mEventWriter;
+        private volatile SegmentRecorder mRecorder;
         private int mFrameNum;
+        private boolean mSyncOnDemand;
+        private int mSyncRequestFrame = -1;     // frame number of outstanding request
 
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
 
         public EncoderThread(MediaCodec mediaCodec, CircularEncoderBuffer encBuffer,
-                CircularEncoder.Callback callback) {
+                ArrayList<MediaFormat> trackFormats, Handler saveHandler,
+                CircularEncoder.Callback callback, boolean syncOnDemand) {
             mEncoder = mediaCodec;
             mEncBuffer = encBuffer;
+            mTrackFormats = trackFormats;
+            mSaveHandler = saveHandler;
             mCallback = callback;
+            mSyncOnDemand = syncOnDemand;
 
             mBufferInfo = new MediaCodec.BufferInfo();
         }
@@ -308,6 +922,10 @@ public class CircularEncoder {
                     // MediaFormat later, we just grab it here and keep it around.
                     mEncodedFormat = mEncoder.getOutputFormat();
                     Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
+                    synchronized (mEncBuffer) {
+                        mTrackFormats.set(0, mEncodedFormat);
+                    }
+                    recordFormat(0, mEncodedFormat);
                 } else if (encoderStatus < 0) {
                     Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                             encoderStatus);
@@ -333,8 +951,17 @@ public class CircularEncoder {
                         encodedData.position(mBufferInfo.offset);
                         encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-                        mEncBuffer.add(encodedData, mBufferInfo.flags,
-                                mBufferInfo.presentationTimeUs);
+                        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                            mSyncRequestFrame = -1;
+                        }
+
+                        // The save thread may be reading from the buffer.
+                        synchronized (mEncBuffer) {
+                            mEncBuffer.add(encodedData, mBufferInfo.flags,
+                                    mBufferInfo.presentationTimeUs);
+                        }
+                        // Disk I/O, so not under the lock the save thread needs.
+                        recordSample(0, encodedData, mBufferInfo);
 
                         if (VERBOSE) {
                             Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
@@ -360,73 +987,232 @@ public class CircularEncoder {
         void frameAvailableSoon() {
             if (VERBOSE) Log.d(TAG, "frameAvailableSoon");
             drainEncoder();
+            if (mSyncOnDemand) {
+                boolean due;
+                long newestPtsUsec = -1;
+                synchronized (mEncBuffer) {
+                    due = mEncBuffer.isSyncFrameDue(SYNC_FRAME_GUARD);
+                    int newest = mEncBuffer.getIndexForSequence(
+                            mEncBuffer.getHeadSequence() - 1);
+                    if (newest >= 0) {
+                        newestPtsUsec = mEncBuffer.getPtsUsec(newest);
+                    }
+                }
+                SegmentRecorder recorder = mRecorder;
+                if (!due && recorder != null && newestPtsUsec >= 0) {
+                    due = recorder.isCutDue(newestPtsUsec);
+                }
+                if (due) {
+                    requestSyncFrame();
+                }
+            }
+            if (mEventWriter != null) {
+                if (mEventWriter.isFinished()) {
+                    mEventWriter = null;
+                } else {
+                    synchronized (mEncBuffer) {
+                        mEventWriter.setAvailable(mEncBuffer.getHeadSequence());
+                    }
+                    mSaveHandler.post(mEventWriter);
+                }
+            }
 
             mFrameNum++;
             if ((mFrameNum % 10) == 0) {        // TODO: should base off frame rate or clock?
-                mCallback.bufferStatus(mEncBuffer.computeTimeSpanUsec());
+                long spanUsec;
+                synchronized (mEncBuffer) {
+                    spanUsec = mEncBuffer.computeTimeSpanUsec();
+                }
+                mCallback.bufferStatus(spanUsec);
+            }
+        }
+
+        /**
+         * Asks the encoder for a sync frame, unless one is already on its way.  Does
+         * nothing if the encoder makes them on its own schedule.
+         */
+        void requestSyncFrame() {
+            if (!mSyncOnDemand) {
+                return;
+            }
+            if (mSyncRequestFrame >= 0 &&
+                    mFrameNum - mSyncRequestFrame < SYNC_REQUEST_RETRY_FRAMES) {
+                return;
             }
+            if (VERBOSE) Log.d(TAG, "requesting sync frame at frame " + mFrameNum);
+            mSyncRequestFrame = mFrameNum;
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mEncoder.setParameters(params);
         }
 
         /**
-         * Saves the encoder output to a .mp4 file.
+         * Sets the segment recorder, and hands it the formats we already know.
+         */
+        void setRecorder(SegmentRecorder recorder) {
+            MediaFormat[] formats;
+            synchronized (mEncBuffer) {
+                mRecorder = recorder;
+                formats = getTrackFormats();
+            }
+            for (int i = 0; i < formats.length; i++) {
+                if (formats[i] != null) {
+                    recordFormat(i, formats[i]);
+                }
+            }
+        }
+
+        /**
+         * Passes a track format to the segment recorder, if any.  Don't hold the buffer
+         * lock; this writes a file.
+         */
+        void recordFormat(int track, MediaFormat format) {
+            SegmentRecorder recorder = mRecorder;
+            if (recorder == null) {
+                return;
+            }
+            try {
+                recorder.setTrackFormat(track, format);
+            } catch (IOException ioe) {
+                disableRecorder(recorder, ioe);
+            }
+        }
+
+        /**
+         * Passes a packet to the segment recorder, if any.  Don't hold the buffer lock.
+         * <p>
+         * This is a write to the page cache.  When the recorder cuts a segment, forcing
+         * the old one to disk happens on the recorder's own thread.
+         */
+        void recordSample(int track, ByteBuffer buf, MediaCodec.BufferInfo info) {
+            SegmentRecorder recorder = mRecorder;
+            if (recorder == null) {
+                return;
+            }
+            try {
+                recorder.writeSample(track, buf, info);
+            } catch (IOException ioe) {
+                disableRecorder(recorder, ioe);
+            }
+        }
+
+        /**
+         * Drops a recorder that hit an I/O error, unless it has already been replaced.
+         */
+        private void disableRecorder(SegmentRecorder recorder, IOException ioe) {
+            Log.w(TAG, "segment recorder failed, disabling", ioe);
+            synchronized (mEncBuffer) {
+                if (mRecorder == recorder) {
+                    mRecorder = null;
+                }
+            }
+        }
+
+        /**
+         * Returns the output formats of all tracks.  Call with the buffer lock held.
+         */
+        private MediaFormat[] getTrackFormats() {
+            return mTrackFormats.toArray(new MediaFormat[mTrackFormats.size()]);
+        }
+
+        /**
+         * Starts saving the encoder output to a .mp4 file.
          * <p>
          * We'll drain the encoder to get any lingering data, but we're not going to shut
          * the encoder down or use other tricks to try to "flush" the encoder.  This may
          * mean we miss the last couple of submitted frames if they're still working their
          * way through.
          * <p>
-         * We may want to reset the buffer after this -- if they hit "capture" again right
-         * away they'll end up saving video with a gap where we paused to write the file.
+         * The set of packets to save is fixed here, on the encoder thread, as a range of
+         * sequence numbers.  The actual file writing happens on the save thread.
          */
-        void saveVideo(File outputFile) {
-            if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
+        void saveVideo(SaveRequest req) {
+            if (VERBOSE) {
+                Log.d(TAG, "saveVideo " + req.mOutputFile + " start=" + req.mStartUsec +
+                        " end=" + req.mEndUsec);
+            }
+            drainEncoder();
+            // Something interesting just happened; give later saves a place to start here.
+            requestSyncFrame();
 
-            int index = mEncBuffer.getFirstIndex();
-            if (index < 0) {
+            SnapshotWriter writer = null;
+            synchronized (mEncBuffer) {
+                int index = mEncBuffer.getSyncIndexAtOrBefore(req.mStartUsec);
+                if (index >= 0 && mEncBuffer.getPtsUsec(index) > req.mEndUsec) {
+                    Log.w(TAG, "No buffered data in requested range");
+                    index = -1;
+                }
+                if (index >= 0) {
+                    writer = new SnapshotWriter(mEncBuffer, getTrackFormats(), req,
+                            mEncBuffer.getSequence(index), mEncBuffer.getPtsUsec(index),
+                            mEncBuffer.getTailSequence(), mEncBuffer.getHeadSequence(),
+                            mCallback);
+                }
+            }
+            if (writer == null) {
                 Log.w(TAG, "Unable to get first index");
                 mCallback.fileSaveComplete(1);
                 return;
             }
+            mSaveHandler.post(writer);
+        }
 
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            MediaMuxer muxer = null;
-            int result = -1;
-            try {
-                muxer = new MediaMuxer(outputFile.getPath(),
-                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrack = muxer.addTrack(mEncodedFormat);
-                muxer.start();
+        /**
+         * Applies a retention policy to the buffer.
+         */
+        void setRetention(int spanSec, int minDataBytes, int maxDataBytes) {
+            synchronized (mEncBuffer) {
+                mEncBuffer.setRetentionPolicy(spanSec * 1000000L, minDataBytes, maxDataBytes);
+            }
+        }
 
-                do {
-                    ByteBuffer buf = mEncBuffer.getChunk(index, info);
-                    if (VERBOSE) {
-                        Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
-                    }
-                    muxer.writeSampleData(videoTrack, buf, info);
-                    index = mEncBuffer.getNextIndex(index);
-                } while (index >= 0);
-                result = 0;
-            } catch (IOException ioe) {
-                Log.w(TAG, "muxer failed", ioe);
-                result = 2;
-            } finally {
-                if (muxer != null) {
-                    muxer.stop();
-                    muxer.release();
+        /**
+         * Starts or extends an event capture.
+         */
+        void captureEvent(SaveRequest req) {
+            drainEncoder();
+            requestSyncFrame();
+            synchronized (mEncBuffer) {
+                long headSeq = mEncBuffer.getHeadSequence();
+                int newest = mEncBuffer.getIndexForSequence(headSeq - 1);
+                if (newest < 0) {
+                    Log.w(TAG, "Nothing buffered yet, can't capture event");
+                    mCallback.fileSaveComplete(1);
+                    return;
                 }
-            }
+                long triggerUsec = mEncBuffer.getPtsUsec(newest);
+                long deadlineUsec = triggerUsec + req.mEndUsec;
+                if (VERBOSE) Log.d(TAG, "captureEvent trigger=" + triggerUsec + " deadline=" +
+                        deadlineUsec);
 
-            if (VERBOSE) {
-                Log.d(TAG, "muxer stopped, result=" + result);
+                if (mEventWriter != null && mEventWriter.extendDeadline(deadlineUsec)) {
+                    if (VERBOSE) Log.d(TAG, "merged with capture in progress");
+                    return;
+                }
+
+                int index = mEncBuffer.getSyncIndexAtOrBefore(triggerUsec - req.mStartUsec);
+                if (index < 0) {
+                    Log.w(TAG, "Unable to get first index");
+                    mCallback.fileSaveComplete(1);
+                    return;
+                }
+                mEventWriter = new EventWriter(mEncBuffer, getTrackFormats(), req.mOutputFile,
+                        mEncBuffer.getSequence(index), mEncBuffer.getPtsUsec(index), headSeq,
+                        deadlineUsec, mCallback);
             }
-            mCallback.fileSaveComplete(result);
+            mSaveHandler.post(mEventWriter);
         }
 
         /**
-         * Tells the Looper to quit.
+         * Tells the Looper to quit.  An event capture in progress is cut short.
          */
         void shutdown() {
             if (VERBOSE) Log.d(TAG, "shutdown");
+            if (mEventWriter != null) {
+                mEventWriter.endNow();
+                mSaveHandler.post(mEventWriter);
+                mEventWriter = null;
+            }
             Looper.myLooper().quit();
         }
 
@@ -440,6 +1226,8 @@ public class CircularEncoder {
             public static final int MSG_FRAME_AVAILABLE_SOON = 1;
             public static final int MSG_SAVE_VIDEO = 2;
             public static final int MSG_SHUTDOWN = 3;
+            public static final int MSG_CAPTURE_EVENT = 4;
+            public static final int MSG_SET_RETENTION = 5;
 
             // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
             // but no real harm in it.
@@ -470,11 +1258,17 @@ public class CircularEncoder {
                         encoderThread.frameAvailableSoon();
                         break;
                     case MSG_SAVE_VIDEO:
-                        encoderThread.saveVideo((File) msg.obj);
+                        encoderThread.saveVideo((SaveRequest) msg.obj);
                         break;
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
                         break;
+                    case MSG_CAPTURE_EVENT:
+                        encoderThread.captureEvent((SaveRequest) msg.obj);
+                        break;
+                    case MSG_SET_RETENTION:
+                        encoderThread.setRetention((Integer) msg.obj, msg.arg1, msg.arg2);
+                        break;
                     default:
                         throw new RuntimeException("unknown message " + what);
                 }
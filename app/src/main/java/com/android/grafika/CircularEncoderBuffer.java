@@ -19,7 +19,11 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Holds encoded video data in a circular buffer.
@@ -27,6 +31,18 @@ import java.nio.ByteBuffer;
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
  * (flags and PTS).
  * <p>
+ * Packets from several tracks (e.g. video and audio from separate encoders) can share the
+ * buffer, so they're evicted together in the order they arrived.  Track 0 is special: its
+ * sync frames are the points where a saved clip can start, so it should be the video.
+ * <p>
+ * The raw data can live on the Java heap, in a "direct" ByteBuffer, or in a memory-mapped
+ * file.  The latter two keep long windows of video out of the managed heap, which matters
+ * when the buffer is tens of megabytes and the GC would otherwise have to deal with it.
+ * <p>
+ * Ring indices are wrapped with a compare and subtract, since not all ARM CPUs have an
+ * integer divide instruction.  With {@link #setPowerOfTwoCapacity(boolean)}, capacities
+ * are rounded up to powers of two and indices are wrapped with a mask instead.
+ * <p>
  * Not thread-safe.
  */
 public class CircularEncoderBuffer {
@@ -34,6 +50,73 @@ public class CircularEncoderBuffer {
     private static final boolean EXTRA_DEBUG = true;
     private static final boolean VERBOSE = false;
 
+    // Why a packet was evicted; indices into mEvictions.
+    private static final int EVICT_DATA_FULL = 0;
+    private static final int EVICT_META_FULL = 1;
+    private static final int EVICT_AGE = 2;
+    private static final int EVICT_RESIZE = 3;
+    private static final int ROOM_AVAILABLE = -1;      // from checkSpace()
+
+    /**
+     * Where the raw packet data is stored.
+     */
+    public enum Storage {
+        /** A byte[] on the Java heap. */
+        HEAP,
+        /** A "direct" ByteBuffer, allocated outside the Java heap. */
+        DIRECT,
+        /** A file mapped into memory with FileChannel.map(). */
+        MAPPED_FILE
+    }
+
+    /**
+     * Snapshot of buffer occupancy and counters, from {@link #getStats()}.  Counters are
+     * totals since the buffer was created.
+     */
+    public static class Stats {
+        /** Bytes of packet data currently held. */
+        public int dataBytesUsed;
+        /** Size of the data buffer. */
+        public int dataCapacity;
+        /** Packets currently held. */
+        public int metaSlotsUsed;
+        /** Number of packets the meta-data buffer can hold. */
+        public int metaCapacity;
+        /** Sync frames (on track 0) currently held, i.e. places a save could start. */
+        public int syncFrames;
+        /** Time covered by the held packets, in microseconds. */
+        public long spanUsec;
+        /** Largest packet seen. */
+        public int largestPacket;
+
+        /** Packets added. */
+        public long packetsAdded;
+        /** Bytes added. */
+        public long bytesAdded;
+        /** Packets that were split across the end of the data buffer when added. */
+        public long wrapSplitPackets;
+        /** Packets evicted to make room in the data buffer. */
+        public long evictedDataFull;
+        /** Packets evicted to make room in the meta-data buffer. */
+        public long evictedMetaFull;
+        /** Packets evicted because they were older than the retention span. */
+        public long evictedByAge;
+        /** Packets evicted because the buffer was shrunk. */
+        public long evictedByResize;
+        /** Number of times the buffers were resized. */
+        public int resizes;
+
+        @Override
+        public String toString() {
+            return "data " + dataBytesUsed + "/" + dataCapacity + ", meta " + metaSlotsUsed +
+                    "/" + metaCapacity + ", sync " + syncFrames + ", span " + spanUsec +
+                    "us, largest " + largestPacket + ", added " + packetsAdded + " (" +
+                    bytesAdded + " bytes, " + wrapSplitPackets + " split), evicted " +
+                    evictedDataFull + " data/" + evictedMetaFull + " meta/" + evictedByAge +
+                    " age/" + evictedByResize + " resize, resizes " + resizes;
+        }
+    }
+
     // Raw data (e.g. AVC NAL units) held here.
     //
     // The MediaMuxer writeSampleData() function takes a ByteBuffer.  If it's a "direct"
@@ -41,12 +124,42 @@ public class CircularEncoderBuffer {
     // JNI functions to access the backing byte[] (which, in the current VM, is done without
     // copying the data).
     //
-    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
-    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
-    private ByteBuffer mDataBufferWrapper;
-    private byte[] mDataBuffer;
+    // All three storage types are accessed through the same ByteBuffer.  We keep a
+    // duplicate around for bulk copies so we can adjust its position and limit without
+    // disturbing the buffer we hand out from getChunk(), and without allocating a new view
+    // for every packet.  Reading a packet that wraps around the end of the buffer is a bit
+    // awkward.  getChunk() copies it into a scratch buffer that we keep around (sized for the
+    // largest packet we've seen, so it's allocated at most once in the steady state), while
+    // getChunkParts() hands back the two halves as separate views with no copying at all.
+    private ByteBuffer mDataBuffer;
+    private ByteBuffer mDataCopyView;
+    private ByteBuffer mPartView0;
+    private ByteBuffer mPartView1;
+    private ByteBuffer mScratchBuffer;
+    private final ByteBuffer[] mCopyParts = new ByteBuffer[2];
+    private int mLargestPacket;
+    private int mDataLen;
+
+    // If set, the data and meta-data capacities are powers of two, and ring positions are
+    // wrapped by masking.  See wrapData() and wrapMeta().
+    private boolean mPowerOfTwo;
+
+    // If set, ring positions are wrapped with '%', the way they used to be.  Only for
+    // measuring the old code in CircularEncoderBufferBenchmark.
+    private boolean mModulusWrap;
+
+    // Instrumentation, reported by getStats().
+    private int mDataUsed;
+    private long mBytesAdded;
+    private long mWrapSplits;
+    private final long[] mEvictions = new long[4];
+    private int mResizes;
+
+    private Storage mStorage;
+
+    // Only used for Storage.MAPPED_FILE.
+    private File mBackingFile;
+    private RandomAccessFile mBackingRaf;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
@@ -54,23 +167,100 @@ public class CircularEncoderBuffer {
     private long[] mPacketPtsUsec;
     private int[] mPacketStart;
     private int[] mPacketLength;
+    private int[] mPacketTrack;
 
     // Data is added at head and removed from tail.  Head points to an empty node, so if
     // head==tail the list is empty.
     private int mMetaHead;
     private int mMetaTail;
 
+    // Meta-data indices of the sync frames currently in the buffer, oldest first.  This is
+    // another ring with the same head/tail conventions, kept up to date by add() and
+    // removeTail() so we never have to scan the meta-data for sync frames.  It's the same
+    // size as the meta-data ring, so it can't overflow even if every frame is a sync frame.
+    private int[] mSyncIndex;
+    private int mSyncHead;
+    private int mSyncTail;
+
+    // Every packet gets a sequence number, assigned in the order they're added.  The packet
+    // at mMetaHead (i.e. the next one added) will get mHeadSeq.  Sequence numbers never
+    // wrap, so a reader can hold one across add() calls and find out later whether the
+    // packet has been evicted.
+    private long mHeadSeq;
+
+    // Time-based retention (see setRetentionPolicy()).  A span of zero means we just keep
+    // whatever fits.  If the min and max data sizes differ, the buffers are resized to match
+    // the observed bit rate.
+    private long mRetentionUsec;
+    private int mMinDataBytes;
+    private int mMaxDataBytes;
+
+    // Observed bit rate and frame rate, measured between sync frames at least a second
+    // apart and smoothed, plus the longest recent gap between sync frames.  Zero until we
+    // have a measurement.
+    private long mRateStartPtsUsec = -1;
+    private long mRateBytes;
+    private int mRateFrames;
+    private long mLastSyncPtsUsec = -1;
+    private double mObservedBytesPerSec;
+    private double mObservedFps;
+    private long mObservedGopUsec;
+
     /**
-     * Allocates the circular buffers we use for encoded data and meta-data.
+     * Allocates the circular buffers we use for encoded data and meta-data.  The encoded
+     * data is held on the Java heap.
      */
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
+        try {
+            init(bitRate, frameRate, desiredSpanSec, Storage.HEAP, null);
+        } catch (IOException ioe) {
+            // can't happen without a backing file
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data, using the
+     * specified type of storage for the encoded data.
+     *
+     * @param storage Where to keep the encoded data.
+     * @param backingFile File to map for Storage.MAPPED_FILE; ignored otherwise.  The file
+     *     is created or truncated, and is deleted by {@link #release()}.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+            Storage storage, File backingFile) throws IOException {
+        init(bitRate, frameRate, desiredSpanSec, storage, backingFile);
+    }
+
+    private void init(int bitRate, int frameRate, int desiredSpanSec, Storage storage,
+            File backingFile) throws IOException {
         // For the encoded data, we assume the encoded bit rate is close to what we request.
-        //
-        // There would be a minor performance advantage to using a power of two here, because
-        // not all ARM CPUs support integer modulus.
-        int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        int dataBufferSize = (int) ((long) bitRate * desiredSpanSec / 8);
+        mStorage = storage;
+        switch (storage) {
+            case HEAP:
+                mDataBuffer = ByteBuffer.wrap(new byte[dataBufferSize]);
+                break;
+            case DIRECT:
+                mDataBuffer = ByteBuffer.allocateDirect(dataBufferSize);
+                break;
+            case MAPPED_FILE:
+                if (backingFile == null) {
+                    throw new IllegalArgumentException("MAPPED_FILE requires a backing file");
+                }
+                mBackingFile = backingFile;
+                mBackingRaf = new RandomAccessFile(backingFile, "rw");
+                try {
+                    mDataBuffer = mapFile(mBackingRaf, dataBufferSize);
+                } catch (IOException ioe) {
+                    release();
+                    throw ioe;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown storage " + storage);
+        }
+        setDataBuffer(mDataBuffer, dataBufferSize);
 
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
@@ -80,11 +270,141 @@ public class CircularEncoderBuffer {
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mPacketTrack = new int[metaBufferCount];
+        mSyncIndex = new int[metaBufferCount];
 
         if (VERBOSE) {
             Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
                     " desiredSpan=" + desiredSpanSec + ": dataBufferSize=" + dataBufferSize +
-                " metaBufferCount=" + metaBufferCount);
+                " metaBufferCount=" + metaBufferCount + " storage=" + storage);
+        }
+    }
+
+    /**
+     * Sets the retention policy.
+     * <p>
+     * With a nonzero span, packets are evicted once they're older than the span, measured
+     * from the newest packet's time stamp -- but we always keep the newest sync frame at or
+     * before that point, so the retained data covers the full span from a place that can
+     * be decoded.  Packets are still evicted early if the buffers fill up.
+     * <p>
+     * If maxDataBytes is larger than minDataBytes, the data and meta-data buffers are also
+     * resized, within those bounds, to hold the span at the observed bit rate and frame
+     * rate.  Real encoders wander away from the requested bit rate, so this keeps us from
+     * either losing part of the span or holding on to memory we don't need.
+     *
+     * @param spanUsec How much time to retain, in microseconds.  Zero disables time-based
+     *     retention and resizing.
+     * @param minDataBytes Lower bound on the size of the data buffer.
+     * @param maxDataBytes Upper bound on the size of the data buffer.
+     */
+    public void setRetentionPolicy(long spanUsec, int minDataBytes, int maxDataBytes) {
+        if (minDataBytes > maxDataBytes) {
+            throw new IllegalArgumentException("min " + minDataBytes + " > max " + maxDataBytes);
+        }
+        mRetentionUsec = spanUsec;
+        mMinDataBytes = minDataBytes;
+        mMaxDataBytes = maxDataBytes;
+    }
+
+    /**
+     * Rounds the data and meta-data capacities up to powers of two, so ring positions can
+     * be wrapped with a mask.  The buffers are resized right away if needed, keeping what's
+     * in them, so it's cheapest to call this before adding anything.  Later resizes (see
+     * {@link #setRetentionPolicy}) keep to powers of two, rounding the data buffer down
+     * instead if rounding up would exceed the maximum size.
+     * <p>
+     * This can nearly double the memory used for encoded data.
+     */
+    public void setPowerOfTwoCapacity(boolean enable) throws IOException {
+        if (enable == mPowerOfTwo) {
+            return;
+        }
+        if (enable) {
+            int newDataLen = roundUpPowerOfTwo(mDataLen);
+            int newMetaLen = roundUpPowerOfTwo(mPacketStart.length);
+            if (newDataLen != mDataLen || newMetaLen != mPacketStart.length) {
+                resize(newDataLen, newMetaLen);
+            }
+        }
+        mPowerOfTwo = enable;
+    }
+
+    /**
+     * Wraps ring positions with an integer divide instead of a compare and subtract.  This
+     * is the old behavior, kept so the benchmark can measure it; don't use it otherwise.
+     * Ignored while power-of-two capacity is enabled.
+     */
+    void setModulusWrap(boolean enable) {
+        mModulusWrap = enable;
+    }
+
+    /**
+     * Returns the size of the data buffer, in bytes.  This changes if the buffer is resized.
+     */
+    public int getDataCapacity() {
+        return mDataLen;
+    }
+
+    /**
+     * Returns the number of packets the meta-data buffer can hold.
+     */
+    public int getMetaCapacity() {
+        return mPacketStart.length - 1;
+    }
+
+    /**
+     * Returns the observed encoded bit rate, in bits per second, or zero if we don't have
+     * a measurement yet.
+     */
+    public int getObservedBitRate() {
+        return (int) (mObservedBytesPerSec * 8);
+    }
+
+    /**
+     * Returns a snapshot of the buffer's occupancy and counters.
+     */
+    public Stats getStats() {
+        final int metaLen = mPacketStart.length;
+        Stats stats = new Stats();
+        stats.dataBytesUsed = mDataUsed;
+        stats.dataCapacity = mDataLen;
+        stats.metaSlotsUsed = wrapMeta(mMetaHead - mMetaTail + metaLen);
+        stats.metaCapacity = metaLen - 1;
+        stats.syncFrames = wrapMeta(mSyncHead - mSyncTail + metaLen);
+        stats.spanUsec = computeTimeSpanUsec();
+        stats.largestPacket = mLargestPacket;
+        stats.packetsAdded = mHeadSeq;
+        stats.bytesAdded = mBytesAdded;
+        stats.wrapSplitPackets = mWrapSplits;
+        stats.evictedDataFull = mEvictions[EVICT_DATA_FULL];
+        stats.evictedMetaFull = mEvictions[EVICT_META_FULL];
+        stats.evictedByAge = mEvictions[EVICT_AGE];
+        stats.evictedByResize = mEvictions[EVICT_RESIZE];
+        stats.resizes = mResizes;
+        return stats;
+    }
+
+    /**
+     * Releases the backing file, if any.  The buffer must not be used afterward.
+     * <p>
+     * The mapping itself can't be explicitly unmapped; it goes away when the buffer is
+     * garbage-collected.
+     */
+    public void release() {
+        if (mBackingRaf != null) {
+            try {
+                mBackingRaf.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed closing backing file", ioe);
+            }
+            mBackingRaf = null;
+        }
+        if (mBackingFile != null) {
+            if (!mBackingFile.delete()) {
+                Log.w(TAG, "unable to delete " + mBackingFile);
+            }
+            mBackingFile = null;
         }
     }
 
@@ -93,15 +413,13 @@ public class CircularEncoderBuffer {
      * time stamps.
      */
     public long computeTimeSpanUsec() {
-        final int metaLen = mPacketStart.length;
-
         if (mMetaHead == mMetaTail) {
             // empty list
             return 0;
         }
 
         // head points to the next available node, so grab the previous one
-        int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
+        int beforeHead = wrapMeta(mMetaHead + mPacketStart.length - 1);
         return mPacketPtsUsec[beforeHead] - mPacketPtsUsec[mMetaTail];
     }
 
@@ -115,36 +433,66 @@ public class CircularEncoderBuffer {
      * @param ptsUsec Presentation time stamp, in microseconds.
      */
     public void add(ByteBuffer buf, int flags, long ptsUsec) {
+        add(0, buf, flags, ptsUsec);
+    }
+
+    /**
+     * Adds a new encoded data packet for the specified track to the buffer.  Packets
+     * within a track must be added in presentation order.
+     *
+     * @param track Track number.  Only sync frames on track 0 are indexed.
+     * @see #add(ByteBuffer, int, long)
+     */
+    public void add(int track, ByteBuffer buf, int flags, long ptsUsec) {
         int size = buf.limit() - buf.position();
         if (VERBOSE) {
-            Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
-                    " pts=" + ptsUsec);
+            Log.d(TAG, "add track=" + track + " size=" + size + " flags=0x" +
+                    Integer.toHexString(flags) + " pts=" + ptsUsec);
+        }
+        if (track != 0) {
+            // Other tracks' sync frames don't matter.
+            flags &= ~MediaCodec.BUFFER_FLAG_SYNC_FRAME;
         }
-        while (!canAdd(size)) {
-            removeTail();
+        if (mRetentionUsec > 0) {
+            updateObservedRate(size, flags, ptsUsec);
+        }
+        int shortage;
+        while ((shortage = checkSpace(size)) != ROOM_AVAILABLE) {
+            removeTail(shortage);
+        }
+        if (size > mLargestPacket) {
+            mLargestPacket = size;
         }
 
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
+        final int dataLen = mDataLen;
         int packetStart = getHeadStart();
         mPacketFlags[mMetaHead] = flags;
         mPacketPtsUsec[mMetaHead] = ptsUsec;
         mPacketStart[mMetaHead] = packetStart;
         mPacketLength[mMetaHead] = size;
+        mPacketTrack[mMetaHead] = track;
+        if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            mSyncIndex[mSyncHead] = mMetaHead;
+            mSyncHead = wrapMeta(mSyncHead + 1);
+        }
 
         // Copy the data in.  Take care if it gets split in half.
-        if (packetStart + size < dataLen) {
+        if (packetStart + size <= dataLen) {
             // one chunk
-            buf.get(mDataBuffer, packetStart, size);
+            copyIn(buf, packetStart, size);
         } else {
             // two chunks
             int firstSize = dataLen - packetStart;
             if (VERBOSE) { Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+            copyIn(buf, packetStart, firstSize);
+            copyIn(buf, 0, size - firstSize);
+            mWrapSplits++;
         }
+        mDataUsed += size;
+        mBytesAdded += size;
 
-        mMetaHead = (mMetaHead + 1) % metaLen;
+        mMetaHead = wrapMeta(mMetaHead + 1);
+        mHeadSeq++;
 
         if (EXTRA_DEBUG) {
             // The head packet is the next-available spot.
@@ -153,37 +501,413 @@ public class CircularEncoderBuffer {
             mPacketStart[mMetaHead] = -100000;
             mPacketLength[mMetaHead] = Integer.MAX_VALUE;
         }
+
+        if (mRetentionUsec > 0) {
+            trimToRetention(ptsUsec);
+        }
     }
 
     /**
-     * Returns the index of the oldest sync frame.  Valid until the next add().
+     * Evicts packets that are older than the retention span, keeping the newest sync frame
+     * at or before the start of the span.
+     */
+    private void trimToRetention(long newestPtsUsec) {
+        int keep = getSyncIndexAtOrBefore(newestPtsUsec - mRetentionUsec);
+        if (keep < 0) {
+            return;
+        }
+        while (mMetaTail != keep) {
+            removeTail(EVICT_AGE);
+        }
+    }
+
+    /**
+     * Accumulates bit rate and frame rate statistics.  At each sync frame at least a second
+     * after the start of the measurement, updates the smoothed rates and considers
+     * resizing the buffers.
+     */
+    private void updateObservedRate(int size, int flags, long ptsUsec) {
+        if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            if (mLastSyncPtsUsec >= 0 && ptsUsec > mLastSyncPtsUsec) {
+                // Decay slowly, so one short GOP doesn't make us forget about long ones.
+                long gopUsec = ptsUsec - mLastSyncPtsUsec;
+                mObservedGopUsec = Math.max(gopUsec, mObservedGopUsec * 7 / 8);
+            }
+            mLastSyncPtsUsec = ptsUsec;
+
+            long elapsedUsec = ptsUsec - mRateStartPtsUsec;
+            if (mRateStartPtsUsec < 0 || elapsedUsec < 0) {
+                // first sync frame, or time went backward; start over
+                mRateStartPtsUsec = ptsUsec;
+                mRateBytes = mRateFrames = 0;
+            } else if (elapsedUsec >= 950000) {     // allow for time stamp jitter
+                double bytesPerSec = mRateBytes * 1000000.0 / elapsedUsec;
+                double fps = mRateFrames * 1000000.0 / elapsedUsec;
+                if (mObservedBytesPerSec == 0) {
+                    mObservedBytesPerSec = bytesPerSec;
+                    mObservedFps = fps;
+                } else {
+                    mObservedBytesPerSec += (bytesPerSec - mObservedBytesPerSec) * 0.25;
+                    mObservedFps += (fps - mObservedFps) * 0.25;
+                }
+                mRateStartPtsUsec = ptsUsec;
+                mRateBytes = mRateFrames = 0;
+
+                if (mMaxDataBytes > mMinDataBytes) {
+                    maybeResize(size);
+                }
+            }
+        }
+        mRateBytes += size;
+        mRateFrames++;
+    }
+
+    /**
+     * Resizes the buffers if the observed rates say we need a lot more or a lot less space
+     * than we have.  The thresholds are far enough apart that we won't flip back and forth.
+     *
+     * @param incomingSize Size of the packet we're about to add.
+     */
+    private void maybeResize(int incomingSize) {
+        // Since we keep the sync frame before the start of the span, we can be holding up to
+        // a full GOP more than the span.  Leave 25% headroom for bit rate spikes, plus room
+        // for the packet we're about to add.
+        double spanSec = (mRetentionUsec + mObservedGopUsec) / 1000000.0;
+        long wantData = (long) (mObservedBytesPerSec * spanSec * 1.25) + incomingSize * 2L;
+        wantData = Math.max(mMinDataBytes, Math.min(mMaxDataBytes, wantData));
+        int wantMeta = (int) Math.ceil(mObservedFps * spanSec * 1.25) + 16;
+        final int metaLen = mPacketStart.length;
+
+        int newDataLen = mDataLen;
+        if (wantData > mDataLen * 1.1 || wantData < mDataLen * 0.6) {
+            newDataLen = (int) wantData;
+        }
+        int newMetaLen = metaLen;
+        if (wantMeta > metaLen || wantMeta < metaLen * 0.6) {
+            newMetaLen = wantMeta;
+        }
+        if (mPowerOfTwo) {
+            // Rounding can land us back where we started, which is fine.
+            newDataLen = roundUpPowerOfTwo(newDataLen);
+            if (newDataLen > mMaxDataBytes) {
+                newDataLen = Integer.highestOneBit(mMaxDataBytes);
+            }
+            newMetaLen = roundUpPowerOfTwo(newMetaLen);
+        }
+        if (newDataLen == mDataLen && newMetaLen == metaLen) {
+            return;
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "resizing: observed " + (int) (mObservedBytesPerSec * 8) + " bps " +
+                    mObservedFps + " fps; data " + mDataLen + " -> " + newDataLen +
+                    ", meta " + metaLen + " -> " + newMetaLen);
+        }
+        try {
+            resize(newDataLen, newMetaLen);
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to resize buffer, keeping current size", ioe);
+        }
+    }
+
+    /**
+     * Replaces the data and meta-data buffers with new ones of the specified sizes, and
+     * copies the live packets over.  Evicts the oldest packets if they don't all fit.
      * <p>
-     * When sending output to a MediaMuxer, start here.
+     * The packets are packed from the start of the new data buffer, so indices change, but
+     * sequence numbers don't.
      */
-    public int getFirstIndex() {
+    private void resize(int newDataLen, int newMetaLen) throws IOException {
         final int metaLen = mPacketStart.length;
 
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+        // Drop packets from the tail until what's left fits.  The head slot is always
+        // empty, so the new meta-data buffer can hold newMetaLen - 1 packets.
+        int liveCount = wrapMeta(mMetaHead - mMetaTail + metaLen);
+        long liveBytes = 0;
+        for (int i = mMetaTail; i != mMetaHead; i = wrapMeta(i + 1)) {
+            liveBytes += mPacketLength[i];
+        }
+        while (liveCount > 0 && (liveBytes > newDataLen || liveCount >= newMetaLen)) {
+            liveBytes -= mPacketLength[mMetaTail];
+            liveCount--;
+            removeTail(EVICT_RESIZE);
+        }
+
+        ByteBuffer newData;
+        RandomAccessFile newRaf = null;
+        File newFile = null;
+        switch (mStorage) {
+            case HEAP:
+                newData = ByteBuffer.wrap(new byte[newDataLen]);
+                break;
+            case DIRECT:
+                newData = ByteBuffer.allocateDirect(newDataLen);
                 break;
+            case MAPPED_FILE:
+                // Map a new file next to the old one, so we can copy between them.
+                newFile = new File(mBackingFile.getPath() + ".new");
+                newRaf = new RandomAccessFile(newFile, "rw");
+                try {
+                    newData = mapFile(newRaf, newDataLen);
+                } catch (IOException ioe) {
+                    newRaf.close();
+                    newFile.delete();
+                    throw ioe;
+                }
+                break;
+            default:
+                throw new RuntimeException("unknown storage " + mStorage);
+        }
+
+        int[] newFlags = new int[newMetaLen];
+        long[] newPts = new long[newMetaLen];
+        int[] newStart = new int[newMetaLen];
+        int[] newLength = new int[newMetaLen];
+        int[] newTrack = new int[newMetaLen];
+        int[] newSyncIndex = new int[newMetaLen];
+        int syncCount = 0;
+        int count = 0;
+        int offset = 0;
+        newData.clear();
+        for (int i = mMetaTail; i != mMetaHead; i = wrapMeta(i + 1)) {
+            int length = mPacketLength[i];
+            newFlags[count] = mPacketFlags[i];
+            newPts[count] = mPacketPtsUsec[i];
+            newStart[count] = offset;
+            newLength[count] = length;
+            newTrack[count] = mPacketTrack[i];
+            if ((mPacketFlags[i] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                newSyncIndex[syncCount++] = count;
+            }
+            newData.position(offset);
+            copyOut(newData, mPacketStart[i], Math.min(length, mDataLen - mPacketStart[i]));
+            if (mPacketStart[i] + length > mDataLen) {
+                copyOut(newData, 0, length - (mDataLen - mPacketStart[i]));
+            }
+            offset += length;
+            count++;
+        }
+
+        if (mStorage == Storage.MAPPED_FILE) {
+            mBackingRaf.close();
+            if (!mBackingFile.delete() || !newFile.renameTo(mBackingFile)) {
+                Log.w(TAG, "unable to rename " + newFile + " to " + mBackingFile);
+                mBackingFile = newFile;
             }
-            index = (index + 1) % metaLen;
+            mBackingRaf = newRaf;
+        }
+
+        setDataBuffer(newData, newDataLen);
+        mPacketFlags = newFlags;
+        mPacketPtsUsec = newPts;
+        mPacketStart = newStart;
+        mPacketLength = newLength;
+        mPacketTrack = newTrack;
+        mSyncIndex = newSyncIndex;
+        mMetaTail = 0;
+        mMetaHead = count;
+        mSyncTail = 0;
+        mSyncHead = syncCount;
+        mDataUsed = offset;
+        mResizes++;
+        if (mPowerOfTwo && (Integer.bitCount(newDataLen) != 1 ||
+                Integer.bitCount(newMetaLen) != 1)) {
+            throw new RuntimeException("lost power-of-two capacity: " + newDataLen + "/" +
+                    newMetaLen);
+        }
+    }
+
+    /**
+     * Installs a new data buffer, and creates the views we use to access it.
+     */
+    private void setDataBuffer(ByteBuffer dataBuffer, int size) {
+        mDataBuffer = dataBuffer;
+        mDataCopyView = dataBuffer.duplicate();
+        mPartView0 = dataBuffer.duplicate();
+        mPartView1 = dataBuffer.duplicate();
+        mDataLen = size;
+    }
+
+    /**
+     * Sizes the file and maps it into memory.
+     */
+    private static ByteBuffer mapFile(RandomAccessFile raf, int size) throws IOException {
+        raf.setLength(size);
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Returns the index of the oldest sync frame.  Valid until the next add().
+     * <p>
+     * When sending output to a MediaMuxer, start here.
+     */
+    public int getFirstIndex() {
+        if (mSyncHead == mSyncTail) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+            return -1;
         }
+        return mSyncIndex[mSyncTail];
+    }
 
-        if (index == mMetaHead) {
+    /**
+     * Returns the index of the newest sync frame with a presentation time stamp at or before
+     * "ptsUsec".  If every sync frame is later than that, returns the oldest sync frame.
+     * Returns -1 if there are no sync frames in the buffer.  Valid until the next add().
+     * <p>
+     * Use this to find the starting point when saving a range of time.  Time stamps are
+     * assumed to increase monotonically, which is true for encoders that don't emit
+     * B-frames, so this is a binary search over the sync frames.
+     */
+    public int getSyncIndexAtOrBefore(long ptsUsec) {
+        int count = wrapMeta(mSyncHead + mPacketStart.length - mSyncTail);
+        if (count == 0) {
             Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+            return -1;
+        }
+
+        // Find the last entry with pts <= ptsUsec.  Invariant: entry "lo" qualifies (or
+        // lo is 0), entries past "hi" don't.
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mPacketPtsUsec[mSyncIndex[wrapMeta(mSyncTail + mid)]] <= ptsUsec) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return mSyncIndex[wrapMeta(mSyncTail + lo)];
+    }
+
+    /**
+     * Returns true if the encoder should be asked for a sync frame soon, to keep a place
+     * to start a save near the newest data.
+     * <p>
+     * Everything older than the oldest sync frame is useless, so when the encoder only
+     * makes sync frames on request, we ask for one once the newest sync frame is more than
+     * "fraction" of the way back through the buffer: by data, by meta-data slots, or (with
+     * a retention span) by time.  Evictions then never leave us with less than about
+     * (1 - fraction) of the buffer usable.  Also true if there's data but no sync frame.
+     *
+     * @param fraction How far back the newest sync frame may be, from 0 to 1.
+     */
+    public boolean isSyncFrameDue(float fraction) {
+        final int metaLen = mPacketStart.length;
+        if (mMetaHead == mMetaTail) {
+            return false;       // empty; the encoder's first frame is a sync frame anyway
+        }
+        if (mSyncHead == mSyncTail) {
+            return true;
+        }
+
+        int newestSync = mSyncIndex[wrapMeta(mSyncHead + metaLen - 1)];
+        int slotsSince = wrapMeta(mMetaHead - newestSync + metaLen);
+        if (slotsSince > (metaLen - 1) * fraction) {
+            return true;
+        }
+
+        // Packets are contiguous, so the data since the sync frame runs from its start to
+        // the head.  If it's the tail packet, that's everything.
+        int dataSince = (newestSync == mMetaTail) ? mDataUsed :
+                wrapData(getHeadStart() - mPacketStart[newestSync] + mDataLen);
+        if (dataSince > mDataLen * fraction) {
+            return true;
+        }
+
+        if (mRetentionUsec > 0) {
+            int beforeHead = wrapMeta(mMetaHead + metaLen - 1);
+            long timeSince = mPacketPtsUsec[beforeHead] - mPacketPtsUsec[newestSync];
+            return timeSince > mRetentionUsec * fraction;
         }
-        return index;
+        return false;
+    }
+
+    /**
+     * Returns the presentation time stamp of the packet at "index".
+     */
+    public long getPtsUsec(int index) {
+        return mPacketPtsUsec[index];
+    }
+
+    /**
+     * Returns the sequence number of the packet at "index".
+     */
+    public long getSequence(int index) {
+        int depth = wrapMeta(mMetaHead - index + mPacketStart.length);  // 1 for the newest
+        return mHeadSeq - depth;
+    }
+
+    /**
+     * Returns the track number of the packet at "index".
+     */
+    public int getTrack(int index) {
+        return mPacketTrack[index];
+    }
+
+    /**
+     * Returns the sequence number of the oldest packet in the buffer.  If the buffer is
+     * empty, this is equal to the head sequence number.
+     */
+    public long getTailSequence() {
+        return mHeadSeq - wrapMeta(mMetaHead - mMetaTail + mPacketStart.length);
+    }
+
+    /**
+     * Returns the sequence number that the next packet added will get.  All packets
+     * currently in the buffer have smaller sequence numbers.
+     */
+    public long getHeadSequence() {
+        return mHeadSeq;
+    }
+
+    /**
+     * Returns the index of the packet with sequence number "seq", or -1 if it has been
+     * evicted or hasn't been added yet.
+     */
+    public int getIndexForSequence(long seq) {
+        int count = wrapMeta(mMetaHead - mMetaTail + mPacketStart.length);
+        long tailSeq = mHeadSeq - count;
+        if (seq < tailSeq || seq >= mHeadSeq) {
+            return -1;
+        }
+        return wrapMeta(mMetaTail + (int) (seq - tailSeq));
+    }
+
+    /**
+     * Copies the packet with sequence number "seq" into a buffer owned by the caller, and
+     * fills in the BufferInfo.  This allows a packet to be used after it has been evicted,
+     * e.g. by a thread that writes a snapshot to disk while new packets are being added.
+     *
+     * @param dst Buffer to copy into.  If it's null or too small, a new direct buffer is
+     *     allocated; the caller should hang on to the returned buffer and pass it back in.
+     * @return The buffer holding the packet data, with position at zero and limit at the
+     *     end of the data, or null if the packet is no longer (or not yet) in the buffer.
+     */
+    public ByteBuffer copyChunk(long seq, ByteBuffer dst, MediaCodec.BufferInfo info) {
+        int index = getIndexForSequence(seq);
+        if (index < 0) {
+            return null;
+        }
+        int length = mPacketLength[index];
+        if (dst == null || dst.capacity() < length) {
+            dst = ByteBuffer.allocateDirect(Math.max(length, mLargestPacket));
+        }
+
+        ByteBuffer[] parts = mCopyParts;
+        int count = getChunkParts(index, info, parts);
+        dst.clear();
+        for (int i = 0; i < count; i++) {
+            dst.put(parts[i]);
+        }
+        dst.flip();
+        return dst;
     }
 
     /**
      * Returns the index of the next packet, or -1 if we've reached the end.
      */
     public int getNextIndex(int index) {
-        final int metaLen = mPacketStart.length;
-        int next = (index + 1) % metaLen;
+        int next = wrapMeta(index + 1);
         if (next == mMetaHead) {
             next = -1;
         }
@@ -191,14 +915,17 @@ public class CircularEncoderBuffer {
     }
 
     /**
-     * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
-     * BufferInfo.
+     * Returns a reference to a ByteBuffer with the data, and fills in the BufferInfo.
      * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
      * the position and limit is allowed.
+     * <p>
+     * If the packet wraps around the end of the circular buffer, the data is copied into a
+     * scratch buffer owned by this object, which is overwritten by the next such call.
+     * Consume the data before asking for the next chunk.
      */
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataLen;
         int packetStart = mPacketStart[index];
         int length = mPacketLength[index];
 
@@ -209,22 +936,97 @@ public class CircularEncoderBuffer {
 
         if (packetStart + length <= dataLen) {
             // one chunk; return full buffer to avoid copying data
-            return mDataBufferWrapper;
+            return mDataBuffer;
         } else {
             // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
+            if (mScratchBuffer == null || mScratchBuffer.capacity() < length) {
+                // Size for the largest packet in the stream so we don't have to do this again.
+                int size = Math.max(length, mLargestPacket);
+                if (VERBOSE) Log.d(TAG, "allocating scratch buffer, size=" + size);
+                mScratchBuffer = ByteBuffer.allocateDirect(size);
+            }
+            ByteBuffer tempBuf = mScratchBuffer;
+            tempBuf.clear();
             int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
+            copyOut(tempBuf, packetStart, firstSize);
+            copyOut(tempBuf, 0, length - firstSize);
+            tempBuf.flip();
             info.offset = 0;
             return tempBuf;
         }
     }
 
+    /**
+     * Fills in the BufferInfo, and sets "parts" to views of the packet data without copying
+     * anything.  Intended for writers that can do gathering writes, e.g.
+     * {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[], int, int)}.
+     * <p>
+     * Each view's position and limit span one piece of the packet.  info.offset is zero.
+     * The views are owned by this object and are reused by the next call.  The caller
+     * must not modify their contents.
+     *
+     * @param parts Array of at least two elements, filled in with the views.
+     * @return The number of views used: 1, or 2 if the packet wraps around the end.
+     */
+    public int getChunkParts(int index, MediaCodec.BufferInfo info, ByteBuffer[] parts) {
+        final int dataLen = mDataLen;
+        int packetStart = mPacketStart[index];
+        int length = mPacketLength[index];
+
+        info.flags = mPacketFlags[index];
+        info.offset = 0;
+        info.presentationTimeUs = mPacketPtsUsec[index];
+        info.size = length;
+
+        mPartView0.clear();
+        if (packetStart + length <= dataLen) {
+            mPartView0.position(packetStart);
+            mPartView0.limit(packetStart + length);
+            parts[0] = mPartView0;
+            return 1;
+        } else {
+            int firstSize = dataLen - packetStart;
+            mPartView0.position(packetStart);
+            parts[0] = mPartView0;
+            mPartView1.clear();
+            mPartView1.limit(length - firstSize);
+            parts[1] = mPartView1;
+            return 2;
+        }
+    }
+
+    /**
+     * Copies "count" bytes from the current position of "src" into the data buffer at
+     * "dstOffset".  Advances the position of "src".
+     */
+    private void copyIn(ByteBuffer src, int dstOffset, int count) {
+        int srcLimit = src.limit();
+        src.limit(src.position() + count);
+        mDataCopyView.clear();
+        mDataCopyView.position(dstOffset);
+        mDataCopyView.put(src);
+        src.limit(srcLimit);
+    }
+
+    /**
+     * Copies "count" bytes from the data buffer at "srcOffset" to the current position of
+     * "dst".  Advances the position of "dst".
+     */
+    private void copyOut(ByteBuffer dst, int srcOffset, int count) {
+        mDataCopyView.clear();
+        mDataCopyView.position(srcOffset);
+        mDataCopyView.limit(srcOffset + count);
+        dst.put(mDataCopyView);
+    }
+
     /**
      * Computes the data buffer offset for the next place to store data.
      * <p>
      * Equal to the start of the previous packet's data plus the previous packet's length.
+     * There's no gap between packets.  (There used to be a one-byte gap, but the space check
+     * accepted a packet that exactly filled the free space, which put the next head start
+     * one byte past the tail and made the whole buffer look free.)  With no gap, head start
+     * equal to the tail start in a non-empty buffer just means the data is full.
      */
     private int getHeadStart() {
         if (mMetaHead == mMetaTail) {
@@ -232,21 +1034,20 @@ public class CircularEncoderBuffer {
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
-
-        int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
-        return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) % dataLen;
+        int beforeHead = wrapMeta(mMetaHead + mPacketStart.length - 1);
+        return wrapData(mPacketStart[beforeHead] + mPacketLength[beforeHead]);
     }
 
     /**
      * Determines whether this is enough space to fit "size" bytes in the data buffer, and
      * one more packet in the meta-data buffer.
      *
-     * @return True if there is enough space to add without removing anything.
+     * @return ROOM_AVAILABLE if there is enough space to add without removing anything,
+     *     otherwise the reason a packet must be evicted (EVICT_META_FULL or
+     *     EVICT_DATA_FULL).
      */
-    private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
+    private int checkSpace(int size) {
+        final int dataLen = mDataLen;
         final int metaLen = mPacketStart.length;
 
         if (size > dataLen) {
@@ -255,47 +1056,88 @@ public class CircularEncoderBuffer {
         }
         if (mMetaHead == mMetaTail) {
             // empty list
-            return true;
+            return ROOM_AVAILABLE;
         }
 
         // Make sure we can advance head without stepping on the tail.
-        int nextHead = (mMetaHead + 1) % metaLen;
+        int nextHead = wrapMeta(mMetaHead + 1);
         if (nextHead == mMetaTail) {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of metadata (head=" + mMetaHead + " tail=" + mMetaTail +")");
             }
-            return false;
+            return EVICT_META_FULL;
         }
 
         // Need the byte offset of the start of the "tail" packet, and the byte offset where
         // "head" will store its data.
         int headStart = getHeadStart();
         int tailStart = mPacketStart[mMetaTail];
-        int freeSpace = (tailStart + dataLen - headStart) % dataLen;
+        int freeSpace = wrapData(tailStart + dataLen - headStart);
         if (size > freeSpace) {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of data (tailStart=" + tailStart + " headStart=" + headStart +
                     " req=" + size + " free=" + freeSpace + ")");
             }
-            return false;
+            return EVICT_DATA_FULL;
         }
 
         if (VERBOSE) {
             Log.v(TAG, "OK: size=" + size + " free=" + freeSpace + " metaFree=" +
-                    ((mMetaTail + metaLen - mMetaHead) % metaLen - 1));
+                    (wrapMeta(mMetaTail + metaLen - mMetaHead) - 1));
         }
 
-        return true;
+        return ROOM_AVAILABLE;
     }
 
     /**
      * Removes the tail packet.
+     *
+     * @param reason Why, for the stats: one of the EVICT_* constants.
      */
-    private void removeTail() {
+    private void removeTail(int reason) {
         if (mMetaHead == mMetaTail) {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
+        mEvictions[reason]++;
+        mDataUsed -= mPacketLength[mMetaTail];
+        if (mSyncHead != mSyncTail && mSyncIndex[mSyncTail] == mMetaTail) {
+            mSyncTail = wrapMeta(mSyncTail + 1);
+        }
+        mMetaTail = wrapMeta(mMetaTail + 1);
+    }
+
+    /**
+     * Wraps a data buffer offset in [0, 2 * dataLen) into [0, dataLen).
+     */
+    private int wrapData(int offset) {
+        if (mPowerOfTwo) {
+            return offset & (mDataLen - 1);
+        }
+        if (mModulusWrap) {
+            return offset % mDataLen;
+        }
+        return (offset >= mDataLen) ? offset - mDataLen : offset;
+    }
+
+    /**
+     * Wraps a meta-data index in [0, 2 * metaLen) into [0, metaLen).
+     */
+    private int wrapMeta(int index) {
         final int metaLen = mPacketStart.length;
-        mMetaTail = (mMetaTail + 1) % metaLen;
+        if (mPowerOfTwo) {
+            return index & (metaLen - 1);
+        }
+        if (mModulusWrap) {
+            return index % metaLen;
+        }
+        return (index >= metaLen) ? index - metaLen : index;
+    }
+
+    /**
+     * Returns the smallest power of two that is at least "n".
+     */
+    private static int roundUpPowerOfTwo(int n) {
+        int pow = Integer.highestOneBit(Math.max(n, 1));
+        return (pow == n) ? pow : pow << 1;
     }
 }
@@ -20,13 +20,22 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.util.Log;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages content generated by the app.
@@ -34,6 +43,11 @@ import java.util.ArrayList;
  * [ Originally this was going to prepare stuff on demand, but it's easier to just
  * create it all up front on first launch. ]
  * <p>
+ * Each movie has its own encoder and EGL context, so several can be generated at once.
+ * We run as many at a time as the device has hardware encoder instances for.  A manifest
+ * records the parameters and checksum of each file generated, and files that still match
+ * are left alone.
+ * <p>
  * Class is thread-safe.
  */
 public class ContentManager {
@@ -51,6 +65,11 @@ public class ContentManager {
             MOVIE_SLIDERS
     };
 
+    private static final String MANIFEST_FILE_NAME = "content-manifest.properties";
+    private static final String MIME_TYPE_AVC = "video/avc";    // what all our movies use
+    // Draw frames in software rather than with GLES; see GeneratedMovie.
+    private static final boolean SOFTWARE_FRAMES = false;
+
     // Housekeeping.
     private static final Object sLock = new Object();
     private static ContentManager sInstance = null;
@@ -58,6 +77,7 @@ public class ContentManager {
     private boolean mInitialized = false;
     private File mFilesDir;
     private ArrayList<Content> mContent;
+    private ContentManifest mManifest;
 
     /**
      * Returns the singleton instance.
@@ -78,7 +98,10 @@ public class ContentManager {
         synchronized (sLock) {
             if (!mgr.mInitialized) {
                 mgr.mFilesDir = context.getFilesDir();
-                mgr.mContent = new ArrayList<Content>();
+                mgr.mContent = new ArrayList<Content>(
+                        Collections.nCopies(ALL_TAGS.length, (Content) null));
+                mgr.mManifest = new ContentManifest(new File(mgr.mFilesDir,
+                        MANIFEST_FILE_NAME));
                 mgr.mInitialized = true;
             }
         }
@@ -87,18 +110,14 @@ public class ContentManager {
     /**
      * Returns true if all of the content has been created.
      * <p>
-     * If this returns false, call createAll.
+     * If this returns false, call createMissing.  This only checks the manifest and the
+     * file lengths; the checksums are verified when content is prepared.
      */
     public boolean isContentCreated(@SuppressWarnings("unused") Context unused) {
-        // Ideally this would probe each individual item to see if anything needs to be done,
-        // and a subsequent "prepare" call would generate only the necessary items.  This
-        // takes a much simpler approach and just checks to see if the files exist.  If the
-        // content changes the user will need to force a regen (via a menu option) or wipe data.
-
         for (int i = 0; i < ALL_TAGS.length; i++) {
             File file = getPath(i);
-            if (!file.canRead()) {
-                Log.d(TAG, "Can't find readable " + file);
+            if (!mManifest.isRecorded(file, createMovie(i).getParameters())) {
+                Log.d(TAG, "No up-to-date " + file);
                 return false;
             }
         }
@@ -111,7 +130,16 @@ public class ContentManager {
      * Call from main UI thread.
      */
     public void createAll(Activity caller) {
-        prepareContent(caller, ALL_TAGS);
+        prepareContent(caller, ALL_TAGS, true);
+    }
+
+    /**
+     * Creates whatever content is missing or out of date.
+     * <p>
+     * Call from main UI thread.
+     */
+    public void createMissing(Activity caller) {
+        prepareContent(caller, ALL_TAGS, false);
     }
 
     /**
@@ -119,16 +147,20 @@ public class ContentManager {
      * exist, this will post a progress dialog and generate the movie.
      * <p>
      * Call from main UI thread.  This returns immediately.  Content generation continues
-     * on a background thread.
+     * on a background thread.  Items that exist and match the manifest are left alone.
      */
     public void prepareContent(Activity caller, int[] tags) {
+        prepareContent(caller, tags, false);
+    }
+
+    private void prepareContent(Activity caller, int[] tags, boolean force) {
         // Put up the progress dialog.
         AlertDialog.Builder builder = WorkDialog.create(caller, R.string.preparing_content);
         builder.setCancelable(false);
         AlertDialog dialog = builder.show();
 
         // Generate content in async task.
-        GenerateTask genTask = new GenerateTask(caller, dialog, tags);
+        GenerateTask genTask = new GenerateTask(caller, dialog, tags, force);
         genTask.execute();
     }
 
@@ -141,31 +173,86 @@ public class ContentManager {
         }
     }
 
+    /**
+     * Returns true if the item was generated earlier and the file is intact.  Reads the
+     * whole file, so don't call this from the UI thread.
+     */
+    private boolean isPrepared(int tag) {
+        return mManifest.isValid(getPath(tag), createMovie(tag).getParameters());
+    }
+
     /**
      * Prepares the specified item.
      * <p>
-     * This may be called from the async task thread.
+     * This may be called from a generator thread; several items may be prepared at once.
      */
     private void prepare(ProgressUpdater prog, int tag) {
+        GeneratedMovie movie = createMovie(tag);
+        File file = getPath(tag);
+        try {
+            mManifest.remove(file);
+        } catch (IOException ioe) {
+            // Not fatal: the length or checksum won't match after the file is rewritten.
+            Log.w(TAG, "Unable to update content manifest", ioe);
+        }
+        movie.create(file, prog);
+        synchronized (mContent) {
+            mContent.set(tag, movie);
+        }
+        try {
+            mManifest.record(file, movie.getParameters());
+        } catch (IOException ioe) {
+            // Not fatal, we'll just generate it again next time.
+            Log.w(TAG, "Unable to update content manifest", ioe);
+        }
+    }
+
+    /**
+     * Creates the (not yet generated) movie for the tag.
+     */
+    private static GeneratedMovie createMovie(int tag) {
         GeneratedMovie movie;
         switch (tag) {
             case MOVIE_EIGHT_RECTS:
                 movie = new MovieEightRects();
-                movie.create(getPath(tag), prog);
-                synchronized (mContent) {
-                    mContent.add(tag, movie);
-                }
                 break;
             case MOVIE_SLIDERS:
                 movie = new MovieSliders();
-                movie.create(getPath(tag), prog);
-                synchronized (mContent) {
-                    mContent.add(tag, movie);
-                }
                 break;
             default:
                 throw new RuntimeException("Unknown tag " + tag);
         }
+        movie.setSoftwareFrames(SOFTWARE_FRAMES);
+        return movie;
+    }
+
+    /**
+     * Returns how many movies to generate at once: as many as the device says it can run
+     * hardware AVC encoders for, but no more than there are CPUs to draw the frames.
+     * Before API 23 there's no way to ask, so we do one at a time.
+     */
+    private static int getMaxConcurrentEncoders() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 1;
+        }
+        int instances = 0;
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            String name = info.getName();
+            if (!info.isEncoder() || name.startsWith("OMX.google.") ||
+                    name.startsWith("c2.android.")) {
+                continue;       // software codecs don't have instances to spare
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(MIME_TYPE_AVC)) {
+                    instances = Math.max(instances,
+                            info.getCapabilitiesForType(type).getMaxSupportedInstances());
+                }
+            }
+        }
+        int cpus = Runtime.getRuntime().availableProcessors();
+        Log.d(TAG, "AVC encoder instances: " + instances + ", CPUs: " + cpus);
+        return Math.max(1, Math.min(instances, cpus));
     }
 
     /**
@@ -198,59 +285,94 @@ public class ContentManager {
     }
 
     /**
-     * Performs generation of content on an async task thread.
+     * Performs generation of content.  The async task thread hands the items to a pool of
+     * generator threads and waits for them; progress is the total across all items.
      */
-    private static class GenerateTask extends AsyncTask<Void, Integer, Integer>
-            implements ProgressUpdater {
+    private static class GenerateTask extends AsyncTask<Void, Integer, Integer> {
         // ----- accessed from UI thread -----
         private final Context mContext;
         private final AlertDialog mPrepDialog;
         private final ProgressBar mProgressBar;
+        private final int[] mPercent;       // per item; -1 if not started
 
-        // ----- accessed from async thread -----
-        private int mCurrentIndex;
-
-        // ----- accessed from both -----
+        // ----- accessed from all -----
         private final int[] mTags;
+        private final boolean mForce;
         private volatile RuntimeException mFailure;
 
 
-        public GenerateTask(Context context, AlertDialog dialog, int[] tags) {
+        public GenerateTask(Context context, AlertDialog dialog, int[] tags, boolean force) {
             mContext = context;
             mPrepDialog = dialog;
             mTags = tags;
+            mForce = force;
+            mPercent = new int[tags.length];
+            Arrays.fill(mPercent, -1);
             mProgressBar = (ProgressBar) mPrepDialog.findViewById(R.id.work_progress);
             mProgressBar.setMax(tags.length * 100);
         }
 
         @Override // async task thread
         protected Integer doInBackground(Void... params) {
-            ContentManager contentManager = ContentManager.getInstance();
-
             Log.d(TAG, "doInBackground...");
+            long startWhen = System.nanoTime();
+
+            int threads = Math.min(mTags.length, getMaxConcurrentEncoders());
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
             for (int i = 0; i < mTags.length; i++) {
-                mCurrentIndex = i;
-                updateProgress(0);
+                final int index = i;
+                executor.execute(new Runnable() {
+                    @Override // generator thread
+                    public void run() {
+                        generate(index);
+                    }
+                });
+            }
+            executor.shutdown();
+            boolean done = false;
+            while (!done) {
                 try {
-                    contentManager.prepare(this, mTags[i]);
-                } catch (RuntimeException re) {
-                    mFailure = re;
-                    break;
+                    done = executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ie) {
+                    // ignore
                 }
-                updateProgress(100);
             }
 
             if (mFailure != null) {
                 Log.w(TAG, "Failed while generating content", mFailure);
             } else {
-                Log.d(TAG, "generation complete");
+                Log.d(TAG, "generation complete, " + threads + " at a time, in " +
+                        (System.nanoTime() - startWhen) / 1000000 + " ms");
             }
             return 0;
         }
 
-        @Override // async task thread
-        public void updateProgress(int percent) {
-            publishProgress(mCurrentIndex, percent);
+        /**
+         * Generates one item, unless it's already there or something else has failed.
+         */
+        private void generate(final int index) {
+            if (mFailure != null) {
+                return;
+            }
+            ContentManager contentManager = ContentManager.getInstance();
+            int tag = mTags[index];
+            publishProgress(index, 0);
+            if (!mForce && contentManager.isPrepared(tag)) {
+                Log.d(TAG, "keeping existing " + contentManager.getPath(tag));
+            } else {
+                try {
+                    contentManager.prepare(new ProgressUpdater() {
+                        @Override // generator thread
+                        public void updateProgress(int percent) {
+                            publishProgress(index, percent);
+                        }
+                    }, tag);
+                } catch (RuntimeException re) {
+                    mFailure = re;      // the first one is as good as any
+                    return;
+                }
+            }
+            publishProgress(index, 100);
         }
 
         @Override // UI thread
@@ -258,11 +380,26 @@ public class ContentManager {
             int index = progressArray[0];
             int percent = progressArray[1];
             //Log.d(TAG, "progress " + index + "/" + percent + " of " + mTags.length * 100);
-            if (percent == 0) {
+            int oldPercent = mPercent[index];
+            mPercent[index] = percent;
+
+            int total = 0;
+            StringBuilder names = new StringBuilder();
+            for (int i = 0; i < mTags.length; i++) {
+                total += Math.max(mPercent[i], 0);
+                if (mPercent[i] >= 0 && mPercent[i] < 100) {
+                    if (names.length() != 0) {
+                        names.append(", ");
+                    }
+                    names.append(ContentManager.getInstance().getFileName(mTags[i]));
+                }
+            }
+            if (oldPercent < 0 || percent == 100) {
+                // Started or finished one; show what's in progress now.
                 TextView name = (TextView) mPrepDialog.findViewById(R.id.workJobName_text);
-                name.setText(ContentManager.getInstance().getFileName(mTags[index]));
+                name.setText(names.toString());
             }
-            mProgressBar.setProgress(index * 100 + percent);
+            mProgressBar.setProgress(total);
         }
 
         @Override // UI thread
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers how each generated file was made, so it isn't made again needlessly.
+ * <p>
+ * For each file we store the parameters it was generated with, its length, and a CRC32 of
+ * its contents.  A file is only reused if all three still match; a file that's missing,
+ * truncated by a crash mid-write, or generated by an older version of the code is made
+ * again.  The manifest itself is a properties file next to the content.
+ * <p>
+ * No Android dependencies.  Class is thread-safe.
+ */
+class ContentManifest {
+    private static final String PARAMS_SUFFIX = ".params";
+    private static final String LENGTH_SUFFIX = ".length";
+    private static final String CRC_SUFFIX = ".crc32";
+
+    private final File mManifestFile;
+    private final Properties mEntries = new Properties();
+
+    /**
+     * Loads the manifest, if there is one.  An unreadable manifest is treated as empty.
+     */
+    public ContentManifest(File manifestFile) {
+        mManifestFile = manifestFile;
+        if (manifestFile.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(manifestFile);
+                mEntries.load(in);
+            } catch (IOException ioe) {
+                mEntries.clear();
+            } finally {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * Returns true if "file" is on record as generated with "params", and is still the
+     * length it was then.  Cheap enough for the UI thread.
+     */
+    public synchronized boolean isRecorded(File file, String params) {
+        String name = file.getName();
+        if (!params.equals(mEntries.getProperty(name + PARAMS_SUFFIX))) {
+            return false;
+        }
+        String length = mEntries.getProperty(name + LENGTH_SUFFIX);
+        return file.canRead() && String.valueOf(file.length()).equals(length);
+    }
+
+    /**
+     * Returns true if "file" is on record as generated with "params", and hasn't changed.
+     * Reads the whole file, without holding the lock, so checks of different files can
+     * run in parallel.
+     */
+    public boolean isValid(File file, String params) {
+        String expected;
+        synchronized (this) {
+            if (!isRecorded(file, params)) {
+                return false;
+            }
+            expected = mEntries.getProperty(file.getName() + CRC_SUFFIX);
+        }
+        try {
+            return String.valueOf(checksum(file)).equals(expected);
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Records that "file" was just generated with "params", and saves the manifest.  The
+     * file is read without holding the lock.
+     */
+    public void record(File file, String params) throws IOException {
+        String name = file.getName();
+        String length = String.valueOf(file.length());
+        String crc = String.valueOf(checksum(file));
+        synchronized (this) {
+            mEntries.setProperty(name + PARAMS_SUFFIX, params);
+            mEntries.setProperty(name + LENGTH_SUFFIX, length);
+            mEntries.setProperty(name + CRC_SUFFIX, crc);
+            save();
+        }
+    }
+
+    /**
+     * Forgets about "file", e.g. because it's about to be overwritten.
+     */
+    public synchronized void remove(File file) throws IOException {
+        String name = file.getName();
+        mEntries.remove(name + PARAMS_SUFFIX);
+        mEntries.remove(name + LENGTH_SUFFIX);
+        mEntries.remove(name + CRC_SUFFIX);
+        save();
+    }
+
+    /**
+     * Writes the manifest to a temporary file, then renames it over the old one, so a crash
+     * can't leave a half-written manifest behind.
+     */
+    private void save() throws IOException {
+        File tmpFile = new File(mManifestFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmpFile);
+        try {
+            mEntries.store(out, "generated content");
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(mManifestFile)) {
+            throw new IOException("Unable to rename " + tmpFile + " to " + mManifestFile);
+        }
+    }
+
+    /**
+     * Computes the CRC32 of a file's contents.
+     */
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[65536];
+        InputStream in = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = in.read(buf)) > 0) {
+                crc.update(buf, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
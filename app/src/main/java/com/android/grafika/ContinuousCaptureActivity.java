@@ -30,7 +30,9 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
 import android.view.WindowManager;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.app.Activity;
@@ -55,6 +57,14 @@ import java.lang.ref.WeakReference;
  * notified.  That can happen on an arbitrary thread, so we use it to send a message
  * through our Handler.  That causes us to render the new frame to the display and to
  * our video encoder.
+ * <p>
+ * We actually feed two encoders from the same camera frames: a short window at full
+ * resolution and a high bit rate, and a long window at a quarter of the resolution and a
+ * low bit rate.  The low-quality window costs about a tenth of the memory per second, and
+ * is kept in a memory-mapped file, so we can hold minutes of history.  The save button
+ * writes either window, or both: the long window up to where the short one starts, followed
+ * by the short one.  The two streams have different resolutions, so they can't share a
+ * track; the spliced save produces two adjoining files.
  */
 public class ContinuousCaptureActivity extends Activity implements SurfaceHolder.Callback,
         SurfaceTexture.OnFrameAvailableListener {
@@ -64,6 +74,18 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     private static final int VIDEO_HEIGHT = 720;
     private static final int DESIRED_PREVIEW_FPS = 15;
 
+    private static final int SHORT_BIT_RATE = 6000000;
+    private static final int SHORT_SPAN_SEC = 10;
+    private static final int LONG_WIDTH = 640;      // 360p for the long window
+    private static final int LONG_HEIGHT = 360;
+    private static final int LONG_BIT_RATE = 500000;
+    private static final int LONG_SPAN_SEC = 300;
+
+    // Values for the save window spinner; must match R.array.captureWindowNames.
+    private static final int SAVE_SHORT = 0;
+    private static final int SAVE_LONG = 1;
+    private static final int SAVE_SPLICED = 2;
+
     private EglCore mEglCore;
     private WindowSurface mDisplaySurface;
     private SurfaceTexture mCameraTexture;  // receives the output from the camera preview
@@ -78,10 +100,16 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     private File mOutputFile;
     private CircularEncoder mCircEncoder;
     private WindowSurface mEncoderSurface;
+    private File mLongOutputFile;
+    private CircularEncoder mLongEncoder;
+    private WindowSurface mLongEncoderSurface;
     private boolean mFileSaveInProgress;
+    private int mSavesPending;
+    private int mSaveStatus;
 
     private MainHandler mHandler;
     private float mSecondsOfVideo;
+    private float mSecondsOfLongVideo;
 
     /**
      * Custom message handler for main UI thread.
@@ -94,14 +122,34 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         public static final int MSG_FRAME_AVAILABLE = 1;
         public static final int MSG_FILE_SAVE_COMPLETE = 2;
         public static final int MSG_BUFFER_STATUS = 3;
+        public static final int MSG_LONG_BUFFER_STATUS = 4;
 
         private WeakReference<ContinuousCaptureActivity> mWeakActivity;
 
+        // Callback for the long-window encoder.  Save completions are handled the same
+        // way; buffer status gets its own message.
+        private final CircularEncoder.Callback mLongCallback = new CircularEncoder.Callback() {
+            @Override
+            public void fileSaveComplete(int status) {
+                MainHandler.this.fileSaveComplete(status);
+            }
+
+            @Override
+            public void bufferStatus(long totalTimeMsec) {
+                sendMessage(obtainMessage(MSG_LONG_BUFFER_STATUS,
+                        (int) (totalTimeMsec >> 32), (int) totalTimeMsec));
+            }
+        };
+
         public MainHandler(ContinuousCaptureActivity activity) {
             mWeakActivity = new WeakReference<ContinuousCaptureActivity>(activity);
         }
 
-        // CircularEncoder.Callback, called on encoder thread
+        public CircularEncoder.Callback getLongCallback() {
+            return mLongCallback;
+        }
+
+        // CircularEncoder.Callback, called on encoder or save thread
         @Override
         public void fileSaveComplete(int status) {
             sendMessage(obtainMessage(MSG_FILE_SAVE_COMPLETE, status, 0, null));
@@ -155,6 +203,12 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
                     activity.updateBufferStatus(duration);
                     break;
                 }
+                case MSG_LONG_BUFFER_STATUS: {
+                    long duration = (((long) msg.arg1) << 32) |
+                                    (((long) msg.arg2) & 0xffffffffL);
+                    activity.updateLongBufferStatus(duration);
+                    break;
+                }
                 default:
                     throw new RuntimeException("Unknown message " + msg.what);
             }
@@ -173,8 +227,16 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         mHandler = new MainHandler(this);
         mHandler.sendEmptyMessageDelayed(MainHandler.MSG_BLINK_TEXT, 1500);
 
+        Spinner spinner = (Spinner) findViewById(R.id.captureWindow_spinner);
+        ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(this,
+                R.array.captureWindowNames, android.R.layout.simple_spinner_item);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinner.setAdapter(adapter);
+
         mOutputFile = new File(getFilesDir(), "continuous-capture.mp4");
+        mLongOutputFile = new File(getFilesDir(), "continuous-capture-long.mp4");
         mSecondsOfVideo = 0.0f;
+        mSecondsOfLongVideo = 0.0f;
         updateControls();
     }
 
@@ -202,10 +264,22 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
 
         releaseCamera();
 
+        if (mEncoderSurface != null) {
+            mEncoderSurface.release();
+            mEncoderSurface = null;
+        }
+        if (mLongEncoderSurface != null) {
+            mLongEncoderSurface.release();
+            mLongEncoderSurface = null;
+        }
         if (mCircEncoder != null) {
             mCircEncoder.shutdown();
             mCircEncoder = null;
         }
+        if (mLongEncoder != null) {
+            mLongEncoder.shutdown();
+            mLongEncoder = null;
+        }
         if (mCameraTexture != null) {
             mCameraTexture.release();
             mCameraTexture = null;
@@ -305,11 +379,13 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
      * Updates the current state of the controls.
      */
     private void updateControls() {
-        String str = getString(R.string.secondsOfVideo, mSecondsOfVideo);
+        String str = getString(R.string.secondsOfDualVideo, mSecondsOfVideo,
+                mSecondsOfLongVideo);
         TextView tv = (TextView) findViewById(R.id.capturedVideoDesc_text);
         tv.setText(str);
 
-        boolean wantEnabled = (mCircEncoder != null) && !mFileSaveInProgress;
+        boolean wantEnabled = (mCircEncoder != null) && (mLongEncoder != null) &&
+                !mFileSaveInProgress;
         Button button = (Button) findViewById(R.id.capture_button);
         if (button.isEnabled() != wantEnabled) {
             Log.d(TAG, "setting enabled = " + wantEnabled);
@@ -329,14 +405,40 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
 
         // The button is disabled in onCreate(), and not enabled until the encoder and output
         // surface is ready, so it shouldn't be possible to get here with a null mCircEncoder.
+        Spinner spinner = (Spinner) findViewById(R.id.captureWindow_spinner);
+        int window = spinner.getSelectedItemPosition();
+        mSaveStatus = 0;
+        switch (window) {
+            case SAVE_SHORT:
+                mSavesPending = 1;
+                mCircEncoder.saveVideo(mOutputFile);
+                break;
+            case SAVE_LONG:
+                mSavesPending = 1;
+                mLongEncoder.saveVideo(mLongOutputFile);
+                break;
+            case SAVE_SPLICED: {
+                // Both encoders get the camera timestamps, so they share a time base.  Take
+                // the long window up to the first frame the short window can provide.
+                long cutUsec = mCircEncoder.getBufferStartUsec();
+                if (cutUsec < 0) {
+                    Log.w(TAG, "nothing in the short window yet");
+                    return;
+                }
+                mSavesPending = 2;
+                mLongEncoder.saveVideo(mLongOutputFile, 0, cutUsec - 1);
+                mCircEncoder.saveVideo(mOutputFile);
+                break;
+            }
+            default:
+                throw new RuntimeException("unknown save window " + window);
+        }
+
         mFileSaveInProgress = true;
         updateControls();
         TextView tv = (TextView) findViewById(R.id.recording_text);
         String str = getString(R.string.nowSaving);
         tv.setText(str);
-
-
-        mCircEncoder.saveVideo(mOutputFile);
     }
 
     /**
@@ -347,6 +449,13 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         if (!mFileSaveInProgress) {
             throw new RuntimeException("WEIRD: got fileSaveCmplete when not in progress");
         }
+        if (status != 0) {
+            mSaveStatus = status;
+        }
+        if (--mSavesPending > 0) {
+            return;     // wait for the other window
+        }
+        status = mSaveStatus;
         mFileSaveInProgress = false;
         updateControls();
         TextView tv = (TextView) findViewById(R.id.recording_text);
@@ -368,6 +477,24 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     private void updateBufferStatus(long durationUsec) {
         mSecondsOfVideo = durationUsec / 1000000.0f;
         updateControls();
+
+        if (mCircEncoder != null) {
+            CircularEncoderBuffer.Stats stats = mCircEncoder.getBufferStats();
+            TextView tv = (TextView) findViewById(R.id.bufferStats_text);
+            tv.setText(getString(R.string.circularBufferStats,
+                    stats.dataBytesUsed / 1024, stats.dataCapacity / 1024,
+                    stats.metaSlotsUsed, stats.metaCapacity, stats.syncFrames,
+                    stats.largestPacket / 1024, stats.evictedDataFull, stats.evictedMetaFull,
+                    stats.evictedByAge, stats.wrapSplitPackets));
+        }
+    }
+
+    /**
+     * Updates the buffer status UI for the long window.
+     */
+    private void updateLongBufferStatus(long durationUsec) {
+        mSecondsOfLongVideo = durationUsec / 1000000.0f;
+        updateControls();
     }
 
 
@@ -409,13 +536,24 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         // TODO: adjust bit rate based on frame rate?
         // TODO: adjust video width/height based on what we're getting from the camera preview?
         //       (can we guarantee that camera preview size is compatible with AVC video encoder?)
+        int fps = mCameraPreviewThousandFps / 1000;
         try {
-            mCircEncoder = new CircularEncoder(VIDEO_WIDTH, VIDEO_HEIGHT, 6000000,
-                    mCameraPreviewThousandFps / 1000, 7, mHandler);
+            mCircEncoder = new CircularEncoder(VIDEO_WIDTH, VIDEO_HEIGHT, SHORT_BIT_RATE,
+                    fps, SHORT_SPAN_SEC, mHandler);
+            // The long window is mostly idle data, so keep it out of the Java heap.
+            mLongEncoder = new CircularEncoder(LONG_WIDTH, LONG_HEIGHT, LONG_BIT_RATE,
+                    fps, LONG_SPAN_SEC, CircularEncoderBuffer.Storage.MAPPED_FILE,
+                    new File(getCacheDir(), "continuous-capture-long.ring"),
+                    mHandler.getLongCallback());
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+        // Hold the full spans no matter what bit rate the encoders actually deliver.
+        mCircEncoder.setRetentionBounds(1024 * 1024, 24 * 1024 * 1024);
+        mLongEncoder.setRetentionBounds(4 * 1024 * 1024, 48 * 1024 * 1024);
         mEncoderSurface = new WindowSurface(mEglCore, mCircEncoder.getInputSurface(), true);
+        mLongEncoderSurface = new WindowSurface(mEglCore, mLongEncoder.getInputSurface(),
+                true);
 
         updateControls();
     }
@@ -482,16 +620,25 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         drawExtra(mFrameNum, viewWidth, viewHeight);
         mDisplaySurface.swapBuffers();
 
-        // Send it to the video encoder.
-        if (!mFileSaveInProgress) {
-            mEncoderSurface.makeCurrent();
-            GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
-            drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mCircEncoder.frameAvailableSoon();
-            mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
-            mEncoderSurface.swapBuffers();
-        }
+        // Send it to the video encoder.  We keep doing this while a file save is in
+        // progress, since the save happens on its own thread.
+        mEncoderSurface.makeCurrent();
+        GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
+        drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mCircEncoder.frameAvailableSoon();
+        mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
+        mEncoderSurface.swapBuffers();
+
+        // Same frame, drawn at the smaller size, for the long window.  Passing the same
+        // timestamp keeps the two buffers in the same time base.
+        mLongEncoderSurface.makeCurrent();
+        GLES20.glViewport(0, 0, LONG_WIDTH, LONG_HEIGHT);
+        mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
+        drawExtra(mFrameNum, LONG_WIDTH, LONG_HEIGHT);
+        mLongEncoder.frameAvailableSoon();
+        mLongEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
+        mLongEncoderSurface.swapBuffers();
 
         mFrameNum++;
     }
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the encoded output of a VideoEncoderCore.
+ * <p>
+ * Methods are called on whichever thread drains the encoder, so they should return
+ * quickly: copy what's needed and hand slow work (like I/O) to another thread.
+ */
+public interface EncoderSink {
+    /**
+     * Called with the encoder's output format, which carries the codec-specific data.
+     * Comes before any samples.
+     */
+    void formatChanged(MediaFormat format);
+
+    /**
+     * Called for each encoded frame.  Codec config buffers are not passed along, since
+     * they're in the format.
+     *
+     * @param buf The frame data, from position() to limit().  Only valid during the call.
+     * @param info Flags and presentation time.  Must not be modified.
+     */
+    void sampleAvailable(ByteBuffer buf, MediaCodec.BufferInfo info);
+
+    /**
+     * Called when the sink is removed, or the encoder is released.  No other calls follow.
+     * <p>
+     * This one isn't called while output is being delivered, so it may block to finish
+     * up, e.g. to wait for a file to be written out.
+     */
+    void detached();
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Decides which rendered frames go to the encoder, and with what presentation time.
+ * <p>
+ * Rendering usually runs at the display refresh rate, which is more than a recording
+ * needs.  Every candidate frame is offered to frameAvailable(), which returns the time
+ * stamp to give the encoder, or -1 to leave the frame out.  Modes:
+ * <ul>
+ * <li>Target frame rate: time is divided into slots of 1/fps, and the first frame at or
+ *     shortly before each slot is kept.  Its time stamp is moved onto the slot, so the
+ *     output is evenly spaced even if the input jitters or doesn't divide evenly (e.g.
+ *     24fps from 60Hz).
+ * <li>Time-lapse: one frame is kept per capture interval, and kept frames are stamped
+ *     one playback frame apart, so an hour at one frame per second plays back at 30fps in
+ *     two minutes.
+ * <li>Drop duplicates: frames the caller says are unchanged are left out, up to a limit,
+ *     so a static scene costs next to nothing.  The previous frame just stays on screen
+ *     longer during playback.
+ * </ul>
+ * Duplicate dropping can be combined with either of the others.  With none set, every
+ * frame passes through unchanged.
+ * <p>
+ * No Android dependencies.  Not thread-safe; use it from the thread that renders frames.
+ */
+public class FrameRateGovernor {
+    private static final long NANOS_PER_SEC = 1000000000L;
+
+    private long mSlotNanos;            // 0 for no rate limit
+    private long mPlaybackFrameNanos;   // nonzero in time-lapse mode
+    private boolean mDropDuplicates;
+    private long mMaxHoldNanos;
+
+    private long mBaseNanos = -1;
+    private long mLastSlot;
+    private long mLastKeptNanos;
+    private long mKeptSinceReset;
+    private boolean mChangePending;
+    private long mKeptFrames;
+    private long mDroppedFrames;
+
+    /**
+     * Keeps at most "fps" frames per second, or every frame if "fps" is zero.  Turns
+     * time-lapse off.  Changing modes restarts the slot grid at the next frame.
+     */
+    public void setTargetFps(float fps) {
+        mSlotNanos = fps > 0 ? (long) (NANOS_PER_SEC / (double) fps) : 0;
+        mPlaybackFrameNanos = 0;
+        reset();
+    }
+
+    /**
+     * Keeps one frame per "captureIntervalNanos", stamped so they play back at
+     * "playbackFps".
+     */
+    public void setTimeLapse(long captureIntervalNanos, int playbackFps) {
+        if (captureIntervalNanos <= 0 || playbackFps <= 0) {
+            throw new IllegalArgumentException("bad time-lapse interval or rate");
+        }
+        mSlotNanos = captureIntervalNanos;
+        mPlaybackFrameNanos = NANOS_PER_SEC / playbackFps;
+        reset();
+    }
+
+    /**
+     * Enables or disables dropping of unchanged frames.  Even when nothing changes, a frame
+     * is kept every "maxHoldNanos", so players don't think the stream has stalled.
+     */
+    public void setDropDuplicates(boolean enable, long maxHoldNanos) {
+        mDropDuplicates = enable;
+        mMaxHoldNanos = maxHoldNanos;
+    }
+
+    /**
+     * Offers a rendered frame.
+     *
+     * @param timestampNanos When the frame was rendered, on a monotonic clock.
+     * @param contentChanged False if the frame looks the same as the one before it.
+     *     Ignored unless duplicates are being dropped.
+     * @return The presentation time for the encoder, in nanoseconds, or -1 if the frame
+     *     shouldn't be recorded.
+     */
+    public long frameAvailable(long timestampNanos, boolean contentChanged) {
+        if (mBaseNanos < 0) {
+            // First frame: always kept, and starts the slot grid.
+            mBaseNanos = timestampNanos;
+            mLastSlot = 0;
+            return keep(timestampNanos, timestampNanos);
+        }
+        mChangePending |= contentChanged;
+
+        long slot = 0;
+        if (mSlotNanos != 0) {
+            // A frame that's a little early for its slot still gets it.  Not too early,
+            // though: a 60Hz frame halfway between two 30fps slots shouldn't count.
+            slot = (timestampNanos - mBaseNanos + mSlotNanos / 4) / mSlotNanos;
+            if (slot <= mLastSlot) {
+                return drop();
+            }
+        }
+        if (mDropDuplicates && !mChangePending &&
+                timestampNanos - mLastKeptNanos < mMaxHoldNanos) {
+            return drop();
+        }
+
+        long ptsNanos;
+        if (mPlaybackFrameNanos != 0) {
+            ptsNanos = mBaseNanos + mKeptSinceReset * mPlaybackFrameNanos;
+        } else if (mSlotNanos != 0) {
+            ptsNanos = mBaseNanos + slot * mSlotNanos;
+        } else {
+            ptsNanos = timestampNanos;
+        }
+        mLastSlot = slot;
+        return keep(timestampNanos, ptsNanos);
+    }
+
+    /**
+     * Returns the number of frames kept so far.
+     */
+    public long getKeptFrames() {
+        return mKeptFrames;
+    }
+
+    /**
+     * Returns the number of frames left out so far.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private long keep(long timestampNanos, long ptsNanos) {
+        mLastKeptNanos = timestampNanos;
+        mChangePending = false;
+        mKeptSinceReset++;
+        mKeptFrames++;
+        return ptsNanos;
+    }
+
+    private long drop() {
+        mDroppedFrames++;
+        return -1;
+    }
+
+    private void reset() {
+        mBaseNanos = -1;
+        mKeptSinceReset = 0;
+        mChangePending = false;
+    }
+}
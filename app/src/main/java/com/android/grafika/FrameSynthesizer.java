@@ -0,0 +1,299 @@
+/*
+ * Copyright 2013 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Draws movie frames in software, into YUV 4:2:0 buffers that can be copied straight into
+ * encoder input buffers.
+ * <p>
+ * Frames are drawn on a fork-join pool, several frames ahead of the consumer, so the
+ * drawing for the next few frames overlaps with encoding the current one.  Each frame is
+ * also split into horizontal bands that are drawn in parallel, so a single large frame
+ * doesn't leave cores idle.  Frame buffers come from a fixed pool; the consumer hands each
+ * one back with release() when it's done with it, which limits how far ahead we get.
+ * <p>
+ * The drawing model is deliberately tiny -- solid fills -- because that's all the
+ * generated movies need, and it matches what they do with GLES (glScissor + glClear).
+ * Coordinates are GL-style, with (0,0) at the bottom left, so the same drawing code works
+ * with either.
+ * <p>
+ * No Android dependencies.  take() and release() must be called from a single thread.
+ */
+public class FrameSynthesizer {
+    // Bands are at least this tall.  Must be even, so chroma rows don't straddle bands.
+    private static final int MIN_BAND_ROWS = 32;
+
+    /**
+     * Somewhere to draw.
+     */
+    public interface Canvas {
+        /**
+         * Fills the whole frame with a color.  Components are 0.0 - 1.0.
+         */
+        void clear(float red, float green, float blue);
+
+        /**
+         * Fills a rectangle with a color.  (x,y) is the bottom-left corner.  The rectangle
+         * is clipped to the frame.
+         */
+        void fillRect(int x, int y, int width, int height, float red, float green, float blue);
+    }
+
+    /**
+     * Supplies the frames of a movie.
+     */
+    public interface FrameSource {
+        /**
+         * Draws frame N.  Called from several threads at once, each with a canvas covering
+         * part of the frame, so don't keep state between calls.
+         */
+        void drawFrame(int frameIndex, Canvas canvas);
+
+        /**
+         * Returns the presentation time for frame N, in nanoseconds.
+         */
+        long getPresentationTimeNsec(int frameIndex);
+    }
+
+    /**
+     * A finished frame.
+     */
+    public static class Frame {
+        private final ByteBuffer mBuffer;
+        private int mIndex;
+        private RecursiveAction mTask;
+
+        private Frame(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        /**
+         * Returns the frame's position in the movie.
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * Returns the pixel data.  Position is zero and limit is the frame size.
+         */
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mSemiPlanar;
+    private final FrameSource mSource;
+    private final int mNumFrames;
+    private final ForkJoinPool mPool;
+
+    private final ArrayDeque<Frame> mFreeFrames = new ArrayDeque<Frame>();
+    private final ArrayDeque<Frame> mPendingFrames = new ArrayDeque<Frame>();
+    private int mNextFrame;
+
+    /**
+     * Creates the frame pool and starts drawing.
+     *
+     * @param width Frame width; must be even.
+     * @param height Frame height; must be even.
+     * @param semiPlanar If set, frames are NV12 (Y plane, then interleaved U/V).
+     *     Otherwise they're I420 (Y plane, U plane, V plane).
+     * @param source What to draw.
+     * @param numFrames How many frames there are.
+     * @param framesAhead How many frame buffers to use.  One is with the consumer, the rest
+     *     are being drawn or waiting.
+     * @param parallelism How many threads to draw with.
+     */
+    public FrameSynthesizer(int width, int height, boolean semiPlanar, FrameSource source,
+            int numFrames, int framesAhead, int parallelism) {
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("bad frame size " + width + "x" + height);
+        }
+        if (framesAhead < 1) {
+            throw new IllegalArgumentException("need at least one frame buffer");
+        }
+        mWidth = width;
+        mHeight = height;
+        mSemiPlanar = semiPlanar;
+        mSource = source;
+        mNumFrames = numFrames;
+        mPool = new ForkJoinPool(parallelism);
+
+        int frameSize = getFrameSize(width, height);
+        for (int i = 0; i < framesAhead; i++) {
+            mFreeFrames.add(new Frame(ByteBuffer.allocate(frameSize)));
+        }
+        scheduleFrames();
+    }
+
+    /**
+     * Returns the size, in bytes, of a YUV 4:2:0 frame.
+     */
+    public static int getFrameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Returns the next frame, waiting for it to be drawn if necessary, or null if all
+     * frames have been returned.  Pass the frame to release() when done with it.
+     */
+    public Frame take() {
+        Frame frame = mPendingFrames.poll();
+        if (frame == null) {
+            return null;
+        }
+        frame.mTask.join();         // rethrows anything the source threw
+        frame.mTask = null;
+        frame.mBuffer.clear();
+        return frame;
+    }
+
+    /**
+     * Returns a frame's buffer to the pool, so another frame can be drawn into it.
+     */
+    public void release(Frame frame) {
+        mFreeFrames.add(frame);
+        scheduleFrames();
+    }
+
+    /**
+     * Stops the drawing threads.  Frames already being drawn are abandoned.
+     */
+    public void shutdown() {
+        mPool.shutdownNow();
+    }
+
+    /**
+     * Starts drawing frames into whatever buffers are free.
+     */
+    private void scheduleFrames() {
+        while (mNextFrame < mNumFrames && !mFreeFrames.isEmpty()) {
+            Frame frame = mFreeFrames.poll();
+            frame.mIndex = mNextFrame++;
+            frame.mTask = new BandTask(frame, 0, mHeight);
+            mPendingFrames.add(frame);
+            mPool.execute(frame.mTask);
+        }
+    }
+
+    /**
+     * Draws rows [top, bottom) of a frame, splitting the work if there's a lot of it.
+     */
+    private class BandTask extends RecursiveAction {
+        private final Frame mFrame;
+        private final int mTop;
+        private final int mBottom;
+
+        BandTask(Frame frame, int top, int bottom) {
+            mFrame = frame;
+            mTop = top;
+            mBottom = bottom;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = mBottom - mTop;
+            if (rows < MIN_BAND_ROWS * 2) {
+                mSource.drawFrame(mFrame.mIndex, new BandCanvas(mFrame.mBuffer, mTop, mBottom));
+                return;
+            }
+            int middle = mTop + ((rows / 2) & ~1);
+            invokeAll(new BandTask(mFrame, mTop, middle), new BandTask(mFrame, middle, mBottom));
+        }
+    }
+
+    /**
+     * Draws into rows [top, bottom) of a frame, counting from the top of the image.
+     */
+    private class BandCanvas implements Canvas {
+        private final byte[] mData;
+        private final int mTop;
+        private final int mBottom;
+
+        BandCanvas(ByteBuffer buffer, int top, int bottom) {
+            mData = buffer.array();
+            mTop = top;
+            mBottom = bottom;
+        }
+
+        @Override
+        public void clear(float red, float green, float blue) {
+            fillRect(0, 0, mWidth, mHeight, red, green, blue);
+        }
+
+        @Override
+        public void fillRect(int x, int y, int width, int height, float red, float green,
+                float blue) {
+            // Flip to image rows, and clip to the frame and our band.
+            int left = Math.max(x, 0);
+            int right = Math.min(x + width, mWidth);
+            int top = Math.max(mHeight - (y + height), mTop);
+            int bottom = Math.min(mHeight - y, mBottom);
+            if (left >= right || top >= bottom) {
+                return;
+            }
+
+            // BT.601, limited range.
+            byte luma = toByte(16 + 65.481f * red + 128.553f * green + 24.966f * blue);
+            byte cb = toByte(128 - 37.797f * red - 74.203f * green + 112.0f * blue);
+            byte cr = toByte(128 + 112.0f * red - 93.786f * green - 18.214f * blue);
+
+            for (int row = top; row < bottom; row++) {
+                int offset = row * mWidth;
+                Arrays.fill(mData, offset + left, offset + right, luma);
+            }
+
+            // Chroma is subsampled 2x2.  A half-covered chroma sample gets the new color.
+            int chromaLeft = left / 2;
+            int chromaRight = (right + 1) / 2;
+            int chromaTop = top / 2;
+            int chromaBottom = (bottom + 1) / 2;
+            int chromaWidth = mWidth / 2;
+            int uPlane = mWidth * mHeight;
+            if (mSemiPlanar) {
+                for (int row = chromaTop; row < chromaBottom; row++) {
+                    int offset = uPlane + row * mWidth;
+                    for (int col = chromaLeft; col < chromaRight; col++) {
+                        mData[offset + col * 2] = cb;
+                        mData[offset + col * 2 + 1] = cr;
+                    }
+                }
+            } else {
+                int vPlane = uPlane + chromaWidth * (mHeight / 2);
+                for (int row = chromaTop; row < chromaBottom; row++) {
+                    int offset = row * chromaWidth;
+                    Arrays.fill(mData, uPlane + offset + chromaLeft,
+                            uPlane + offset + chromaRight, cb);
+                    Arrays.fill(mData, vPlane + offset + chromaLeft,
+                            vPlane + offset + chromaRight, cr);
+                }
+            }
+        }
+    }
+
+    private static byte toByte(float value) {
+        return (byte) Math.max(0, Math.min(255, Math.round(value)));
+    }
+}
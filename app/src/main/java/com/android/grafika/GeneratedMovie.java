@@ -16,15 +16,19 @@
 
 package com.android.grafika;
 
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.opengl.GLES20;
+import android.os.Build;
 import android.util.Log;
 import android.view.Surface;
 
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.WindowSurface;
+import com.zoomda.composable.MuxerWriter;
 
 import java.io.File;
 import java.io.IOException;
@@ -32,12 +36,26 @@ import java.nio.ByteBuffer;
 
 /**
  * Base class for generated movies.
+ * <p>
+ * Sub-classes say what each frame looks like through the FrameSource methods, and
+ * encodeMovie() does the rest.  Normally the frames are drawn with GLES onto the
+ * encoder's input surface, one at a time.  With setSoftwareFrames(true) they're drawn in
+ * software by a FrameSynthesizer, several at once on all cores, and copied into the
+ * encoder's input buffers instead.
+ * <p>
+ * Encoders pad and arrange YUV input in their own ways, so the copy goes plane by plane
+ * through the Image from MediaCodec.getInputImage(), honoring its row and pixel strides.
+ * Codecs that don't offer an Image get the layout described by the input format's stride
+ * and slice height.
  */
-public abstract class GeneratedMovie implements Content {
+public abstract class GeneratedMovie implements Content, FrameSynthesizer.FrameSource {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
     private static final int IFRAME_INTERVAL = 5;
+    private static final int MUXER_QUEUE_DEPTH = 30;
+    private static final int SYNTH_FRAMES_AHEAD = 4;
+    private static final long INPUT_TIMEOUT_USEC = 10000;
 
     // set by sub-class to indicate that the movie has been generated
     // TODO: remove this now?
@@ -46,17 +64,227 @@ public abstract class GeneratedMovie implements Content {
     // "live" state during recording
     private MediaCodec.BufferInfo mBufferInfo;
     private MediaCodec mEncoder;
-    private MediaMuxer mMuxer;
+    private MuxerWriter mMuxer;
     private EglCore mEglCore;
     private WindowSurface mInputSurface;
     private int mTrackIndex;
     private boolean mMuxerStarted;
+    private boolean mSoftwareFrames;
+    private int mColorFormat;
+    // Input buffer layout, for codecs that don't give us an Image.
+    private int mInputStride;
+    private int mInputSliceHeight;
 
     /**
      * Creates the movie content.  Usually called from an async task thread.
      */
     public abstract void create(File outputFile, ContentManager.ProgressUpdater prog);
 
+    /**
+     * Returns a description of everything that goes into the movie.  If the string changes,
+     * previously generated copies are considered stale and are made again, so it should
+     * change whenever the output would (including changes to the drawing code).
+     */
+    public abstract String getParameters();
+
+    /**
+     * Selects software frame drawing, with ByteBuffer input to the encoder, rather than
+     * GLES on an input surface.  Needs API 21; ignored on older devices.
+     */
+    public void setSoftwareFrames(boolean softwareFrames) {
+        mSoftwareFrames = softwareFrames &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Returns true if frames will be drawn in software.
+     */
+    public boolean isSoftwareFrames() {
+        return mSoftwareFrames;
+    }
+
+    /**
+     * Generates the movie: prepares the encoder, draws and encodes every frame, and
+     * releases the encoder.
+     */
+    protected void encodeMovie(String mimeType, int width, int height, int bitRate,
+            int framesPerSecond, int numFrames, File outputFile,
+            ContentManager.ProgressUpdater prog) throws IOException {
+        try {
+            prepareEncoder(mimeType, width, height, bitRate, framesPerSecond, outputFile);
+            if (mSoftwareFrames) {
+                encodeSynthesizedFrames(width, height, numFrames, prog);
+            } else {
+                encodeGlFrames(numFrames, prog);
+            }
+        } finally {
+            releaseEncoder();
+        }
+    }
+
+    /**
+     * Draws each frame with GLES on the input surface and submits it.
+     */
+    private void encodeGlFrames(int numFrames, ContentManager.ProgressUpdater prog) {
+        GlCanvas canvas = new GlCanvas();
+        for (int i = 0; i < numFrames; i++) {
+            // Drain any data from the encoder into the muxer.
+            drainEncoder(false);
+
+            // Generate a frame and submit it.
+            drawFrame(i, canvas);
+            submitFrame(getPresentationTimeNsec(i));
+
+            prog.updateProgress(i * 100 / numFrames);
+        }
+
+        // Send end-of-stream and drain remaining output.
+        drainEncoder(true);
+    }
+
+    /**
+     * Has a FrameSynthesizer draw the frames, and copies them into encoder input buffers.
+     */
+    private void encodeSynthesizedFrames(int width, int height, int numFrames,
+            ContentManager.ProgressUpdater prog) {
+        // Frames come out as tightly-packed I420, and are rearranged as they're copied in.
+        FrameSynthesizer synth = new FrameSynthesizer(width, height, false, this,
+                numFrames, SYNTH_FRAMES_AHEAD, Runtime.getRuntime().availableProcessors());
+        try {
+            long lastPtsUsec = 0;
+            FrameSynthesizer.Frame frame;
+            while ((frame = synth.take()) != null) {
+                int index = frame.getIndex();
+                lastPtsUsec = getPresentationTimeNsec(index) / 1000;
+                int inputIndex = dequeueInputBuffer();
+                int size = copyFrameToInput(inputIndex, frame.getBuffer(), width, height);
+                mEncoder.queueInputBuffer(inputIndex, 0, size, lastPtsUsec, 0);
+                synth.release(frame);
+
+                drainEncoder(false);
+                prog.updateProgress(index * 100 / numFrames);
+            }
+
+            // No input surface, so end-of-stream goes in with an empty buffer.
+            int inputIndex = dequeueInputBuffer();
+            mEncoder.queueInputBuffer(inputIndex, 0, 0, lastPtsUsec,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drainEncoder(true);
+        } finally {
+            synth.shutdown();
+        }
+    }
+
+    /**
+     * Gets an encoder input buffer, draining output while we wait for one, since the
+     * encoder may not have room until some output has been taken.
+     */
+    private int dequeueInputBuffer() {
+        while (true) {
+            int index = mEncoder.dequeueInputBuffer(INPUT_TIMEOUT_USEC);
+            if (index >= 0) {
+                return index;
+            }
+            drainEncoder(false);
+        }
+    }
+
+    /**
+     * Copies an I420 frame into an encoder input buffer, in whatever layout the encoder
+     * wants.
+     *
+     * @return The number of bytes to queue.
+     */
+    private int copyFrameToInput(int inputIndex, ByteBuffer frame, int width, int height) {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int uOffset = width * height;
+        int vOffset = uOffset + chromaWidth * chromaHeight;
+
+        Image image = mEncoder.getInputImage(inputIndex);
+        if (image != null) {
+            Image.Plane[] planes = image.getPlanes();
+            copyPlane(frame, 0, width, height, planes[0].getBuffer(), 0,
+                    planes[0].getRowStride(), planes[0].getPixelStride());
+            copyPlane(frame, uOffset, chromaWidth, chromaHeight, planes[1].getBuffer(), 0,
+                    planes[1].getRowStride(), planes[1].getPixelStride());
+            copyPlane(frame, vOffset, chromaWidth, chromaHeight, planes[2].getBuffer(), 0,
+                    planes[2].getRowStride(), planes[2].getPixelStride());
+            return FrameSynthesizer.getFrameSize(width, height);
+        }
+
+        // No Image, so the layout is the one named by the color format, padded out to the
+        // stride and slice height.
+        if (mColorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible) {
+            throw new RuntimeException("no input image for flexible YUV");
+        }
+        ByteBuffer inputBuf = mEncoder.getInputBuffer(inputIndex);
+        int stride = mInputStride;
+        int lumaSize = stride * mInputSliceHeight;
+        copyPlane(frame, 0, width, height, inputBuf, 0, stride, 1);
+        if (mColorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+            copyPlane(frame, uOffset, chromaWidth, chromaHeight, inputBuf, lumaSize, stride, 2);
+            copyPlane(frame, vOffset, chromaWidth, chromaHeight, inputBuf, lumaSize + 1,
+                    stride, 2);
+        } else {
+            int chromaSize = (stride / 2) * (mInputSliceHeight / 2);
+            copyPlane(frame, uOffset, chromaWidth, chromaHeight, inputBuf, lumaSize,
+                    stride / 2, 1);
+            copyPlane(frame, vOffset, chromaWidth, chromaHeight, inputBuf,
+                    lumaSize + chromaSize, stride / 2, 1);
+        }
+        return lumaSize * 3 / 2;
+    }
+
+    /**
+     * Copies a tightly-packed plane into a buffer with the given row and pixel strides.
+     * Uses absolute puts, so the destination's position and limit are left alone.
+     */
+    private static void copyPlane(ByteBuffer src, int srcOffset, int width, int height,
+            ByteBuffer dst, int dstOffset, int rowStride, int pixelStride) {
+        byte[] data = src.array();
+        int srcBase = src.arrayOffset() + srcOffset;
+        for (int row = 0; row < height; row++) {
+            int srcPos = srcBase + row * width;
+            int dstPos = dstOffset + row * rowStride;
+            if (pixelStride == 1) {
+                ByteBuffer dstRow = dst.duplicate();
+                dstRow.position(dstPos);
+                dstRow.put(data, srcPos, width);
+            } else {
+                for (int col = 0; col < width; col++) {
+                    dst.put(dstPos + col * pixelStride, data[srcPos + col]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks a YUV layout that the encoder accepts.  Flexible YUV is preferred, since we
+     * get an Image that describes the real layout; planar and semi-planar are the fallback
+     * for codecs that don't list it.
+     */
+    private static int selectColorFormat(MediaCodec encoder, String mimeType) {
+        MediaCodecInfo info = encoder.getCodecInfo();
+        int[] colorFormats = info.getCapabilitiesForType(mimeType).colorFormats;
+        int fallback = -1;
+        for (int colorFormat : colorFormats) {
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible) {
+                return colorFormat;
+            }
+            if (fallback < 0 && (colorFormat ==
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar ||
+                    colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar)) {
+                fallback = colorFormat;
+            }
+        }
+        if (fallback < 0) {
+            throw new RuntimeException("Encoder " + info.getName() +
+                    " doesn't take YUV 4:2:0 input");
+        }
+        return fallback;
+    }
+
     /**
      * Returns true if the codec has a software implementation.
      */
@@ -67,7 +295,8 @@ public abstract class GeneratedMovie implements Content {
     }
 
     /**
-     * Prepares the video encoder, muxer, and an EGL input surface.
+     * Prepares the video encoder, muxer, and an EGL input surface.  With software frames,
+     * the encoder takes YUV buffers instead, and there's no surface.
      */
     protected void prepareEncoder(String mimeType, int width, int height, int bitRate,
             int framesPerSecond, File outputFile) throws IOException {
@@ -75,20 +304,34 @@ public abstract class GeneratedMovie implements Content {
 
         MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
 
+        // Create a MediaCodec encoder.  For buffer input we need to ask it what YUV layouts
+        // it takes before we configure it.
+        mEncoder = MediaCodec.createEncoderByType(mimeType);
+        mColorFormat = mSoftwareFrames ? selectColorFormat(mEncoder, mimeType) :
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
+
         // Set some properties.  Failing to specify some of these can cause the MediaCodec
         // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mColorFormat);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, framesPerSecond);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
-        // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
-        // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(mimeType);
+        // Configure the encoder with our format.  Unless we're feeding it buffers, get a
+        // Surface we can use for input and wrap it with a class that handles the EGL work.
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         Log.v(TAG, "encoder is " + mEncoder.getCodecInfo().getName());
+        if (mSoftwareFrames) {
+            MediaFormat inputFormat = mEncoder.getInputFormat();
+            mInputStride = inputFormat.containsKey(MediaFormat.KEY_STRIDE) ?
+                    inputFormat.getInteger(MediaFormat.KEY_STRIDE) : width;
+            mInputSliceHeight = inputFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT) ?
+                    inputFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT) : height;
+            mEncoder.start();
+            prepareMuxer(outputFile);
+            return;
+        }
         Surface surface;
         try {
             surface = mEncoder.createInputSurface();
@@ -108,7 +351,13 @@ public abstract class GeneratedMovie implements Content {
         mInputSurface = new WindowSurface(mEglCore, surface, true);
         mInputSurface.makeCurrent();
         mEncoder.start();
+        prepareMuxer(outputFile);
+    }
 
+    /**
+     * Creates the muxer.
+     */
+    private void prepareMuxer(File outputFile) throws IOException {
         // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
         // because our MediaFormat doesn't have the Magic Goodies.  These can only be
         // obtained from the encoder after it has started processing data.
@@ -116,8 +365,9 @@ public abstract class GeneratedMovie implements Content {
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
         if (VERBOSE) Log.d(TAG, "output will go to " + outputFile);
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer = new MuxerWriter(new MediaMuxer(outputFile.toString(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4),
+                MUXER_QUEUE_DEPTH, MuxerWriter.FullPolicy.BLOCK);
 
         mTrackIndex = -1;
         mMuxerStarted = false;
@@ -143,6 +393,7 @@ public abstract class GeneratedMovie implements Content {
         }
         if (mMuxer != null) {
             mMuxer.stop();
+            if (VERBOSE) Log.d(TAG, "muxer: " + mMuxer.getStats());
             mMuxer.release();
             mMuxer = null;
         }
@@ -174,7 +425,8 @@ public abstract class GeneratedMovie implements Content {
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
-        if (endOfStream) {
+        if (endOfStream && mInputSurface != null) {
+            // (With buffer input, the caller has already queued an EOS buffer.)
             if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
             mEncoder.signalEndOfInputStream();
         }
@@ -248,4 +500,26 @@ public abstract class GeneratedMovie implements Content {
             }
         }
     }
+
+    /**
+     * Draws on the current EGL surface.  Fills are scissored clears, which are about as
+     * cheap as drawing gets.
+     */
+    private static class GlCanvas implements FrameSynthesizer.Canvas {
+        @Override
+        public void clear(float red, float green, float blue) {
+            GLES20.glClearColor(red, green, blue, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        }
+
+        @Override
+        public void fillRect(int x, int y, int width, int height, float red, float green,
+                float blue) {
+            GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+            GLES20.glScissor(x, y, width, height);
+            GLES20.glClearColor(red, green, blue, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        }
+    }
 }
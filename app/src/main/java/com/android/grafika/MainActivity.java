@@ -142,7 +142,7 @@ public class MainActivity extends ListActivity {
 
         ContentManager cm = ContentManager.getInstance();
         if (!cm.isContentCreated(this)) {
-            ContentManager.getInstance().createAll(this);
+            ContentManager.getInstance().createMissing(this);
         }
 
         Intent intent = new Intent();
@@ -16,7 +16,6 @@
 
 package com.android.grafika;
 
-import android.opengl.GLES20;
 import android.util.Log;
 
 import java.io.File;
@@ -46,6 +45,12 @@ public class MovieEightRects extends GeneratedMovie {
     private static final int TEST_G1 = 50;
     private static final int TEST_B1 = 186;
 
+    @Override
+    public String getParameters() {
+        return "eight-rects v1 " + MIME_TYPE + " " + WIDTH + "x" + HEIGHT + " " + BIT_RATE +
+                "bps " + NUM_FRAMES + " frames" + (isSoftwareFrames() ? " sw" : "");
+    }
+
     @Override
     public void create(File outputFile, ContentManager.ProgressUpdater prog) {
         if (mMovieReady) {
@@ -53,25 +58,10 @@ public class MovieEightRects extends GeneratedMovie {
         }
 
         try {
-            prepareEncoder(MIME_TYPE, WIDTH, HEIGHT, BIT_RATE, FRAMES_PER_SECOND, outputFile);
-
-            for (int i = 0; i < NUM_FRAMES; i++) {
-                // Drain any data from the encoder into the muxer.
-                drainEncoder(false);
-
-                // Generate a frame and submit it.
-                generateFrame(i);
-                submitFrame(computePresentationTimeNsec(i));
-
-                prog.updateProgress(i * 100 / NUM_FRAMES);
-            }
-
-            // Send end-of-stream and drain remaining output.
-            drainEncoder(true);
+            encodeMovie(MIME_TYPE, WIDTH, HEIGHT, BIT_RATE, FRAMES_PER_SECOND, NUM_FRAMES,
+                    outputFile, prog);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
-        } finally {
-            releaseEncoder();
         }
 
         Log.d(TAG, "MovieEightRects complete: " + outputFile);
@@ -87,7 +77,8 @@ public class MovieEightRects extends GeneratedMovie {
      * </pre>
      * We draw one of the eight rectangles and leave the rest set to the clear color.
      */
-    private void generateFrame(int frameIndex) {
+    @Override
+    public void drawFrame(int frameIndex, FrameSynthesizer.Canvas canvas) {
         frameIndex %= 8;
 
         int startX, startY;
@@ -100,14 +91,9 @@ public class MovieEightRects extends GeneratedMovie {
             startY = 0;
         }
 
-        GLES20.glClearColor(TEST_R0 / 255.0f, TEST_G0 / 255.0f, TEST_B0 / 255.0f, 1.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-
-        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
-        GLES20.glScissor(startX, startY, WIDTH / 4, HEIGHT / 2);
-        GLES20.glClearColor(TEST_R1 / 255.0f, TEST_G1 / 255.0f, TEST_B1 / 255.0f, 1.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        canvas.clear(TEST_R0 / 255.0f, TEST_G0 / 255.0f, TEST_B0 / 255.0f);
+        canvas.fillRect(startX, startY, WIDTH / 4, HEIGHT / 2,
+                TEST_R1 / 255.0f, TEST_G1 / 255.0f, TEST_B1 / 255.0f);
     }
 
     /**
@@ -115,7 +101,8 @@ public class MovieEightRects extends GeneratedMovie {
      * <p>
      * First 8 frames at 8 fps, next 8 at 16fps, rest at 30fps.
      */
-    private static long computePresentationTimeNsec(int frameIndex) {
+    @Override
+    public long getPresentationTimeNsec(int frameIndex) {
         final long ONE_BILLION = 1000000000;
         long time;
         if (frameIndex < 8) {
@@ -20,8 +20,11 @@ import android.content.res.AssetFileDescriptor;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.view.Surface;
 import android.widget.ImageView;
@@ -30,11 +33,19 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * Plays the video track from a movie file to a Surface.
  * <p>
+ * By default one thread both feeds the decoder and renders its output, polling each side
+ * in turn (see the notes in doExtract()).  In async mode (API 23+), the decoder calls us
+ * back instead: input buffers are filled from the extractor on a callback thread as soon
+ * as they're free, and decoded frames are queued to the playing thread, which only has to
+ * pace and render them.
+ * <p>
  * TODO: needs more advanced shuttle controls (pause/resume, skip)
  */
 public class MoviePlayer {
@@ -52,6 +63,7 @@ public class MoviePlayer {
     private Surface mOutputSurface;
     FrameCallback mFrameCallback;
     private boolean mLoop;
+    private boolean mAsync;
     private int mVideoWidth;
     private int mVideoHeight;
 
@@ -195,6 +207,14 @@ public class MoviePlayer {
         mLoop = loopMode;
     }
 
+    /**
+     * Sets async mode.  If true, the decoder is driven by MediaCodec callbacks rather than
+     * by polling.  Requires API 23; ignored on older devices.  Call before play().
+     */
+    public void setAsyncMode(boolean asyncMode) {
+        mAsync = asyncMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
     /**
      * Asks the player to stop.  Returns without waiting for playback to halt.
      * <p>
@@ -213,6 +233,7 @@ public class MoviePlayer {
     public void play() throws IOException {
         MediaExtractor extractor = null;
         MediaCodec decoder = null;
+        AsyncDecodeLoop asyncLoop = null;
 
         // The MediaExtractor error messages aren't very useful.  Check to see if the input
         // file exists so we can throw a better one if it's not there.
@@ -236,14 +257,25 @@ public class MoviePlayer {
             // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
             String mime = format.getString(MediaFormat.KEY_MIME);
             decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, mOutputSurface, null, 0);
-            decoder.start();
-
-            doExtract(extractor, trackIndex, decoder, mFrameCallback);
+            if (mAsync) {
+                asyncLoop = new AsyncDecodeLoop(extractor, trackIndex, decoder);
+                asyncLoop.start(format);
+                asyncLoop.present(mFrameCallback);
+            } else {
+                decoder.configure(format, mOutputSurface, null, 0);
+                decoder.start();
+
+                doExtract(extractor, trackIndex, decoder, mFrameCallback);
+            }
         } finally {
             // release everything we grabbed
-            if (decoder != null) {
+            if (asyncLoop != null) {
+                asyncLoop.stop();
+                asyncLoop = null;
+            } else if (decoder != null) {
                 decoder.stop();
+            }
+            if (decoder != null) {
                 decoder.release();
                 decoder = null;
             }
@@ -451,6 +483,246 @@ public class MoviePlayer {
         }
     }
 
+    /**
+     * A decoded frame waiting to be presented.
+     */
+    private static class OutputFrame {
+        final int mIndex;               // -1 if the decoder failed
+        final long mPresentationTimeUsec;
+        final int mSize;
+        final int mFlags;
+
+        OutputFrame(int index, long presentationTimeUsec, int size, int flags) {
+            mIndex = index;
+            mPresentationTimeUsec = presentationTimeUsec;
+            mSize = size;
+            mFlags = flags;
+        }
+    }
+
+    /**
+     * Drives the decoder with MediaCodec callbacks.
+     * <p>
+     * The callbacks run on a thread of our own.  Input callbacks read the next sample from
+     * the extractor straight into the buffer, so the decoder is never short of input while
+     * we're waiting to show a frame.  Output callbacks put the frame on a queue; present()
+     * takes frames off it on the playing thread, paces them with the FrameCallback, and
+     * renders them.
+     * <p>
+     * The extractor belongs to the callback thread once we've started.  Callbacks, flush()
+     * and stop() all hold mCodecLock, so a callback never touches the codec or extractor
+     * while they're being reset underneath it.  Callbacks posted before a flush can still
+     * arrive afterward, with buffer indices that are no longer valid; we ignore everything
+     * until our own marker, posted after the flush, has made it through the handler.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private class AsyncDecodeLoop extends MediaCodec.Callback {
+        private static final long POLL_TIMEOUT_MSEC = 10;
+
+        private final MediaExtractor mExtractor;
+        private final int mTrackIndex;
+        private final MediaCodec mDecoder;
+        private final LinkedBlockingQueue<OutputFrame> mOutputQueue =
+                new LinkedBlockingQueue<OutputFrame>();
+        private HandlerThread mCallbackThread;
+        private Handler mCallbackHandler;
+
+        // ----- guarded by mCodecLock -----
+        private final Object mCodecLock = new Object();
+        private boolean mFlushPending;
+        private boolean mStopped;
+        private boolean mInputDone;
+        private int mInputChunk;
+
+        // ----- accessed from both threads -----
+        private volatile long mFirstInputTimeNsec = -1;
+        private volatile MediaCodec.CodecException mError;
+
+        AsyncDecodeLoop(MediaExtractor extractor, int trackIndex, MediaCodec decoder) {
+            mExtractor = extractor;
+            mTrackIndex = trackIndex;
+            mDecoder = decoder;
+        }
+
+        /**
+         * Creates the callback thread, then configures and starts the decoder.  Input
+         * starts flowing right away.
+         */
+        void start(MediaFormat format) {
+            mCallbackThread = new HandlerThread("MoviePlayer-callback");
+            mCallbackThread.start();
+            mCallbackHandler = new Handler(mCallbackThread.getLooper());
+            mDecoder.setCallback(this, mCallbackHandler);
+            mDecoder.configure(format, mOutputSurface, null, 0);
+            mDecoder.start();
+        }
+
+        /**
+         * Presents decoded frames until we run out of video or are told to stop.  Runs on
+         * the playing thread.
+         */
+        void present(FrameCallback frameCallback) {
+            while (true) {
+                if (mIsStopRequested) {
+                    Log.d(TAG, "Stop requested");
+                    return;
+                }
+                OutputFrame frame;
+                try {
+                    frame = mOutputQueue.poll(POLL_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    continue;       // check for stop and try again
+                }
+                if (frame == null) {
+                    if (VERBOSE) Log.d(TAG, "no output from decoder available");
+                    continue;
+                }
+                if (frame.mIndex < 0) {
+                    throw new RuntimeException("decoder failed", mError);
+                }
+
+                if (mFirstInputTimeNsec != 0) {
+                    // Log the delay from the first buffer of input to the first buffer
+                    // of output.
+                    long nowNsec = System.nanoTime();
+                    Log.d(TAG, "startup lag " + ((nowNsec - mFirstInputTimeNsec) / 1000000.0) +
+                            " ms (async)");
+                    mFirstInputTimeNsec = 0;
+                }
+                if (VERBOSE) Log.d(TAG, "presenting buffer " + frame.mIndex +
+                        " (size=" + frame.mSize + ", queued=" + mOutputQueue.size() + ")");
+
+                boolean endOfStream = (frame.mFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                boolean doRender = (frame.mSize != 0);
+                if (doRender && frameCallback != null) {
+                    frameCallback.preRender(frame.mPresentationTimeUsec);
+                }
+                mDecoder.releaseOutputBuffer(frame.mIndex, doRender);
+                if (doRender && frameCallback != null) {
+                    frameCallback.postRender();
+                }
+
+                if (endOfStream) {
+                    if (VERBOSE) Log.d(TAG, "output EOS");
+                    if (!mLoop) {
+                        return;
+                    }
+                    Log.d(TAG, "Reached EOS, looping");
+                    rewind();
+                    if (frameCallback != null) {
+                        frameCallback.loopReset();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Flushes the decoder and, on the callback thread, rewinds the extractor and
+         * restarts the decoder.  (In async mode a flushed codec stays idle until start()
+         * is called again.)
+         */
+        private void rewind() {
+            synchronized (mCodecLock) {
+                mDecoder.flush();
+                mFlushPending = true;
+            }
+            mOutputQueue.clear();
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mCodecLock) {
+                        if (mStopped) {
+                            return;
+                        }
+                        mFlushPending = false;
+                        mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                        mInputDone = false;
+                        mDecoder.start();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Stops the decoder and shuts down the callback thread.  The caller still has to
+         * release the decoder and extractor.
+         */
+        void stop() {
+            synchronized (mCodecLock) {
+                mStopped = true;
+                mDecoder.stop();
+            }
+            if (mCallbackThread != null) {
+                mCallbackThread.quitSafely();
+                try {
+                    mCallbackThread.join();
+                } catch (InterruptedException ie) {
+                    Log.w(TAG, "interrupted waiting for callback thread", ie);
+                }
+                mCallbackThread = null;
+            }
+        }
+
+        @Override   // callback thread
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (mCodecLock) {
+                if (mStopped || mFlushPending || mInputDone) {
+                    // Stale, or nothing left to send; after a rewind we get them all again.
+                    return;
+                }
+                if (mFirstInputTimeNsec == -1) {
+                    mFirstInputTimeNsec = System.nanoTime();
+                }
+                ByteBuffer inputBuf = codec.getInputBuffer(index);
+                int chunkSize = mExtractor.readSampleData(inputBuf, 0);
+                if (chunkSize < 0) {
+                    // End of stream -- send empty frame with EOS flag set.
+                    codec.queueInputBuffer(index, 0, 0, 0L,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mInputDone = true;
+                    if (VERBOSE) Log.d(TAG, "sent input EOS");
+                } else {
+                    if (mExtractor.getSampleTrackIndex() != mTrackIndex) {
+                        Log.w(TAG, "WEIRD: got sample from track " +
+                                mExtractor.getSampleTrackIndex() + ", expected " + mTrackIndex);
+                    }
+                    codec.queueInputBuffer(index, 0, chunkSize, mExtractor.getSampleTime(),
+                            0 /*flags*/);
+                    if (VERBOSE) {
+                        Log.d(TAG, "submitted frame " + mInputChunk + " to dec, size=" +
+                                chunkSize);
+                    }
+                    mInputChunk++;
+                    mExtractor.advance();
+                }
+            }
+        }
+
+        @Override   // callback thread
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            synchronized (mCodecLock) {
+                if (mStopped || mFlushPending) {
+                    return;
+                }
+                mOutputQueue.add(new OutputFrame(index, info.presentationTimeUs, info.size,
+                        info.flags));
+            }
+        }
+
+        @Override   // callback thread
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "decoder output format changed: " + format);
+        }
+
+        @Override   // callback thread
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "decoder error", e);
+            mError = e;
+            mOutputQueue.add(new OutputFrame(-1, 0, 0, 0));
+        }
+    }
+
     /**
      * Thread helper for video playback.
      * <p>
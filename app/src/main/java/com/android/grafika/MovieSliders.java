@@ -16,7 +16,6 @@
 
 package com.android.grafika;
 
-import android.opengl.GLES20;
 import android.util.Log;
 
 import java.io.File;
@@ -33,6 +32,13 @@ public class MovieSliders extends GeneratedMovie {
     private static final int HEIGHT = 640;
     private static final int BIT_RATE = 5000000;
     private static final int FRAMES_PER_SECOND = 30;
+    private static final int NUM_FRAMES = 240;
+
+    @Override
+    public String getParameters() {
+        return "sliders v1 " + MIME_TYPE + " " + WIDTH + "x" + HEIGHT + " " + BIT_RATE +
+                "bps " + NUM_FRAMES + " frames" + (isSoftwareFrames() ? " sw" : "");
+    }
 
     @Override
     public void create(File outputFile, ContentManager.ProgressUpdater prog) {
@@ -40,28 +46,11 @@ public class MovieSliders extends GeneratedMovie {
             throw new RuntimeException("Already created");
         }
 
-        final int NUM_FRAMES = 240;
-
         try {
-            prepareEncoder(MIME_TYPE, WIDTH, HEIGHT, BIT_RATE, FRAMES_PER_SECOND, outputFile);
-
-            for (int i = 0; i < NUM_FRAMES; i++) {
-                // Drain any data from the encoder into the muxer.
-                drainEncoder(false);
-
-                // Generate a frame and submit it.
-                generateFrame(i);
-                submitFrame(computePresentationTimeNsec(i));
-
-                prog.updateProgress(i * 100 / NUM_FRAMES);
-            }
-
-            // Send end-of-stream and drain remaining output.
-            drainEncoder(true);
+            encodeMovie(MIME_TYPE, WIDTH, HEIGHT, BIT_RATE, FRAMES_PER_SECOND, NUM_FRAMES,
+                    outputFile, prog);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
-        } finally {
-            releaseEncoder();
         }
 
         Log.d(TAG, "MovieEightRects complete: " + outputFile);
@@ -69,9 +58,10 @@ public class MovieSliders extends GeneratedMovie {
     }
 
     /**
-     * Generates a frame of data using GL commands.
+     * Generates a frame of data.
      */
-    private void generateFrame(int frameIndex) {
+    @Override
+    public void drawFrame(int frameIndex, FrameSynthesizer.Canvas canvas) {
         final int BOX_SIZE = 80;
         frameIndex %= 240;
         int xpos, ypos;
@@ -82,23 +72,16 @@ public class MovieSliders extends GeneratedMovie {
 
         float lumaf = absIndex / 120.0f;
 
-        GLES20.glClearColor(lumaf, lumaf, lumaf, 1.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-
-        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
-        GLES20.glScissor(BOX_SIZE / 2, ypos, BOX_SIZE, BOX_SIZE);
-        GLES20.glClearColor(1.0f, 0.0f, 0.0f, 1.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        GLES20.glScissor(xpos, BOX_SIZE / 2, BOX_SIZE, BOX_SIZE);
-        GLES20.glClearColor(0.0f, 1.0f, 0.0f, 1.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        canvas.clear(lumaf, lumaf, lumaf);
+        canvas.fillRect(BOX_SIZE / 2, ypos, BOX_SIZE, BOX_SIZE, 1.0f, 0.0f, 0.0f);
+        canvas.fillRect(xpos, BOX_SIZE / 2, BOX_SIZE, BOX_SIZE, 0.0f, 1.0f, 0.0f);
     }
 
     /**
      * Generates the presentation time for frame N, in nanoseconds.  Fixed frame rate.
      */
-    private static long computePresentationTimeNsec(int frameIndex) {
+    @Override
+    public long getPresentationTimeNsec(int frameIndex) {
         final long ONE_BILLION = 1000000000;
         return frameIndex * ONE_BILLION / FRAMES_PER_SECOND;
     }
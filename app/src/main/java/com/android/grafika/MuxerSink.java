@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import com.zoomda.composable.MuxerWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * EncoderSink that writes a .mp4 file.
+ * <p>
+ * The file starts at the first sync frame after the sink is attached, and is finished
+ * when it's detached: once VideoEncoderCore.removeSink() returns, the file is complete.
+ * <p>
+ * If the disk can't keep up, whole GOPs are dropped rather than stalling the encoder.
+ */
+public class MuxerSink implements EncoderSink {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int MUXER_QUEUE_DEPTH = 30;
+
+    private final File mOutputFile;
+    private MuxerWriter mMuxer;
+    private int mTrackIndex = -1;
+    private boolean mGotSyncFrame;
+
+    /**
+     * Creates the output file.
+     */
+    public MuxerSink(File outputFile) throws IOException {
+        mOutputFile = outputFile;
+        mMuxer = new MuxerWriter(new MediaMuxer(outputFile.toString(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4),
+                MUXER_QUEUE_DEPTH, MuxerWriter.FullPolicy.DROP_UNTIL_SYNC);
+    }
+
+    @Override
+    public void formatChanged(MediaFormat format) {
+        if (mTrackIndex >= 0) {
+            throw new RuntimeException("format changed twice");
+        }
+        mTrackIndex = mMuxer.addTrack(format);
+        mMuxer.start();
+    }
+
+    @Override
+    public void sampleAvailable(ByteBuffer buf, MediaCodec.BufferInfo info) {
+        if (!mGotSyncFrame) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                return;
+            }
+            if (VERBOSE) Log.d(TAG, mOutputFile + " starts at " + info.presentationTimeUs);
+            mGotSyncFrame = true;
+        }
+        mMuxer.writeSampleData(mTrackIndex, buf, info);
+    }
+
+    @Override
+    public void detached() {
+        // The muxer refuses to stop if it has no samples, so just release it.
+        if (mGotSyncFrame) {
+            try {
+                mMuxer.stop();
+            } catch (RuntimeException re) {
+                // Don't take the encoder down with us.
+                Log.w(TAG, "failed to finish " + mOutputFile, re);
+            }
+            if (VERBOSE) Log.d(TAG, "muxer: " + mMuxer.getStats());
+        } else {
+            Log.w(TAG, "no frames were written to " + mOutputFile);
+        }
+        mMuxer.release();
+        mMuxer = null;
+    }
+}
@@ -178,6 +178,8 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
                 return;
             }
             adjustAspectRatio(player.getVideoWidth(), player.getVideoHeight());
+            // Let the decoder call us back for input, so it's never waiting on the pacing.
+            player.setAsyncMode(true);
 
             mPlayTask = new MoviePlayer.PlayTask(player, this);
             if (((CheckBox) findViewById(R.id.loopPlayback_checkbox)).isChecked()) {
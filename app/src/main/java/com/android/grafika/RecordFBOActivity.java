@@ -104,6 +104,8 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
     private static final int RECMETHOD_FBO = 1;
     private static final int RECMETHOD_BLIT_FRAMEBUFFER = 2;
 
+    private static final int RECORD_FPS = 30;           // regardless of refresh rate
+
     private boolean mRecordingEnabled = false;          // controls button state
     private boolean mBlitFramebufferAllowed = false;    // requires GLES3
     private int mSelectedRecordMethod;                  // current radio button
@@ -455,7 +457,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         private WindowSurface mInputWindowSurface;
         private TextureMovieEncoder2 mVideoEncoder;
         private int mRecordMethod;
-        private boolean mRecordedPrevious;
+        private FrameRateGovernor mRecordGovernor;
         private Rect mVideoRect;
 
 
@@ -814,6 +816,8 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             }
             mInputWindowSurface = new WindowSurface(mEglCore, encoderCore.getInputSurface(), true);
             mVideoEncoder = new TextureMovieEncoder2(encoderCore);
+            mRecordGovernor = new FrameRateGovernor();
+            mRecordGovernor.setTargetFps(RECORD_FPS);
         }
 
         /**
@@ -821,7 +825,10 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
          */
         private void stopEncoder() {
             if (mVideoEncoder != null) {
-                Log.d(TAG, "stopping recorder, mVideoEncoder=" + mVideoEncoder);
+                Log.d(TAG, "stopping recorder, mVideoEncoder=" + mVideoEncoder +
+                        ", kept " + mRecordGovernor.getKeptFrames() + " of " +
+                        (mRecordGovernor.getKeptFrames() + mRecordGovernor.getDroppedFrames()) +
+                        " frames");
                 mVideoEncoder.stopRecording();
                 // TODO: wait (briefly) until it finishes shutting down so we know file is
                 //       complete, or have a callback that updates the UI
@@ -848,8 +855,8 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             // either way.
             //
             // We can reduce the overhead of recording, as well as the size of the movie,
-            // by recording at ~30fps instead of the display refresh rate.  As a quick hack
-            // we just record every-other frame, using a "recorded previous" flag.
+            // by recording at ~30fps instead of the display refresh rate.  The governor picks
+            // the frames to record, and gives them evenly-spaced time stamps.
 
             update(timeStampNanos);
 
@@ -859,22 +866,20 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                 // too much, drop a frame
                 Log.d(TAG, "diff is " + (diff / 1000000.0) + " ms, max " + (max / 1000000.0) +
                         ", skipping render");
-                mRecordedPrevious = false;
                 mPreviousWasDropped = true;
                 mDroppedFrames++;
                 return;
             }
 
             boolean swapResult;
+            long recordPtsNanos = mRecordingEnabled ?
+                    mRecordGovernor.frameAvailable(timeStampNanos, true) : -1;
 
-            if (!mRecordingEnabled || mRecordedPrevious) {
-                mRecordedPrevious = false;
+            if (recordPtsNanos < 0) {
                 // Render the scene, swap back to front.
                 draw();
                 swapResult = mWindowSurface.swapBuffers();
             } else {
-                mRecordedPrevious = true;
-
                 // recording
                 if (mRecordMethod == RECMETHOD_DRAW_TWICE) {
                     //Log.d(TAG, "MODE: draw 2x");
@@ -910,7 +915,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                             mVideoRect.width(), mVideoRect.height());
                     draw();
                     GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
-                    mInputWindowSurface.setPresentationTime(timeStampNanos);
+                    mInputWindowSurface.setPresentationTime(recordPtsNanos);
                     mInputWindowSurface.swapBuffers();
 
                     // Restore.
@@ -943,7 +948,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                         Log.w(TAG, "ERROR: glBlitFramebuffer failed: 0x" +
                                 Integer.toHexString(err));
                     }
-                    mInputWindowSurface.setPresentationTime(timeStampNanos);
+                    mInputWindowSurface.setPresentationTime(recordPtsNanos);
                     mInputWindowSurface.swapBuffers();
 
                     // Now swap the display buffer.
@@ -971,7 +976,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     GLES20.glViewport(mVideoRect.left, mVideoRect.top,
                             mVideoRect.width(), mVideoRect.height());
                     mFullScreen.drawFrame(mOffscreenTexture, mIdentityMatrix);
-                    mInputWindowSurface.setPresentationTime(timeStampNanos);
+                    mInputWindowSurface.setPresentationTime(recordPtsNanos);
                     mInputWindowSurface.swapBuffers();
 
                     // Restore previous values.
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Plays video straight out of a CircularEncoder's buffer, for instant replay.
+ * <p>
+ * The alternative is to save the buffer to a file and open it with MoviePlayer, which
+ * means writing and then reading back a few megabytes before the first frame appears.
+ * Here, packets are copied from the circular buffer directly into the decoder's input
+ * buffers, and the decoder is configured with the format (and codec-specific data) the
+ * encoder reported.
+ * <p>
+ * Capture continues while we play.  We keep our position as a packet sequence number, so
+ * it isn't disturbed by new packets arriving.  If playback is paused for so long that our
+ * position is evicted, we jump ahead to the oldest sync frame still in the buffer.  If we
+ * catch up with the encoder, we wait for it.
+ * <p>
+ * Create with {@link CircularEncoder#createReplayPlayer}, then call {@link #play()} on a
+ * dedicated thread.  The seek and pause calls may be made from any thread.  Playback must
+ * be stopped before the CircularEncoder is shut down.
+ */
+public class ReplayPlayer {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int TIMEOUT_USEC = 10000;
+
+    // Results from fillInputBuffer().
+    private static final int FILL_OK = 0;
+    private static final int FILL_EMPTY = 1;
+    private static final int FILL_SKIPPED = 2;
+    private static final int FILL_FLUSHED = 3;
+
+    private final CircularEncoderBuffer mEncBuffer;     // also the lock for buffer access
+    private final MediaFormat mFormat;
+    private final Surface mOutputSurface;
+    private final MoviePlayer.FrameCallback mFrameCallback;
+
+    private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer[] mParts = new ByteBuffer[2];
+
+    // May be set/read by different threads.
+    private volatile boolean mIsStopRequested;
+
+    // Commands from other threads.  Guarded by "this".
+    private boolean mPaused;
+    private boolean mSeekPending;
+    private long mSeekTargetUsec;
+    private boolean mSeekExact;
+
+    // Player thread state.
+    private long mNextSeq;              // sequence number of the next packet to decode
+    private int mInputBufIndex = -1;    // decoder input buffer we're holding, if any
+    private boolean mSeekInProgress;    // flushed, decoding up to the seek target
+    private long mSeekRenderUsec;       // don't show frames before this while seeking
+
+    /**
+     * Prepares a player.  Use {@link CircularEncoder#createReplayPlayer} instead.
+     *
+     * @param encBuffer The buffer to play from.  All access is synchronized on it.
+     * @param format The encoder's output format, with csd-0 and csd-1.
+     * @param outputSurface The Surface where frames will be sent.
+     * @param frameCallback Callback object, used to pace output.  May be null to play as
+     *     fast as possible.
+     */
+    ReplayPlayer(CircularEncoderBuffer encBuffer, MediaFormat format, Surface outputSurface,
+            MoviePlayer.FrameCallback frameCallback) {
+        mEncBuffer = encBuffer;
+        mFormat = format;
+        mOutputSurface = outputSurface;
+        mFrameCallback = frameCallback;
+    }
+
+    /**
+     * Asks the player to stop.  Returns without waiting for playback to halt.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void requestStop() {
+        mIsStopRequested = true;
+    }
+
+    /**
+     * Pauses or resumes playback.  While paused, the last frame stays on screen, and seeks
+     * still update it.
+     */
+    public synchronized void setPaused(boolean paused) {
+        mPaused = paused;
+    }
+
+    /**
+     * Jumps to the newest sync frame at or before the specified time.  This is fast, since
+     * only one frame needs to be decoded.
+     */
+    public synchronized void seekToKeyframe(long ptsUsec) {
+        mSeekTargetUsec = ptsUsec;
+        mSeekExact = false;
+        mSeekPending = true;
+    }
+
+    /**
+     * Shows the frame at the specified time, decoding forward from the previous sync frame
+     * without displaying the frames in between.  Meant for scrubbing: call it repeatedly as
+     * the user drags, typically while paused.  A new call replaces one still in progress.
+     */
+    public synchronized void scrubTo(long ptsUsec) {
+        mSeekTargetUsec = ptsUsec;
+        mSeekExact = true;
+        mSeekPending = true;
+    }
+
+    /**
+     * Decodes from the buffer, sending frames to the surface.  Playback starts at the
+     * oldest sync frame, unless a seek was requested before this was called.
+     * <p>
+     * Does not return until requestStop() is called.
+     */
+    public void play() throws IOException {
+        MediaCodec decoder = null;
+        try {
+            String mime = mFormat.getString(MediaFormat.KEY_MIME);
+            decoder = MediaCodec.createDecoderByType(mime);
+            decoder.configure(mFormat, mOutputSurface, null, 0);
+            decoder.start();
+
+            synchronized (mEncBuffer) {
+                int index = mEncBuffer.getFirstIndex();
+                mNextSeq = (index < 0) ? mEncBuffer.getHeadSequence() :
+                        mEncBuffer.getSequence(index);
+            }
+            doDecode(decoder);
+        } finally {
+            if (decoder != null) {
+                decoder.stop();
+                decoder.release();
+            }
+        }
+    }
+
+    /**
+     * Work loop.  See MoviePlayer#doExtract() for a discussion of balancing input and
+     * output; we take the same simple approach.
+     */
+    private void doDecode(MediaCodec decoder) {
+        ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
+        long firstInputTimeNsec = -1;
+
+        while (!mIsStopRequested) {
+            boolean paused;
+            synchronized (this) {
+                if (mSeekPending) {
+                    mSeekPending = false;
+                    seek(decoder, mSeekTargetUsec, mSeekExact);
+                    firstInputTimeNsec = -1;
+                }
+                paused = mPaused;
+            }
+            if (paused && !mSeekInProgress) {
+                try {
+                    Thread.sleep(TIMEOUT_USEC / 1000);
+                } catch (InterruptedException ie) { /* not expected */ }
+                continue;
+            }
+
+            // Feed the next packet to the decoder, if it has room and we have one.  If
+            // we've caught up with the encoder, we hang on to the input buffer until the
+            // next packet shows up.
+            if (mInputBufIndex < 0) {
+                mInputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
+            }
+            if (mInputBufIndex >= 0) {
+                ByteBuffer inputBuf = decoderInputBuffers[mInputBufIndex];
+                int result;
+                do {
+                    result = fillInputBuffer(decoder, inputBuf);
+                } while (result == FILL_SKIPPED);
+                if (result == FILL_OK) {
+                    if (firstInputTimeNsec == -1) {
+                        firstInputTimeNsec = System.nanoTime();
+                    }
+                    decoder.queueInputBuffer(mInputBufIndex, 0, inputBuf.limit(),
+                            mBufferInfo.presentationTimeUs, 0 /*flags*/);
+                    mInputBufIndex = -1;
+                }
+            }
+
+            int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+            if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (VERBOSE) Log.d(TAG, "no output from decoder available");
+            } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                if (VERBOSE) Log.d(TAG, "decoder output buffers changed");
+            } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (VERBOSE) Log.d(TAG, "decoder output format changed: " +
+                        decoder.getOutputFormat());
+            } else if (decoderStatus < 0) {
+                throw new RuntimeException(
+                        "unexpected result from decoder.dequeueOutputBuffer: " + decoderStatus);
+            } else {
+                if (firstInputTimeNsec > 0) {
+                    long nowNsec = System.nanoTime();
+                    Log.d(TAG, "replay startup lag " +
+                            ((nowNsec - firstInputTimeNsec) / 1000000.0) + " ms");
+                    firstInputTimeNsec = 0;
+                }
+                renderOutput(decoder, decoderStatus);
+            }
+        }
+        Log.d(TAG, "Stop requested");
+    }
+
+    /**
+     * Copies the next video packet into the decoder input buffer, and fills in
+     * mBufferInfo.
+     *
+     * @return FILL_OK if a packet was copied, FILL_EMPTY if there's nothing new in the
+     *     buffer yet, FILL_SKIPPED if a packet was skipped (not video, or too big), or
+     *     FILL_FLUSHED if we lost our place and had to flush the decoder.
+     */
+    private int fillInputBuffer(MediaCodec decoder, ByteBuffer inputBuf) {
+        int result = copyNextPacket(inputBuf);
+        if (result == FILL_FLUSHED) {
+            // The decoder call can take a while; don't make the encoder wait on the lock.
+            flush(decoder);
+        }
+        return result;
+    }
+
+    /**
+     * Does the work for fillInputBuffer() under the buffer lock.  On FILL_FLUSHED,
+     * mNextSeq has been moved and the caller must flush the decoder.
+     */
+    private int copyNextPacket(ByteBuffer inputBuf) {
+        synchronized (mEncBuffer) {
+            if (mNextSeq >= mEncBuffer.getHeadSequence()) {
+                return FILL_EMPTY;
+            }
+            int index = mEncBuffer.getIndexForSequence(mNextSeq);
+            if (index < 0) {
+                // Evicted while we weren't looking.  The decoder's reference frames are
+                // gone too, so start over from the oldest sync frame.
+                Log.w(TAG, "replay fell behind, skipping ahead");
+                index = mEncBuffer.getFirstIndex();
+                if (index < 0) {
+                    return FILL_EMPTY;
+                }
+                mNextSeq = mEncBuffer.getSequence(index);
+                return FILL_FLUSHED;
+            }
+            mNextSeq++;
+            if (mEncBuffer.getTrack(index) != 0) {
+                return FILL_SKIPPED;
+            }
+
+            int count = mEncBuffer.getChunkParts(index, mBufferInfo, mParts);
+            if (mBufferInfo.size > inputBuf.capacity()) {
+                Log.w(TAG, "packet too big for decoder (" + mBufferInfo.size + " vs. " +
+                        inputBuf.capacity() + "), dropping");
+                return FILL_SKIPPED;
+            }
+            inputBuf.clear();
+            for (int i = 0; i < count; i++) {
+                inputBuf.put(mParts[i]);
+            }
+            inputBuf.flip();
+            if (VERBOSE) {
+                Log.d(TAG, "submitted seq " + (mNextSeq - 1) + " to dec, size=" +
+                        mBufferInfo.size + " pts=" + mBufferInfo.presentationTimeUs);
+            }
+            return FILL_OK;
+        }
+    }
+
+    /**
+     * Releases a decoded frame, rendering it unless we're skipping ahead to a seek target.
+     */
+    private void renderOutput(MediaCodec decoder, int decoderStatus) {
+        long ptsUsec = mBufferInfo.presentationTimeUs;
+        boolean doRender = mBufferInfo.size != 0;
+        boolean paced = doRender && mFrameCallback != null;
+        if (mSeekInProgress) {
+            if (ptsUsec < mSeekRenderUsec) {
+                doRender = false;
+            } else if (doRender) {
+                // This is the frame we were looking for.  Show it right away.
+                mSeekInProgress = false;
+                paced = false;
+            }
+        }
+
+        if (paced) {
+            mFrameCallback.preRender(ptsUsec);
+        }
+        decoder.releaseOutputBuffer(decoderStatus, doRender);
+        if (paced) {
+            mFrameCallback.postRender();
+        }
+    }
+
+    /**
+     * Flushes the decoder and repositions at the sync frame at or before the target.
+     * Called with the command lock held.
+     */
+    private void seek(MediaCodec decoder, long targetUsec, boolean exact) {
+        synchronized (mEncBuffer) {
+            int index = mEncBuffer.getSyncIndexAtOrBefore(targetUsec);
+            if (index < 0) {
+                Log.w(TAG, "nothing buffered, can't seek");
+                return;
+            }
+            mNextSeq = mEncBuffer.getSequence(index);
+            mSeekRenderUsec = exact ? targetUsec : mEncBuffer.getPtsUsec(index);
+        }
+        if (VERBOSE) Log.d(TAG, "seek to " + targetUsec + " exact=" + exact);
+        flush(decoder);
+        mSeekInProgress = true;
+    }
+
+    /**
+     * Discards everything in the decoder.  Any input buffer we were holding goes back to
+     * the codec.
+     */
+    private void flush(MediaCodec decoder) {
+        decoder.flush();
+        mInputBufIndex = -1;
+        if (mFrameCallback != null) {
+            mFrameCallback.loopReset();     // timestamps are about to jump
+        }
+    }
+}
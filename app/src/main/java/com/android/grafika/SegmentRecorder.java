@@ -0,0 +1,759 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records encoded packets to a rolling set of fixed-duration segment files on disk, like a
+ * DVR.  Used with {@link CircularEncoder#setSegmentRecorder(SegmentRecorder)} to keep far
+ * more history than fits in memory.
+ * <p>
+ * Each segment starts with a video sync frame, and is made of two files: "seg-N.dat" holds
+ * the raw packet data, "seg-N.idx" holds the time stamp, flags, track, offset, and size of
+ * each packet.  The index is written when the segment is closed, after the data has been
+ * flushed to disk, and is renamed into place so it's either complete or absent.  The track
+ * formats (including the codec-specific data) are saved in "formats" as soon as they're
+ * known.  If the process dies, {@link #open()} recovers every segment that has an index,
+ * and discards the one that was being written.
+ * <p>
+ * Only the newest "maxSegments" segments are kept; older ones are deleted as new ones are
+ * closed.  Segments being exported are kept until the export finishes.
+ * <p>
+ * writeSample() does a FileChannel write to the page cache, so it's cheap.  Closing a
+ * segment forces it to disk, which can take a while on slow flash, so that happens on a
+ * thread of our own, without holding the recorder lock.  Class is thread-safe.
+ */
+public class SegmentRecorder {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int INDEX_MAGIC = 0x47534547;     // 'GSEG'
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_RECORD_SIZE = 8 + 4 + 4 + 8 + 4;
+    private static final String FORMATS_FILE = "formats";
+
+    // Keys we save from each track's MediaFormat.  Everything MediaMuxer needs for
+    // H.264 video and AAC audio.
+    private static final String[] INT_KEYS = {
+            MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT,
+            MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT
+    };
+    private static final String[] BUFFER_KEYS = { "csd-0", "csd-1", "csd-2" };
+
+    private final File mDir;
+    private final long mSegmentDurationUsec;
+    private final int mMaxSegments;
+
+    // Closed segments, oldest first.
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    // Segment being written, or null if we're waiting for a sync frame to start one.
+    private Segment mCurrent;
+    private RandomAccessFile mCurrentFile;
+    private int mNextSegmentNum;
+
+    private final ArrayList<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private boolean mOpen;
+
+    // Forces closed segments to disk and writes their indexes, in order.
+    private ExecutorService mCloser;
+    // First failure from the closer thread, reported by the next writeSample().
+    private IOException mCloseFailure;
+
+    /**
+     * Per-segment index.  Parallel arrays, as in CircularEncoderBuffer.
+     */
+    private static class Segment {
+        final int mNum;
+        final File mDataFile;
+        final File mIndexFile;
+        int mCount;
+        long[] mPtsUsec = new long[256];
+        int[] mFlags = new int[256];
+        int[] mTrack = new int[256];
+        long[] mOffset = new long[256];
+        int[] mSize = new int[256];
+        long mDataLength;
+        boolean mIndexed;       // index is on disk
+        int mPinCount;          // exports in progress
+
+        Segment(File dir, int num) {
+            mNum = num;
+            mDataFile = new File(dir, "seg-" + num + ".dat");
+            mIndexFile = new File(dir, "seg-" + num + ".idx");
+        }
+
+        void append(long ptsUsec, int flags, int track, int size) {
+            if (mCount == mPtsUsec.length) {
+                int newLen = mCount * 2;
+                mPtsUsec = Arrays.copyOf(mPtsUsec, newLen);
+                mFlags = Arrays.copyOf(mFlags, newLen);
+                mTrack = Arrays.copyOf(mTrack, newLen);
+                mOffset = Arrays.copyOf(mOffset, newLen);
+                mSize = Arrays.copyOf(mSize, newLen);
+            }
+            mPtsUsec[mCount] = ptsUsec;
+            mFlags[mCount] = flags;
+            mTrack[mCount] = track;
+            mOffset[mCount] = mDataLength;
+            mSize[mCount] = size;
+            mCount++;
+            mDataLength += size;
+        }
+
+        long getStartPtsUsec() {
+            return mPtsUsec[0];
+        }
+
+        long getEndPtsUsec() {
+            return mPtsUsec[mCount - 1];
+        }
+
+        /**
+         * Returns a copy, so the packets can be read without holding the recorder lock.
+         */
+        Segment snapshot() {
+            Segment copy = new Segment(mDataFile.getParentFile(), mNum);
+            copy.mCount = mCount;
+            copy.mPtsUsec = mPtsUsec;       // arrays are only appended to, or replaced
+            copy.mFlags = mFlags;
+            copy.mTrack = mTrack;
+            copy.mOffset = mOffset;
+            copy.mSize = mSize;
+            copy.mDataLength = mDataLength;
+            return copy;
+        }
+    }
+
+    /**
+     * Prepares a recorder.  Call {@link #open()} before use.
+     *
+     * @param dir Directory to hold the segment files.  Should be used for nothing else.
+     * @param segmentDurationUsec Target segment length.  Segments are cut at the first
+     *     video sync frame after this much time has passed.
+     * @param maxSegments Maximum number of closed segments to keep.
+     */
+    public SegmentRecorder(File dir, long segmentDurationUsec, int maxSegments) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments must be positive");
+        }
+        mDir = dir;
+        mSegmentDurationUsec = segmentDurationUsec;
+        mMaxSegments = maxSegments;
+    }
+
+    /**
+     * Opens the recorder, recovering any complete segments left by a previous run (e.g.
+     * one that crashed).  New segments are numbered after the recovered ones.
+     */
+    public synchronized void open() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("unable to create " + mDir);
+        }
+        mSegments.clear();
+        mFormats.clear();
+
+        File[] files = mDir.listFiles();
+        ArrayList<Integer> nums = new ArrayList<Integer>();
+        for (File file : files) {
+            String name = file.getName();
+            int num = parseSegmentNum(name);
+            if (num < 0) {
+                if (name.endsWith(".tmp")) {
+                    file.delete();
+                }
+                continue;
+            }
+            mNextSegmentNum = Math.max(mNextSegmentNum, num + 1);
+            if (name.endsWith(".idx")) {
+                nums.add(num);
+            } else if (!new File(mDir, "seg-" + num + ".idx").exists()) {
+                // Data with no index: the segment being written when we died.
+                Log.i(TAG, "discarding incomplete segment " + name);
+                file.delete();
+            }
+        }
+        Collections.sort(nums);
+        for (int num : nums) {
+            Segment seg = new Segment(mDir, num);
+            try {
+                readIndex(seg);
+                seg.mIndexed = true;
+                mSegments.add(seg);
+            } catch (IOException ioe) {
+                Log.w(TAG, "discarding segment " + num + ": " + ioe.getMessage());
+                seg.mIndexFile.delete();
+                seg.mDataFile.delete();
+            }
+        }
+        trimSegments();
+
+        File formatsFile = new File(mDir, FORMATS_FILE);
+        if (formatsFile.exists()) {
+            readFormats(formatsFile);
+        }
+        if (mSegments.size() > 0) {
+            Log.d(TAG, "recovered " + mSegments.size() + " segments, " +
+                    mSegments.get(0).getStartPtsUsec() + " to " +
+                    mSegments.get(mSegments.size() - 1).getEndPtsUsec());
+        }
+        mCloseFailure = null;
+        mCloser = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                // Don't keep the process alive for an abandoned recorder.
+                Thread thread = new Thread(r, "SegmentRecorder-closer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mOpen = true;
+    }
+
+    /**
+     * Closes the segment being written, so it'll survive, and stops accepting samples.
+     * Returns once every segment is on disk.
+     */
+    public void close() {
+        ExecutorService closer;
+        synchronized (this) {
+            if (!mOpen) {
+                return;
+            }
+            cutSegment();
+            mOpen = false;
+            closer = mCloser;
+            mCloser = null;
+        }
+        closer.shutdown();
+        try {
+            closer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "interrupted while closing segments");
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (mCloseFailure != null) {
+                Log.w(TAG, "failed closing segment", mCloseFailure);
+            }
+        }
+    }
+
+    /**
+     * Waits until every segment that has been cut so far is on disk, with its index.
+     *
+     * @throws IOException If a segment couldn't be written.
+     */
+    public void sync() throws IOException {
+        ExecutorService closer;
+        synchronized (this) {
+            closer = mCloser;
+        }
+        if (closer != null) {
+            // The closer runs jobs in order, so once this one has run, so have the others.
+            try {
+                closer.submit(new Runnable() {
+                    @Override public void run() {}
+                }).get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            } catch (ExecutionException ee) {
+                throw new IOException(ee.getCause());
+            }
+        }
+        synchronized (this) {
+            if (mCloseFailure != null) {
+                throw mCloseFailure;
+            }
+        }
+    }
+
+    /**
+     * Sets the output format for a track.  The format must include the codec-specific data
+     * (i.e. it's what MediaCodec.getOutputFormat() returns after INFO_OUTPUT_FORMAT_CHANGED).
+     * Formats are saved immediately, so a recovered recording can be exported.
+     * <p>
+     * If the format of a track changes, segments recorded before the change won't export
+     * correctly; start a new recorder directory instead.
+     */
+    public synchronized void setTrackFormat(int track, MediaFormat format) throws IOException {
+        while (mFormats.size() <= track) {
+            mFormats.add(null);
+        }
+        mFormats.set(track, format);
+        writeFormats();
+    }
+
+    /**
+     * Appends a packet.  Packets from before the first video sync frame are dropped, since
+     * a segment must start with one.
+     *
+     * @param track Track number.  Track 0 is video.
+     * @param buf Encoded data, from info.offset to info.offset + info.size.  The position
+     *     and limit may be altered.
+     */
+    public synchronized void writeSample(int track, ByteBuffer buf, MediaCodec.BufferInfo info)
+            throws IOException {
+        if (!mOpen) {
+            throw new IllegalStateException("not open");
+        }
+        if (mCloseFailure != null) {
+            throw mCloseFailure;
+        }
+        boolean sync = track == 0 && (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (sync && (mCurrent == null || info.presentationTimeUs -
+                mCurrent.getStartPtsUsec() >= mSegmentDurationUsec)) {
+            cutSegment();
+            startSegment();
+        }
+        if (mCurrent == null) {
+            if (VERBOSE) Log.d(TAG, "dropping packet, waiting for sync frame");
+            return;
+        }
+
+        buf.position(info.offset);
+        buf.limit(info.offset + info.size);
+        FileChannel channel = mCurrentFile.getChannel();
+        long pos = mCurrent.mDataLength;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+        mCurrent.append(info.presentationTimeUs, info.flags, track, info.size);
+    }
+
+    /**
+     * Returns true if a video sync frame with the given time stamp would start a new
+     * segment.  An encoder that only makes sync frames on request can use this to ask for
+     * one when a cut is due.
+     */
+    public synchronized boolean isCutDue(long ptsUsec) {
+        return mCurrent != null &&
+                ptsUsec - mCurrent.getStartPtsUsec() >= mSegmentDurationUsec;
+    }
+
+    /**
+     * Returns the time range covered by the closed segments plus the one being written,
+     * as {start, end} in microseconds, or null if nothing has been recorded.
+     */
+    public synchronized long[] getTimeRange() {
+        Segment first = mSegments.size() > 0 ? mSegments.get(0) : mCurrent;
+        Segment last = mCurrent != null && mCurrent.mCount > 0 ? mCurrent :
+                (mSegments.size() > 0 ? mSegments.get(mSegments.size() - 1) : null);
+        if (first == null || last == null || first.mCount == 0) {
+            return null;
+        }
+        return new long[] { first.getStartPtsUsec(), last.getEndPtsUsec() };
+    }
+
+    /**
+     * Writes the recorded packets in [startUsec, endUsec] to a .mp4 file.  The clip starts
+     * at the newest video sync frame at or before startUsec.  Segments outside the range
+     * aren't touched, thanks to the per-segment index.
+     * <p>
+     * This does file I/O, so call it from a background thread.  Recording may continue
+     * while it runs.
+     *
+     * @return The number of samples written.
+     */
+    public int export(File outputFile, long startUsec, long endUsec) throws IOException {
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        ArrayList<Segment> pinned = new ArrayList<Segment>();
+        MediaFormat[] formats;
+        synchronized (this) {
+            for (Segment seg : mSegments) {
+                segments.add(seg);
+            }
+            if (mCurrent != null && mCurrent.mCount > 0) {
+                segments.add(mCurrent.snapshot());
+                pinned.add(mCurrent);
+            }
+            pinned.addAll(mSegments);
+            for (Segment seg : pinned) {
+                seg.mPinCount++;
+            }
+            formats = mFormats.toArray(new MediaFormat[mFormats.size()]);
+        }
+        try {
+            return exportSegments(outputFile, segments, formats, startUsec, endUsec);
+        } finally {
+            synchronized (this) {
+                for (Segment seg : pinned) {
+                    seg.mPinCount--;
+                }
+                trimSegments();
+            }
+        }
+    }
+
+    /**
+     * Does the work for export(), with the segments pinned.
+     */
+    private static int exportSegments(File outputFile, ArrayList<Segment> segments,
+            MediaFormat[] formats, long startUsec, long endUsec) throws IOException {
+
+        // Find the last segment that starts at or before startUsec; it holds the sync
+        // frame we need.  Drop any segments entirely outside the range.
+        int first = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).getStartPtsUsec() <= startUsec) {
+                first = i;
+            }
+        }
+        int last = segments.size() - 1;
+        while (last >= first && segments.get(last).getStartPtsUsec() > endUsec) {
+            last--;
+        }
+        if (last < first || formats.length == 0 || formats[0] == null) {
+            throw new IOException("nothing recorded in range " + startUsec + "-" + endUsec);
+        }
+
+        // Within that segment, find the sync frame.
+        Segment seg = segments.get(first);
+        int startIndex = 0;
+        for (int i = 0; i < seg.mCount; i++) {
+            if (seg.mTrack[i] == 0 && (seg.mFlags[i] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0
+                    && seg.mPtsUsec[i] <= startUsec) {
+                startIndex = i;
+            }
+        }
+        long startPtsUsec = seg.mPtsUsec[startIndex];
+        if (VERBOSE) {
+            Log.d(TAG, "export segments " + segments.get(first).mNum + "-" +
+                    segments.get(last).mNum + " from pts=" + startPtsUsec);
+        }
+
+        int samples = 0;
+        MediaMuxer muxer = new MediaMuxer(outputFile.getPath(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        try {
+            int[] muxTracks = new int[formats.length];
+            for (int i = 0; i < formats.length; i++) {
+                muxTracks[i] = (formats[i] == null) ? -1 : muxer.addTrack(formats[i]);
+            }
+            muxer.start();
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteBuffer buf = null;
+            for (int s = first; s <= last; s++) {
+                seg = segments.get(s);
+                FileInputStream fis = new FileInputStream(seg.mDataFile);
+                try {
+                    FileChannel channel = fis.getChannel();
+                    for (int i = (s == first) ? startIndex : 0; i < seg.mCount; i++) {
+                        int track = seg.mTrack[i];
+                        long ptsUsec = seg.mPtsUsec[i];
+                        if (ptsUsec < startPtsUsec || ptsUsec > endUsec ||
+                                track >= muxTracks.length || muxTracks[track] < 0) {
+                            continue;
+                        }
+                        int size = seg.mSize[i];
+                        if (buf == null || buf.capacity() < size) {
+                            buf = ByteBuffer.allocateDirect(Math.max(size, 64 * 1024));
+                        }
+                        buf.clear();
+                        buf.limit(size);
+                        long pos = seg.mOffset[i];
+                        while (buf.hasRemaining()) {
+                            int got = channel.read(buf, pos);
+                            if (got < 0) {
+                                throw new IOException("short segment " + seg.mDataFile);
+                            }
+                            pos += got;
+                        }
+                        buf.flip();
+                        info.set(0, size, ptsUsec, seg.mFlags[i]);
+                        muxer.writeSampleData(muxTracks[track], buf, info);
+                        samples++;
+                    }
+                } finally {
+                    fis.close();
+                }
+            }
+            // MediaMuxer throws from stop() if nothing was written.
+            if (samples > 0) {
+                muxer.stop();
+            }
+        } finally {
+            muxer.release();
+        }
+        if (samples == 0) {
+            outputFile.delete();
+            throw new IOException("nothing recorded in range " + startUsec + "-" + endUsec);
+        }
+        return samples;
+    }
+
+    /**
+     * Starts a new segment.
+     */
+    private void startSegment() throws IOException {
+        mCurrent = new Segment(mDir, mNextSegmentNum++);
+        mCurrentFile = new RandomAccessFile(mCurrent.mDataFile, "rw");
+        mCurrentFile.setLength(0);
+        if (VERBOSE) Log.d(TAG, "started segment " + mCurrent.mNum);
+    }
+
+    /**
+     * Ends the current segment, and hands it to the closer thread to be written out.  The
+     * segment joins the closed list right away, so it can still be exported.
+     */
+    private void cutSegment() {
+        if (mCurrent == null) {
+            return;
+        }
+        final Segment seg = mCurrent;
+        final RandomAccessFile file = mCurrentFile;
+        mCurrent = null;
+        mCurrentFile = null;
+        if (seg.mCount > 0) {
+            mSegments.add(seg);
+        }
+        mCloser.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finishSegment(seg, file);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "failed finishing segment " + seg.mNum, ioe);
+                    synchronized (SegmentRecorder.this) {
+                        // No index, so open() will discard the data.
+                        mSegments.remove(seg);
+                        if (mCloseFailure == null) {
+                            mCloseFailure = ioe;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Flushes a segment's data to disk, then writes its index.  Once the index is in place
+     * the segment is recoverable.  Runs on the closer thread, without the lock held; the
+     * segment isn't appended to after it's cut.
+     */
+    private void finishSegment(Segment seg, RandomAccessFile file) throws IOException {
+        try {
+            file.getChannel().force(false);
+        } finally {
+            file.close();
+        }
+        if (seg.mCount == 0) {
+            seg.mDataFile.delete();
+            return;
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(12 + seg.mCount * INDEX_RECORD_SIZE);
+        bb.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putInt(seg.mCount);
+        for (int i = 0; i < seg.mCount; i++) {
+            bb.putLong(seg.mPtsUsec[i]);
+            bb.putInt(seg.mFlags[i]);
+            bb.putInt(seg.mTrack[i]);
+            bb.putLong(seg.mOffset[i]);
+            bb.putInt(seg.mSize[i]);
+        }
+        bb.flip();
+        writeFileAtomically(seg.mIndexFile, bb);
+
+        synchronized (this) {
+            seg.mIndexed = true;
+            trimSegments();
+        }
+        if (VERBOSE) Log.d(TAG, "finished segment " + seg.mNum + ", " + seg.mCount + " packets");
+    }
+
+    /**
+     * Deletes the oldest segments until we're down to the limit.  A segment that's still
+     * being written out, or is being exported, stops the trim; it's retried when the
+     * segment is done.
+     */
+    private void trimSegments() {
+        while (mSegments.size() > mMaxSegments) {
+            Segment oldest = mSegments.get(0);
+            if (!oldest.mIndexed || oldest.mPinCount > 0) {
+                break;
+            }
+            Segment seg = mSegments.remove(0);
+            // Delete the index first, so a crash in between leaves an orphaned data file
+            // (which open() cleans up) rather than an index with no data.
+            seg.mIndexFile.delete();
+            seg.mDataFile.delete();
+        }
+    }
+
+    /**
+     * Reads a segment index from disk.
+     */
+    private static void readIndex(Segment seg) throws IOException {
+        DataInputStream dis = new DataInputStream(new FileInputStream(seg.mIndexFile));
+        try {
+            if (dis.readInt() != INDEX_MAGIC || dis.readInt() != INDEX_VERSION) {
+                throw new IOException("bad index header");
+            }
+            int count = dis.readInt();
+            if (count <= 0) {
+                throw new IOException("empty index");
+            }
+            for (int i = 0; i < count; i++) {
+                long ptsUsec = dis.readLong();
+                int flags = dis.readInt();
+                int track = dis.readInt();
+                long offset = dis.readLong();
+                int size = dis.readInt();
+                if (offset != seg.mDataLength) {
+                    throw new IOException("bad offset in index");
+                }
+                seg.append(ptsUsec, flags, track, size);
+            }
+        } finally {
+            dis.close();
+        }
+        if (seg.mDataFile.length() < seg.mDataLength) {
+            throw new IOException("data file is short");
+        }
+    }
+
+    /**
+     * Writes the track formats to disk.
+     */
+    private void writeFormats() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeInt(mFormats.size());
+        for (MediaFormat format : mFormats) {
+            dos.writeBoolean(format != null);
+            if (format == null) {
+                continue;
+            }
+            dos.writeUTF(format.getString(MediaFormat.KEY_MIME));
+            for (String key : INT_KEYS) {
+                boolean has = format.containsKey(key);
+                dos.writeBoolean(has);
+                if (has) {
+                    dos.writeInt(format.getInteger(key));
+                }
+            }
+            for (String key : BUFFER_KEYS) {
+                ByteBuffer bb = format.containsKey(key) ? format.getByteBuffer(key) : null;
+                if (bb == null) {
+                    dos.writeInt(-1);
+                } else {
+                    bb = bb.duplicate();
+                    bb.rewind();
+                    byte[] data = new byte[bb.remaining()];
+                    bb.get(data);
+                    dos.writeInt(data.length);
+                    dos.write(data);
+                }
+            }
+        }
+        dos.flush();
+        writeFileAtomically(new File(mDir, FORMATS_FILE), ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    /**
+     * Reads the track formats from disk.
+     */
+    private void readFormats(File file) throws IOException {
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                if (!dis.readBoolean()) {
+                    mFormats.add(null);
+                    continue;
+                }
+                MediaFormat format = new MediaFormat();
+                format.setString(MediaFormat.KEY_MIME, dis.readUTF());
+                for (String key : INT_KEYS) {
+                    if (dis.readBoolean()) {
+                        format.setInteger(key, dis.readInt());
+                    }
+                }
+                for (String key : BUFFER_KEYS) {
+                    int len = dis.readInt();
+                    if (len >= 0) {
+                        byte[] data = new byte[len];
+                        dis.readFully(data);
+                        format.setByteBuffer(key, ByteBuffer.wrap(data));
+                    }
+                }
+                mFormats.add(format);
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Writes a file and syncs it to disk under a temporary name, then renames it into
+     * place, so we never leave a partially-written file behind.
+     */
+    private static void writeFileAtomically(File file, ByteBuffer data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = fos.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Returns the segment number from a "seg-N.dat" or "seg-N.idx" file name, or -1.
+     */
+    private static int parseSegmentNum(String name) {
+        if (!name.startsWith("seg-") || !(name.endsWith(".dat") || name.endsWith(".idx"))) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(4, name.length() - 4));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+}
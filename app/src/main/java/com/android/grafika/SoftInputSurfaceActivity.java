@@ -28,6 +28,8 @@ import android.view.Surface;
 import android.widget.TextView;
 import android.app.Activity;
 
+import com.zoomda.composable.MuxerWriter;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -49,13 +51,14 @@ public class SoftInputSurfaceActivity extends Activity {
     private static final int BIT_RATE = 4000000;
     private static final int FRAMES_PER_SECOND = 4;
     private static final int IFRAME_INTERVAL = 5;
+    private static final int MUXER_QUEUE_DEPTH = 30;
 
     private static final int NUM_FRAMES = 8;
 
     // "live" state during recording
     private MediaCodec.BufferInfo mBufferInfo;
     private MediaCodec mEncoder;
-    private MediaMuxer mMuxer;
+    private MuxerWriter mMuxer;
     private Surface mInputSurface;
     private int mTrackIndex;
     private boolean mMuxerStarted;
@@ -134,8 +137,9 @@ public class SoftInputSurfaceActivity extends Activity {
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
         if (VERBOSE) Log.d(TAG, "output will go to " + outputFile);
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer = new MuxerWriter(new MediaMuxer(outputFile.toString(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4),
+                MUXER_QUEUE_DEPTH, MuxerWriter.FullPolicy.BLOCK);
 
         mTrackIndex = -1;
         mMuxerStarted = false;
@@ -157,6 +161,7 @@ public class SoftInputSurfaceActivity extends Activity {
         }
         if (mMuxer != null) {
             mMuxer.stop();
+            if (VERBOSE) Log.d(TAG, "muxer: " + mMuxer.getStats());
             mMuxer.release();
             mMuxer = null;
         }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * EncoderSink that sends the raw elementary stream (H.264 Annex B, as it comes out of
+ * MediaCodec) over an OutputStream, e.g. from a connected android.net.LocalSocket.
+ * <p>
+ * The stream starts at the first sync frame after the sink is attached.  The codec config
+ * data (SPS/PPS for H.264) is sent before every sync frame, so a reader can pick the stream
+ * up at any of them.
+ * <p>
+ * Writes happen on a thread owned by the sink.  If the reader falls too far behind, frames
+ * are dropped until the next sync frame rather than holding up the encoder.
+ */
+public class StreamSink implements EncoderSink {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int MAX_PENDING = 30;      // frames waiting to be written
+
+    private final OutputStream mOutput;
+    private final Handler mWriteHandler;
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile boolean mFailed;
+
+    // Only touched on the thread calling the EncoderSink methods.
+    private byte[] mConfig;
+    private boolean mWaitingForSync = true;
+    private long mDroppedFrames;
+
+    /**
+     * Creates the sink.  The stream is closed after the sink is detached.
+     */
+    public StreamSink(OutputStream output) {
+        mOutput = output;
+        HandlerThread writeThread = new HandlerThread("StreamSink-write");
+        writeThread.start();
+        mWriteHandler = new Handler(writeThread.getLooper());
+    }
+
+    @Override
+    public void formatChanged(MediaFormat format) {
+        // Gather up "csd-0", "csd-1", ...
+        ArrayList<ByteBuffer> csd = new ArrayList<ByteBuffer>();
+        int total = 0;
+        for (int i = 0; ; i++) {
+            ByteBuffer buf = format.getByteBuffer("csd-" + i);
+            if (buf == null) {
+                break;
+            }
+            csd.add(buf.duplicate());
+            total += buf.remaining();
+        }
+        mConfig = new byte[total];
+        int offset = 0;
+        for (ByteBuffer buf : csd) {
+            int len = buf.remaining();
+            buf.get(mConfig, offset, len);
+            offset += len;
+        }
+        if (VERBOSE) Log.d(TAG, "stream config is " + total + " bytes");
+    }
+
+    @Override
+    public void sampleAvailable(ByteBuffer buf, MediaCodec.BufferInfo info) {
+        if (mFailed) {
+            return;
+        }
+        boolean isSync = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (mWaitingForSync && !isSync) {
+            mDroppedFrames++;
+            return;
+        }
+        if (mPending.get() >= MAX_PENDING) {
+            if (VERBOSE) Log.d(TAG, "reader is behind, dropping to next sync frame");
+            mWaitingForSync = true;
+            mDroppedFrames++;
+            return;
+        }
+        mWaitingForSync = false;
+
+        // Copy out now; the codec wants its buffer back.
+        int configLen = isSync ? mConfig.length : 0;
+        final byte[] data = new byte[configLen + buf.remaining()];
+        if (isSync) {
+            System.arraycopy(mConfig, 0, data, 0, configLen);
+        }
+        buf.duplicate().get(data, configLen, data.length - configLen);
+
+        mPending.incrementAndGet();
+        mWriteHandler.post(new Runnable() {
+            @Override public void run() {
+                if (!mFailed) {
+                    try {
+                        mOutput.write(data);
+                    } catch (IOException ioe) {
+                        // Most likely the reader went away.  Nothing more we can do.
+                        Log.w(TAG, "stream write failed", ioe);
+                        mFailed = true;
+                    }
+                }
+                mPending.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void detached() {
+        if (VERBOSE) Log.d(TAG, "stream detached, dropped " + mDroppedFrames + " frames");
+        // Send whatever is queued, then close up.
+        mWriteHandler.post(new Runnable() {
+            @Override public void run() {
+                try {
+                    mOutput.close();
+                } catch (IOException ioe) {
+                    Log.w(TAG, "stream close failed", ioe);
+                }
+                Looper.myLooper().quit();
+            }
+        });
+    }
+}
@@ -17,17 +17,21 @@
 package com.android.grafika;
 
 import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
+import android.view.Surface;
 
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FullFrameRect;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
+import com.zoomda.composable.PauseTimeline;
 
 import java.io.File;
 import java.io.IOException;
@@ -55,6 +59,17 @@ import java.lang.ref.WeakReference;
  * <li>for each frame, after latching it with SurfaceTexture#updateTexImage(),
  *     call TextureMovieEncoder#frameAvailable().
  * </ul>
+ * <p>
+ * Normally each recording creates the encoder, EGL context and window surface from scratch
+ * and tears them down afterward.  With setKeepWarm() (API 23+), the thread and EGL state
+ * outlive the recording.  The window surface draws into a persistent input surface, and
+ * as soon as one recording stops, the encoder for the next is created, bound to that
+ * surface, and started.  Starting a recording then only has to create the output file.
+ * Call shutdown() when done.
+ * <p>
+ * A recording can be paused and resumed without restarting the encoder.  Frames are
+ * dropped while paused, the paused interval is cut out of the presentation times, and the
+ * first frame after resuming is a sync frame.
  *
  * TODO: tweak the API (esp. textureId) so it's less awkward for simple use cases.
  */
@@ -62,12 +77,20 @@ public class TextureMovieEncoder implements Runnable {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
+    // Under load, the bit rate can drop as low as this fraction of the configured rate.
+    private static final int MIN_BIT_RATE_DIVISOR = 4;
+
     private static final int MSG_START_RECORDING = 0;
     private static final int MSG_STOP_RECORDING = 1;
     private static final int MSG_FRAME_AVAILABLE = 2;
     private static final int MSG_SET_TEXTURE_ID = 3;
     private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
     private static final int MSG_QUIT = 5;
+    private static final int MSG_ADD_SINK = 6;
+    private static final int MSG_REMOVE_SINK = 7;
+    private static final int MSG_PAUSE = 8;
+    private static final int MSG_RESUME = 9;
+    private static final int MSG_SET_BIT_RATE = 10;
 
     // ----- accessed exclusively by encoder thread -----
     private WindowSurface mInputWindowSurface;
@@ -76,13 +99,22 @@ public class TextureMovieEncoder implements Runnable {
     private int mTextureId;
     private int mFrameNum;
     private VideoEncoderCore mVideoEncoder;
+    private PauseTimeline mTimeline;
+
+    // Warm mode only.  The next encoder is ready to go, waiting for an output file.
+    private Surface mPersistentSurface;
+    private VideoEncoderCore mNextEncoder;
+    private EncoderConfig mWarmConfig;
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
 
-    private Object mReadyFence = new Object();      // guards ready/running
+    private Object mReadyFence = new Object();  // guards ready/running/recording/paused/warm
     private boolean mReady;
     private boolean mRunning;
+    private boolean mRecording;
+    private boolean mPaused;
+    private boolean mKeepWarm;
 
 
     /**
@@ -129,17 +161,21 @@ public class TextureMovieEncoder implements Runnable {
     public void startRecording(EncoderConfig config) {
         Log.d(TAG, "Encoder: startRecording()");
         synchronized (mReadyFence) {
-            if (mRunning) {
+            if (mRecording) {
                 Log.w(TAG, "Encoder thread already running");
                 return;
             }
-            mRunning = true;
-            new Thread(this, "TextureMovieEncoder").start();
-            while (!mReady) {
-                try {
-                    mReadyFence.wait();
-                } catch (InterruptedException ie) {
-                    // ignore
+            mRecording = true;
+            mPaused = false;
+            if (!mRunning) {
+                mRunning = true;
+                new Thread(this, "TextureMovieEncoder").start();
+                while (!mReady) {
+                    try {
+                        mReadyFence.wait();
+                    } catch (InterruptedException ie) {
+                        // ignore
+                    }
                 }
             }
         }
@@ -151,24 +187,117 @@ public class TextureMovieEncoder implements Runnable {
      * Tells the video recorder to stop recording.  (Call from non-encoder thread.)
      * <p>
      * Returns immediately; the encoder/muxer may not yet be finished creating the movie.
+     * In warm mode the encoder thread keeps running, and starts preparing for the next
+     * recording once this one is finished.
      * <p>
      * TODO: have the encoder thread invoke a callback on the UI thread just before it shuts down
      * so we can provide reasonable status UI (and let the caller know that movie encoding
      * has completed).
      */
     public void stopRecording() {
+        boolean keepWarm;
+        synchronized (mReadyFence) {
+            mRecording = mPaused = false;
+            keepWarm = mKeepWarm;
+        }
         mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+        if (!keepWarm) {
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+        }
         // We don't know when these will actually finish (or even start).  We don't want to
         // delay the UI thread though, so we return immediately.
     }
 
     /**
-     * Returns true if recording has been started.
+     * Keeps the encoder thread, EGL state and a ready-to-go encoder around between
+     * recordings, so the next one starts quickly.  Has no effect before API 23, which
+     * introduced persistent input surfaces.  Set it before the first startRecording().
+     * (Call from non-encoder thread.)
+     */
+    public void setKeepWarm(boolean keepWarm) {
+        synchronized (mReadyFence) {
+            if (mRunning) {
+                Log.w(TAG, "can't change warm mode while the encoder thread is running");
+                return;
+            }
+            mKeepWarm = keepWarm && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        }
+    }
+
+    /**
+     * Stops recording, if we are, and releases everything kept for warm mode.  Returns
+     * immediately.  (Call from non-encoder thread.)
+     */
+    public void shutdown() {
+        synchronized (mReadyFence) {
+            if (!mRunning) {
+                return;
+            }
+            if (mRecording) {
+                mRecording = mPaused = false;
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
+            }
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+    }
+
+    /**
+     * Returns true if recording has been started.  Still true while paused.
      */
     public boolean isRecording() {
         synchronized (mReadyFence) {
-            return mRunning;
+            return mRecording;
+        }
+    }
+
+    /**
+     * Pauses the current recording.  Frames passed to frameAvailable() are ignored until
+     * resume() is called, and the file stays open.  (Call from non-encoder thread.)
+     */
+    public void pause() {
+        synchronized (mReadyFence) {
+            if (!mRecording || mPaused) {
+                return;
+            }
+            mPaused = true;
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_PAUSE));
+    }
+
+    /**
+     * Resumes a paused recording.  The next frame follows on from the last one before the
+     * pause, and is encoded as a sync frame.  (Call from non-encoder thread.)
+     */
+    public void resume() {
+        synchronized (mReadyFence) {
+            if (!mRecording || !mPaused) {
+                return;
+            }
+            mPaused = false;
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_RESUME));
+    }
+
+    /**
+     * Changes the bit rate of the current recording.  The encoder already lowers the rate
+     * on its own if output backs up; this sets the rate it returns to.  Needs API 19.
+     * (Call from non-encoder thread.)
+     */
+    public void setTargetBitRate(int bitRate) {
+        synchronized (mReadyFence) {
+            if (!mRecording) {
+                return;
+            }
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_BIT_RATE, bitRate, 0));
+    }
+
+    /**
+     * Returns true if the recording is paused.
+     */
+    public boolean isPaused() {
+        synchronized (mReadyFence) {
+            return mPaused;
         }
     }
 
@@ -194,7 +323,7 @@ public class TextureMovieEncoder implements Runnable {
      */
     public void frameAvailable(SurfaceTexture st) {
         synchronized (mReadyFence) {
-            if (!mReady) {
+            if (!mReady || !mRecording || mPaused) {
                 return;
             }
         }
@@ -231,6 +360,35 @@ public class TextureMovieEncoder implements Runnable {
         mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
     }
 
+    /**
+     * Attaches an additional consumer of the encoded output, e.g. a CircularBufferSink to
+     * keep recent history for event clips while the movie is being recorded.  If we're not
+     * recording, the sink is detached right away.  (Call from non-encoder thread.)
+     */
+    public void addSink(EncoderSink sink) {
+        boolean ready;
+        synchronized (mReadyFence) {
+            ready = mReady;
+        }
+        // sendMessage() fails if the encoder thread is already on its way out.
+        if (!ready || !mHandler.sendMessage(mHandler.obtainMessage(MSG_ADD_SINK, sink))) {
+            sink.detached();
+        }
+    }
+
+    /**
+     * Detaches a sink added with addSink().  Sinks still attached when recording stops are
+     * detached then.  (Call from non-encoder thread.)
+     */
+    public void removeSink(EncoderSink sink) {
+        synchronized (mReadyFence) {
+            if (!mReady) {
+                return;
+            }
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_REMOVE_SINK, sink));
+    }
+
     /**
      * Encoder thread entry point.  Establishes Looper/Handler and waits for messages.
      * <p>
@@ -249,7 +407,7 @@ public class TextureMovieEncoder implements Runnable {
 
         Log.d(TAG, "Encoder thread exiting");
         synchronized (mReadyFence) {
-            mReady = mRunning = false;
+            mReady = mRunning = mRecording = mPaused = false;
             mHandler = null;
         }
     }
@@ -294,7 +452,23 @@ public class TextureMovieEncoder implements Runnable {
                 case MSG_UPDATE_SHARED_CONTEXT:
                     encoder.handleUpdateSharedContext((EGLContext) inputMessage.obj);
                     break;
+                case MSG_ADD_SINK:
+                    encoder.handleAddSink((EncoderSink) obj);
+                    break;
+                case MSG_REMOVE_SINK:
+                    encoder.handleRemoveSink((EncoderSink) obj);
+                    break;
+                case MSG_PAUSE:
+                    encoder.handlePause();
+                    break;
+                case MSG_RESUME:
+                    encoder.handleResume();
+                    break;
+                case MSG_SET_BIT_RATE:
+                    encoder.handleSetBitRate(inputMessage.arg1);
+                    break;
                 case MSG_QUIT:
+                    encoder.releaseWarmState();
                     Looper.myLooper().quit();
                     break;
                 default:
@@ -309,6 +483,30 @@ public class TextureMovieEncoder implements Runnable {
     private void handleStartRecording(EncoderConfig config) {
         Log.d(TAG, "handleStartRecording " + config);
         mFrameNum = 0;
+        mTimeline = new PauseTimeline();
+        if (mNextEncoder != null && mWarmConfig.mWidth == config.mWidth &&
+                mWarmConfig.mHeight == config.mHeight &&
+                mWarmConfig.mBitRate == config.mBitRate) {
+            // Everything's ready except the file.
+            mVideoEncoder = mNextEncoder;
+            mNextEncoder = null;
+            mVideoEncoder.setBitrateController(new BitrateController(config.mBitRate,
+                    config.mBitRate / MIN_BIT_RATE_DIVISOR));
+            try {
+                mVideoEncoder.setOutputFile(config.mOutputFile);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            if (config.mEglContext.equals(mWarmConfig.mEglContext)) {
+                mInputWindowSurface.makeCurrent();
+            } else {
+                // The view was recreated since the last recording.
+                handleUpdateSharedContext(config.mEglContext);
+            }
+            mWarmConfig = config;
+            return;
+        }
+        releaseWarmState();
         prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate,
                 config.mOutputFile);
     }
@@ -324,12 +522,19 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleFrameAvailable(float[] transform, long timestampNanos) {
         if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
+        if (mVideoEncoder == null) {
+            return;     // queued before a stop
+        }
+        long ptsNanos = mTimeline.adjust(timestampNanos);
+        if (ptsNanos < 0) {
+            return;     // queued before a pause
+        }
         mVideoEncoder.drainEncoder(false);
         mFullScreen.drawFrame(mTextureId, transform);
 
         drawBox(mFrameNum++);
 
-        mInputWindowSurface.setPresentationTime(timestampNanos);
+        mInputWindowSurface.setPresentationTime(ptsNanos);
         mInputWindowSurface.swapBuffers();
     }
 
@@ -338,8 +543,82 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
+        if (mVideoEncoder == null) {
+            return;
+        }
         mVideoEncoder.drainEncoder(true);
-        releaseEncoder();
+        if (mPersistentSurface == null) {
+            releaseEncoder();
+            return;
+        }
+
+        // Warm mode: swap in a fresh encoder on the same surface, so the next recording
+        // doesn't have to wait for one.  (Warm mode means API 23+, so always async.)
+        mVideoEncoder.release();
+        mVideoEncoder = null;
+        try {
+            mNextEncoder = new VideoEncoderCore(mWarmConfig.mWidth, mWarmConfig.mHeight,
+                    mWarmConfig.mBitRate, mPersistentSurface, true);
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to prepare next encoder", ioe);
+            releaseWarmState();
+        }
+    }
+
+    /**
+     * Handles a request to pause.  Whatever the encoder has finished is sent on to the
+     * file, so it's complete up to the pause.
+     */
+    private void handlePause() {
+        Log.d(TAG, "handlePause");
+        if (mVideoEncoder == null) {
+            return;
+        }
+        mTimeline.pause();
+        mVideoEncoder.drainEncoder(false);
+    }
+
+    /**
+     * Handles a request to resume.
+     */
+    private void handleResume() {
+        Log.d(TAG, "handleResume");
+        if (mVideoEncoder == null) {
+            return;
+        }
+        mTimeline.resume();
+        // Frames after a gap shouldn't depend on the ones before it.
+        mVideoEncoder.requestSyncFrame();
+    }
+
+    /**
+     * Changes the target bit rate of the current recording.
+     */
+    private void handleSetBitRate(int bitRate) {
+        Log.d(TAG, "handleSetBitRate " + bitRate);
+        if (mVideoEncoder != null) {
+            mVideoEncoder.setTargetBitRate(bitRate);
+        }
+    }
+
+    /**
+     * Attaches a sink to the current recording.
+     */
+    private void handleAddSink(EncoderSink sink) {
+        if (mVideoEncoder == null) {
+            sink.detached();
+            return;
+        }
+        mVideoEncoder.addSink(sink);
+    }
+
+    /**
+     * Detaches a sink from the current recording.
+     */
+    private void handleRemoveSink(EncoderSink sink) {
+        if (mVideoEncoder != null) {
+            mVideoEncoder.removeSink(sink);
+        }
     }
 
     /**
@@ -377,21 +656,66 @@ public class TextureMovieEncoder implements Runnable {
 
     private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
             File outputFile) {
+        boolean keepWarm;
+        synchronized (mReadyFence) {
+            keepWarm = mKeepWarm;
+        }
         try {
-            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile);
+            // On M+ let the encoder call us back with output, so frame submission doesn't
+            // stall on draining.
+            boolean async = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+            if (keepWarm) {
+                mPersistentSurface = MediaCodec.createPersistentInputSurface();
+                mWarmConfig = new EncoderConfig(outputFile, width, height, bitRate,
+                        sharedContext);
+                mVideoEncoder = new VideoEncoderCore(width, height, bitRate,
+                        mPersistentSurface, async);
+                mVideoEncoder.setOutputFile(outputFile);
+            } else {
+                mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile, async);
+            }
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+        mVideoEncoder.setBitrateController(new BitrateController(bitRate,
+                bitRate / MIN_BIT_RATE_DIVISOR));
         mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
+        // The persistent surface is ours to release, after the window surface is gone.
+        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(),
+                mPersistentSurface == null);
         mInputWindowSurface.makeCurrent();
 
         mFullScreen = new FullFrameRect(
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
     }
 
+    /**
+     * Releases the encoder, EGL state and persistent surface kept between recordings in
+     * warm mode.  Does nothing if they aren't being kept.
+     */
+    private void releaseWarmState() {
+        if (mPersistentSurface == null) {
+            return;
+        }
+        if (mVideoEncoder != null) {
+            // Still recording; shouldn't happen, since a stop always precedes this.
+            mVideoEncoder.drainEncoder(true);
+        }
+        if (mNextEncoder != null) {
+            mNextEncoder.release();
+            mNextEncoder = null;
+        }
+        releaseEncoder();
+        mPersistentSurface.release();
+        mPersistentSurface = null;
+        mWarmConfig = null;
+    }
+
     private void releaseEncoder() {
-        mVideoEncoder.release();
+        if (mVideoEncoder != null) {
+            mVideoEncoder.release();
+            mVideoEncoder = null;
+        }
         if (mInputWindowSurface != null) {
             mInputWindowSurface.release();
             mInputWindowSurface = null;
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives BitrateController with synthetic packet traces.
+ */
+public class BitrateControllerTest {
+    private static final long FRAME_USEC = 33333;
+    private static final int FPS = 30;
+    private static final int BIT_RATE = 4000000;
+    private static final int MIN_BIT_RATE = 1000000;
+
+    /**
+     * Generates frames at 30fps, sized to fill whatever rate the controller last asked for,
+     * and applies the controller's decisions.
+     */
+    private static class Trace {
+        final BitrateController mController;
+        long mPtsUsec = 1000000;
+        long mDelayUsec = 20000;
+        float mQueueFill;
+        int mChanges;
+
+        Trace(BitrateController controller) {
+            mController = controller;
+        }
+
+        void run(int frames) {
+            for (int i = 0; i < frames; i++) {
+                int size = mController.getCurrentBitRate() / 8 / FPS;
+                int newRate = mController.frameEncoded(mPtsUsec, mPtsUsec + mDelayUsec, size,
+                        mQueueFill);
+                if (newRate != 0) {
+                    assertEquals(newRate, mController.getCurrentBitRate());
+                    mChanges++;
+                }
+                mPtsUsec += FRAME_USEC;
+            }
+        }
+    }
+
+    @Test
+    public void steadyStateLeavesRateAlone() {
+        Trace trace = new Trace(new BitrateController(BIT_RATE, MIN_BIT_RATE));
+        trace.run(FPS * 10);
+        assertEquals(0, trace.mChanges);
+        assertEquals(BIT_RATE, trace.mController.getCurrentBitRate());
+        int measured = trace.mController.getMeasuredBitRate();
+        assertTrue(Math.abs(measured - BIT_RATE) < BIT_RATE / 20);
+    }
+
+    @Test
+    public void backsOffWhenQueueFillsAndRecovers() {
+        Trace trace = new Trace(new BitrateController(BIT_RATE, MIN_BIT_RATE));
+        trace.run(FPS * 2);
+        trace.mQueueFill = 0.8f;
+        trace.run(FPS * 2);
+        int lowered = trace.mController.getCurrentBitRate();
+        assertTrue(lowered < BIT_RATE);
+
+        // Keeps cutting, but never below the floor.
+        trace.run(FPS * 20);
+        assertEquals(MIN_BIT_RATE, trace.mController.getCurrentBitRate());
+
+        // Climbs back to the target once the queue drains.
+        trace.mQueueFill = 0.0f;
+        trace.run(FPS * 40);
+        assertEquals(BIT_RATE, trace.mController.getCurrentBitRate());
+    }
+
+    @Test
+    public void backsOffWhenOutputLags() {
+        Trace trace = new Trace(new BitrateController(BIT_RATE, MIN_BIT_RATE));
+        trace.run(FPS * 2);
+        // Each frame takes a bit longer to come out than the one before.
+        for (int i = 0; i < FPS * 2; i++) {
+            trace.mDelayUsec += 10000;
+            trace.run(1);
+        }
+        assertTrue(trace.mController.getCurrentBitRate() < BIT_RATE);
+    }
+
+    @Test
+    public void pauseIsNotMistakenForLag() {
+        Trace trace = new Trace(new BitrateController(BIT_RATE, MIN_BIT_RATE));
+        trace.run(FPS * 2);
+        // Timestamps carry on from before the pause, but output arrives 5 seconds later.
+        trace.mDelayUsec += 5000000;
+        trace.run(FPS * 5);
+        assertEquals(0, trace.mChanges);
+    }
+
+    @Test
+    public void followsTargetChanges() {
+        Trace trace = new Trace(new BitrateController(BIT_RATE, MIN_BIT_RATE));
+        trace.run(FPS);
+        trace.mController.setTargetBitRate(BIT_RATE / 2);
+        trace.run(1);
+        assertEquals(BIT_RATE / 2, trace.mController.getCurrentBitRate());
+
+        // Raising it again is gradual.
+        trace.mController.setTargetBitRate(BIT_RATE);
+        trace.run(FPS + 1);
+        int rate = trace.mController.getCurrentBitRate();
+        assertTrue(rate > BIT_RATE / 2 && rate < BIT_RATE);
+        trace.run(FPS * 10);
+        assertEquals(BIT_RATE, trace.mController.getCurrentBitRate());
+    }
+
+    @Test
+    public void doesNotRaiseRateEncoderIsNotUsing() {
+        BitrateController controller = new BitrateController(BIT_RATE, MIN_BIT_RATE);
+        controller.setTargetBitRate(BIT_RATE / 2);
+        long pts = 0;
+        controller.frameEncoded(pts, pts, 1000, 0.0f);
+        controller.setTargetBitRate(BIT_RATE);
+        // Static scene: tiny frames, well under what we're allowed.
+        for (int i = 0; i < FPS * 10; i++) {
+            pts += FRAME_USEC;
+            controller.frameEncoded(pts, pts, 1000, 0.0f);
+        }
+        assertEquals(BIT_RATE / 2, controller.getCurrentBitRate());
+    }
+}
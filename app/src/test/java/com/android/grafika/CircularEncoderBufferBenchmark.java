@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Times CircularEncoderBuffer.add() with each way of wrapping ring positions: the old
+ * integer modulus, compare and subtract, and a mask with power-of-two capacities.  Not a
+ * unit test; run main() by hand on the host JVM (or copy it into an instrumentation test to
+ * measure on a device, which is where the divide matters).
+ * <p>
+ * The packet stream looks like a 6Mbps 60fps camera recording: a sync frame every second
+ * that's about eight times the size of the other frames, which vary randomly around the
+ * mean.
+ */
+public class CircularEncoderBufferBenchmark {
+    private static final int BIT_RATE = 6000000;
+    private static final int FRAME_RATE = 60;
+    private static final int SPAN_SEC = 10;
+    private static final int PACKETS = 200000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        ByteBuffer[] packets = makePackets(new Random(1), FRAME_RATE * 60);
+        for (int round = 0; round < ROUNDS; round++) {
+            // First rounds are JIT warm-up; the later ones are the numbers to look at.
+            long modulus = timeAdds(true, false, packets);
+            long plain = timeAdds(false, false, packets);
+            long pow2 = timeAdds(false, true, packets);
+            System.out.printf("round %d: modulus %.1f ns/add, compare/subtract %.1f ns/add, " +
+                    "mask %.1f ns/add%n", round, modulus / (double) PACKETS,
+                    plain / (double) PACKETS, pow2 / (double) PACKETS);
+        }
+    }
+
+    private static long timeAdds(boolean modulus, boolean powerOfTwo, ByteBuffer[] packets)
+            throws IOException {
+        CircularEncoderBuffer buf = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC,
+                CircularEncoderBuffer.Storage.DIRECT, null);
+        buf.setModulusWrap(modulus);
+        buf.setPowerOfTwoCapacity(powerOfTwo);
+        long ptsUsec = 0;
+        long startNsec = System.nanoTime();
+        for (int i = 0; i < PACKETS; i++) {
+            ByteBuffer packet = packets[i % packets.length];
+            packet.rewind();
+            int flags = (i % FRAME_RATE) == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            buf.add(packet, flags, ptsUsec);
+            ptsUsec += 1000000 / FRAME_RATE;
+        }
+        long elapsed = System.nanoTime() - startNsec;
+        buf.release();
+        return elapsed;
+    }
+
+    /**
+     * Generates a repeating set of packets.  Entry i is used for frame i (mod count), so
+     * count should be a multiple of FRAME_RATE.
+     */
+    private static ByteBuffer[] makePackets(Random rnd, int count) {
+        int avgBytes = BIT_RATE / 8 / FRAME_RATE;
+        // Sync frame is 8x a P-frame; one of each per second.
+        int pFrameBytes = avgBytes * FRAME_RATE / (FRAME_RATE - 1 + 8);
+        ByteBuffer[] packets = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int size;
+            if (i % FRAME_RATE == 0) {
+                size = pFrameBytes * 8;
+            } else {
+                size = (int) (pFrameBytes * (0.5 + rnd.nextDouble()));
+            }
+            packets[i] = ByteBuffer.allocateDirect(size);
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the same packet sequences through each CircularEncoderBuffer storage type and
+ * checks that they hold exactly the same data.
+ */
+public class CircularEncoderBufferTest {
+    private static final int BIT_RATE = 800000;     // 100KB/sec
+    private static final int FRAME_RATE = 30;
+    private static final int SPAN_SEC = 2;
+
+    private File mBackingFile;
+    private CircularEncoderBuffer[] mBuffers;
+
+    @Before
+    public void setUp() throws IOException {
+        mBackingFile = File.createTempFile("cebtest", ".ring");
+        mBuffers = new CircularEncoderBuffer[] {
+                new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC),
+                new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC,
+                        CircularEncoderBuffer.Storage.DIRECT, null),
+                new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC,
+                        CircularEncoderBuffer.Storage.MAPPED_FILE, mBackingFile),
+        };
+    }
+
+    @After
+    public void tearDown() {
+        for (CircularEncoderBuffer buf : mBuffers) {
+            buf.release();
+        }
+        mBackingFile.delete();
+    }
+
+    @Test
+    public void emptyBufferHasNoSyncFrame() {
+        for (CircularEncoderBuffer buf : mBuffers) {
+            assertEquals(-1, buf.getFirstIndex());
+            assertEquals(0, buf.computeTimeSpanUsec());
+        }
+    }
+
+    @Test
+    public void backendsMatchWithoutWrap() {
+        feedAndCompare(new Random(1), 20, 1000, 4000);
+    }
+
+    @Test
+    public void backendsMatchAfterManyWraps() {
+        // ~10 seconds of data into a 2-second buffer, so we wrap and evict repeatedly.
+        feedAndCompare(new Random(2), 300, 500, 8000);
+    }
+
+    @Test
+    public void backendsMatchAboveTargetBitRate() {
+        feedAndCompare(new Random(3), 200, 2000, 6000);
+    }
+
+    @Test
+    public void mappedFileIsDeletedOnRelease() {
+        assertTrue(mBackingFile.exists());
+        mBuffers[2].release();
+        assertTrue(!mBackingFile.exists());
+    }
+
+    @Test
+    public void gatheredPartsMatchChunks() {
+        feedAndCompare(new Random(4), 300, 500, 8000);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer[] parts = new ByteBuffer[2];
+        for (CircularEncoderBuffer buf : mBuffers) {
+            List<byte[]> expected = readAll(buf);
+            int wrapped = 0;
+            int j = 0;
+            for (int index = buf.getFirstIndex(); index >= 0; index = buf.getNextIndex(index)) {
+                int count = buf.getChunkParts(index, info, parts);
+                if (count == 2) {
+                    wrapped++;
+                }
+                ByteBuffer out = ByteBuffer.allocate(info.size + 12);
+                out.putLong(info.presentationTimeUs);
+                out.putInt(info.flags);
+                for (int k = 0; k < count; k++) {
+                    out.put(parts[k].duplicate());
+                }
+                assertEquals(0, out.remaining());
+                assertArrayEquals(expected.get(j++), out.array());
+            }
+            assertEquals(expected.size(), j);
+            assertTrue(wrapped <= 1);
+        }
+    }
+
+    @Test
+    public void wrappedReadsReuseScratchBuffer() {
+        // Repeatedly fill and save the full window.  Packets that straddle the end of the
+        // ring must come back in the same scratch buffer, which is only reallocated when a
+        // bigger packet than any seen before shows up -- never once per packet.
+        Random rnd = new Random(5);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer[] parts = new ByteBuffer[2];
+        for (CircularEncoderBuffer buf : mBuffers) {
+            ByteBuffer scratch = null;
+            int allocations = 0;
+            int wrapped = 0;
+            long ptsUsec = 0;
+            for (int i = 0; i < 3000; i++) {
+                int size = 1000 + rnd.nextInt(6000);
+                ByteBuffer bb = ByteBuffer.allocate(size);
+                int flags = (i % FRAME_RATE) == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+                buf.add(bb, flags, ptsUsec);
+                ptsUsec += 1000000 / FRAME_RATE;
+
+                for (int index = buf.getFirstIndex(); index >= 0;
+                        index = buf.getNextIndex(index)) {
+                    if (buf.getChunkParts(index, info, parts) != 2) {
+                        continue;
+                    }
+                    ByteBuffer chunk = buf.getChunk(index, info);
+                    if (chunk != scratch) {
+                        scratch = chunk;
+                        allocations++;
+                    }
+                    wrapped++;
+                }
+            }
+            assertTrue(wrapped > 1000);
+            assertTrue("allocations=" + allocations, allocations <= 3);
+        }
+    }
+
+    @Test
+    public void syncIndexTracksEviction() {
+        // Irregular GOPs, lots of wrapping.  After every add, the oldest sync frame must be
+        // the oldest sync frame that's still within the buffered time span.
+        Random rnd = new Random(6);
+        CircularEncoderBuffer buf = mBuffers[0];
+        List<Long> syncPts = new ArrayList<Long>();
+        long ptsUsec = 0;
+        for (int i = 0; i < 2000; i++) {
+            boolean sync = rnd.nextInt(20) == 0;
+            int flags = sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            buf.add(ByteBuffer.allocate(500 + rnd.nextInt(4000)), flags, ptsUsec);
+            if (sync) {
+                syncPts.add(ptsUsec);
+            }
+
+            long tailPts = ptsUsec - buf.computeTimeSpanUsec();
+            long expected = -1;
+            for (long pts : syncPts) {
+                if (pts >= tailPts) {
+                    expected = pts;
+                    break;
+                }
+            }
+            int index = buf.getFirstIndex();
+            assertEquals(expected, index < 0 ? -1 : buf.getPtsUsec(index));
+            ptsUsec += 33333;
+        }
+    }
+
+    @Test
+    public void syncIndexAtOrBefore() {
+        CircularEncoderBuffer buf = mBuffers[0];
+        assertEquals(-1, buf.getSyncIndexAtOrBefore(0));
+        // Sync frames at 0, 1s, 2s, ... with 10 frames per second.
+        for (int i = 0; i < 15; i++) {
+            int flags = (i % 10) == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            buf.add(ByteBuffer.allocate(100), flags, i * 100000L);
+        }
+        assertEquals(0, buf.getPtsUsec(buf.getSyncIndexAtOrBefore(-5)));
+        assertEquals(0, buf.getPtsUsec(buf.getSyncIndexAtOrBefore(999999)));
+        assertEquals(1000000, buf.getPtsUsec(buf.getSyncIndexAtOrBefore(1000000)));
+        assertEquals(1000000, buf.getPtsUsec(buf.getSyncIndexAtOrBefore(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void syncFrameDueBeforeNewestIsEvicted() {
+        // A long GOP, with sync frames only when the buffer asks for them.  The buffer
+        // holds 200KB; at 5KB per frame that's 40 frames.
+        CircularEncoderBuffer buf = mBuffers[0];
+        assertTrue(!buf.isSyncFrameDue(0.25f));
+        boolean requested = true;       // first frame is always a sync frame
+        long ptsUsec = 0;
+        for (int i = 0; i < 1000; i++) {
+            int flags = requested ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            buf.add(ByteBuffer.allocate(5000), flags, ptsUsec);
+            requested = buf.isSyncFrameDue(0.25f);
+            ptsUsec += 33333;
+
+            // Most of the buffer can always be saved.
+            CircularEncoderBuffer.Stats stats = buf.getStats();
+            int first = buf.getFirstIndex();
+            long usable = buf.getHeadSequence() - buf.getSequence(first);
+            if (i >= 40) {
+                assertTrue("usable=" + usable, usable >= stats.metaSlotsUsed * 3 / 4 - 1);
+            }
+        }
+        // About one sync frame per quarter-buffer, rather than one per frame.
+        int syncFrames = buf.getStats().syncFrames;
+        assertTrue("sync=" + syncFrames, syncFrames >= 3 && syncFrames <= 5);
+
+        // No sync frame at all: always due.
+        CircularEncoderBuffer other = mBuffers[1];
+        other.add(ByteBuffer.allocate(100), 0, 0);
+        assertTrue(other.isSyncFrameDue(0.9f));
+    }
+
+    @Test
+    public void syncFrameDueByRetentionTime() {
+        // Small packets, so only the time span can trigger it.
+        CircularEncoderBuffer buf = mBuffers[0];
+        buf.setRetentionPolicy(2000000, 0, 0);
+        buf.add(ByteBuffer.allocate(10), MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0);
+        buf.add(ByteBuffer.allocate(10), 0, 400000);
+        assertTrue(!buf.isSyncFrameDue(0.25f));
+        buf.add(ByteBuffer.allocate(10), 0, 600000);
+        assertTrue(buf.isSyncFrameDue(0.25f));
+    }
+
+    @Test
+    public void copyChunkDetectsEviction() {
+        CircularEncoderBuffer buf = mBuffers[1];
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        buf.add(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0);
+        long seq = buf.getSequence(buf.getFirstIndex());
+        assertEquals(0, seq);
+        assertEquals(1, buf.getHeadSequence());
+        assertEquals(-1, buf.getIndexForSequence(1));
+
+        ByteBuffer copy = buf.copyChunk(seq, null, info);
+        assertEquals(3, copy.remaining());
+        assertEquals(3, copy.get(2));
+        assertEquals(0, info.presentationTimeUs);
+
+        // Push enough data through to evict the first packet.
+        for (int i = 1; i < 100; i++) {
+            buf.add(ByteBuffer.allocate(10000), 0, i * 33333L);
+        }
+        assertEquals(-1, buf.getIndexForSequence(seq));
+        assertEquals(null, buf.copyChunk(seq, copy, info));
+        long newest = buf.getHeadSequence() - 1;
+        assertEquals(newest, buf.getSequence(buf.getIndexForSequence(newest)));
+        ByteBuffer last = buf.copyChunk(newest, copy, info);
+        assertEquals(10000, last.remaining());
+        assertEquals(99 * 33333L, info.presentationTimeUs);
+    }
+
+    @Test
+    public void retentionEvictsByAge() {
+        // 200KB buffer, 1-second GOPs, ~30KB/sec: the data fits, so without a policy we'd
+        // hold as much as the meta-data allows (4 seconds).  With a 2-second policy we
+        // should hold 2-3 seconds.
+        CircularEncoderBuffer buf = mBuffers[0];
+        buf.setRetentionPolicy(2000000, 0, 0);
+        long ptsUsec = 0;
+        for (int i = 0; i < 300; i++) {
+            int flags = (i % FRAME_RATE) == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            buf.add(ByteBuffer.allocate(1000), flags, ptsUsec);
+            if (i > 150) {
+                long span = buf.computeTimeSpanUsec();
+                assertTrue("span=" + span, span >= 1990000 && span < 3000000);
+                int first = buf.getFirstIndex();
+                assertTrue(ptsUsec - buf.getPtsUsec(first) >= 1990000);
+            }
+            ptsUsec += 1000000 / FRAME_RATE;
+        }
+    }
+
+    @Test
+    public void resizeTracksObservedBitRate() {
+        for (CircularEncoderBuffer buf : mBuffers) {
+            // Configured for 100KB/sec, encoder actually delivers ~300KB/sec.
+            buf.setRetentionPolicy(3000000, 50000, 2000000);
+            feedAt(buf, new Random(7), 600, 10000);
+            assertTrue("capacity=" + buf.getDataCapacity(), buf.getDataCapacity() > 600000);
+            long span = buf.computeTimeSpanUsec();
+            assertTrue("span=" + span, span >= 2990000);
+            int bitRate = buf.getObservedBitRate();
+            assertTrue("bitRate=" + bitRate, bitRate > 2000000 && bitRate < 2800000);
+
+            // Now it drops to ~30KB/sec, so the buffer should shrink.
+            feedAt(buf, new Random(8), 1200, 1000);
+            assertTrue("capacity=" + buf.getDataCapacity(), buf.getDataCapacity() < 200000);
+            span = buf.computeTimeSpanUsec();
+            assertTrue("span=" + span, span >= 2990000);
+            readAll(buf);
+        }
+    }
+
+    @Test
+    public void onlyTrackZeroSyncFramesAreIndexed() {
+        CircularEncoderBuffer buf = mBuffers[0];
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        // Audio encoders may flag every packet as a sync frame; that mustn't matter.
+        buf.add(1, ByteBuffer.allocate(200), MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0);
+        assertEquals(-1, buf.getFirstIndex());
+        buf.add(0, ByteBuffer.allocate(900), MediaCodec.BUFFER_FLAG_SYNC_FRAME, 10000);
+        buf.add(1, ByteBuffer.allocate(200), MediaCodec.BUFFER_FLAG_SYNC_FRAME, 21000);
+        buf.add(0, ByteBuffer.allocate(300), 0, 43333);
+
+        int index = buf.getFirstIndex();
+        assertEquals(0, buf.getTrack(index));
+        assertEquals(10000, buf.getPtsUsec(index));
+        assertEquals(0, buf.getTailSequence());
+        assertEquals(4, buf.getHeadSequence());
+
+        int[] expectedTracks = { 0, 1, 0 };
+        for (int i = 0; i < expectedTracks.length; i++) {
+            assertEquals(expectedTracks[i], buf.getTrack(index));
+            buf.getChunk(index, info);
+            assertEquals(i == 0, (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+            index = buf.getNextIndex(index);
+        }
+        assertEquals(-1, index);
+    }
+
+    @Test
+    public void exactFitDoesNotOverwriteTail() {
+        // The 200KB data buffer is exactly filled by the first two packets (or, with the
+        // one-byte gap the buffer used to leave after each packet, by 100000 + 99999).
+        // The next packet must evict the tail, not write over it.
+        int[][] patterns = { { 100000, 100000, 50, 70000 }, { 100000, 99999, 50, 70000 } };
+        for (int[] sizes : patterns) {
+            for (CircularEncoderBuffer buf : mBuffers) {
+                long ptsUsec = buf.getHeadSequence() * 33333L;
+                for (int size : sizes) {
+                    addTagged(buf, size, ptsUsec);
+                    verifyTagged(buf);
+                    ptsUsec += 33333;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void powerOfTwoCapacity() throws IOException {
+        for (CircularEncoderBuffer buf : mBuffers) {
+            Random rnd = new Random(9);
+            for (int i = 0; i < 50; i++) {
+                addTagged(buf, 500 + rnd.nextInt(4000), i * 33333L);
+            }
+            buf.setPowerOfTwoCapacity(true);
+            assertEquals(262144, buf.getDataCapacity());
+            assertEquals(127, buf.getMetaCapacity());     // head slot is always empty
+            verifyTagged(buf);
+
+            // Resizes keep to powers of two, and never go over the maximum.
+            buf.setRetentionPolicy(3000000, 50000, 1000000);
+            for (int i = 50; i < 1500; i++) {
+                int avg = (i < 700) ? 10000 : 1000;
+                addTagged(buf, avg / 2 + rnd.nextInt(avg), i * 33333L);
+                assertEquals(1, Integer.bitCount(buf.getDataCapacity()));
+                assertEquals(1, Integer.bitCount(buf.getMetaCapacity() + 1));
+                assertTrue(buf.getDataCapacity() <= 1000000);
+            }
+            verifyTagged(buf);
+            assertTrue("span=" + buf.computeTimeSpanUsec(),
+                    buf.computeTimeSpanUsec() >= 2990000);
+        }
+    }
+
+    @Test
+    public void statsCountOccupancyAndEvictions() {
+        CircularEncoderBuffer buf = mBuffers[0];
+        CircularEncoderBuffer.Stats stats = buf.getStats();
+        assertEquals(0, stats.dataBytesUsed);
+        assertEquals(200000, stats.dataCapacity);
+        assertEquals(0, stats.metaSlotsUsed);
+
+        // 50 small packets: no evictions.  Every 30th is a sync frame.
+        for (int i = 0; i < 50; i++) {
+            addTagged(buf, 100, i * 33333L);
+        }
+        stats = buf.getStats();
+        assertEquals(5000, stats.dataBytesUsed);
+        assertEquals(50, stats.metaSlotsUsed);
+        assertEquals(2, stats.syncFrames);
+        assertEquals(0, stats.evictedDataFull + stats.evictedMetaFull);
+
+        // Run out of meta-data slots (119 of them) with tiny packets.
+        for (int i = 50; i < 200; i++) {
+            addTagged(buf, 10, i * 33333L);
+        }
+        stats = buf.getStats();
+        assertEquals(stats.metaCapacity, stats.metaSlotsUsed);
+        assertEquals(200 - stats.metaCapacity, stats.evictedMetaFull);
+        assertEquals(0, stats.evictedDataFull);
+
+        // Now run out of data with big ones.  The third one wraps around the end.
+        for (int i = 200; i < 203; i++) {
+            addTagged(buf, 80000, i * 33333L);
+        }
+        stats = buf.getStats();
+        assertEquals(2, stats.metaSlotsUsed);
+        assertEquals(160000, stats.dataBytesUsed);
+        assertEquals(80000, stats.largestPacket);
+        assertTrue(stats.evictedDataFull > 0);
+        assertEquals(1, stats.wrapSplitPackets);
+        assertEquals(203, stats.packetsAdded);
+        assertEquals(203, stats.metaSlotsUsed + stats.evictedDataFull + stats.evictedMetaFull);
+        verifyTagged(buf);
+    }
+
+    @Test
+    public void snapshotSkipsPacketsEvictedAheadOfSyncFrame() throws IOException {
+        // The tail moves between the save request and the write, but stays short of the
+        // sync frame, so nothing the file needs has gone.
+        assertEquals(0, snapshotAfterEviction(20));
+    }
+
+    @Test
+    public void snapshotFailsWhenSyncFrameIsEvicted() throws IOException {
+        assertEquals(3, snapshotAfterEviction(100));
+    }
+
+    /**
+     * Fills a buffer with interleaved video and audio, captures a save request the way the
+     * encoder thread does, adds "extra" more packets, then runs the SnapshotWriter.
+     *
+     * @return The status passed to fileSaveComplete().
+     */
+    private int snapshotAfterEviction(int extra) throws IOException {
+        CircularEncoderBuffer buf = mBuffers[0];
+        addInterleaved(buf, 300);
+        long lastPtsUsec = buf.getPtsUsec(buf.getIndexForSequence(buf.getHeadSequence() - 1));
+        int index = buf.getSyncIndexAtOrBefore(lastPtsUsec);
+        long startSeq = buf.getSequence(index);
+        long tailSeq = buf.getTailSequence();
+        File outputFile = File.createTempFile("cebtest", ".mp4");
+        final int[] status = { -1 };
+        CircularEncoder.SnapshotWriter writer = new CircularEncoder.SnapshotWriter(buf,
+                new MediaFormat[] { new MediaFormat(), new MediaFormat() },
+                new CircularEncoder.SaveRequest(outputFile, 0, Long.MAX_VALUE),
+                startSeq, buf.getPtsUsec(index), tailSeq, buf.getHeadSequence(),
+                new CircularEncoder.Callback() {
+                    @Override
+                    public void fileSaveComplete(int result) {
+                        status[0] = result;
+                    }
+
+                    @Override
+                    public void bufferStatus(long totalTimeMsec) {}
+                });
+
+        addInterleaved(buf, extra);
+        assertTrue(buf.getTailSequence() > tailSeq);
+        try {
+            writer.run();
+        } finally {
+            outputFile.delete();
+        }
+        return status[0];
+    }
+
+    /**
+     * Adds packets alternating between video (track 0) and audio (track 1), with the audio
+     * a little behind the video and a video sync frame every FRAME_RATE frames.
+     */
+    private static void addInterleaved(CircularEncoderBuffer buf, int count) {
+        for (int i = 0; i < count; i++) {
+            long seq = buf.getHeadSequence();
+            int track = (int) (seq % 2);
+            long frame = seq / 2;
+            int flags = (track == 0 && frame % FRAME_RATE == 0) ?
+                    MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            buf.add(track, ByteBuffer.allocate(100), flags, frame * 33333L - track * 1000);
+        }
+    }
+
+    /**
+     * Adds a packet filled with a byte derived from its sequence number, with a sync frame
+     * every FRAME_RATE packets.
+     */
+    private static void addTagged(CircularEncoderBuffer buf, int size, long ptsUsec) {
+        long seq = buf.getHeadSequence();
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) seq);
+        int flags = (seq % FRAME_RATE) == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        buf.add(ByteBuffer.wrap(data), flags, ptsUsec);
+    }
+
+    /**
+     * Checks that every packet in the buffer still holds the bytes addTagged() put there.
+     */
+    private static void verifyTagged(CircularEncoderBuffer buf) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer copy = null;
+        for (long seq = buf.getTailSequence(); seq < buf.getHeadSequence(); seq++) {
+            copy = buf.copyChunk(seq, copy, info);
+            while (copy.hasRemaining()) {
+                assertEquals("seq " + seq, (byte) seq, copy.get());
+            }
+        }
+    }
+
+    /**
+     * Adds packets averaging "avgSize" bytes, continuing the time stamps from whatever is
+     * already in the buffer.
+     */
+    private static void feedAt(CircularEncoderBuffer buf, Random rnd, int numPackets,
+            int avgSize) {
+        long headSeq = buf.getHeadSequence();
+        long ptsUsec = headSeq * (1000000 / FRAME_RATE);
+        for (int i = 0; i < numPackets; i++) {
+            boolean sync = ((headSeq + i) % FRAME_RATE) == 0;
+            int size = avgSize / 2 + rnd.nextInt(avgSize);
+            byte[] data = new byte[size];
+            rnd.nextBytes(data);
+            buf.add(ByteBuffer.wrap(data), sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0,
+                    ptsUsec);
+            ptsUsec += 1000000 / FRAME_RATE;
+        }
+    }
+
+    /**
+     * Adds a pseudo-random packet sequence to every buffer, then walks them all from the
+     * first sync frame and compares the packets byte for byte.
+     */
+    private void feedAndCompare(Random rnd, int numPackets, int minSize, int maxSize) {
+        long ptsUsec = 0;
+        for (int i = 0; i < numPackets; i++) {
+            boolean sync = (i % FRAME_RATE) == 0;
+            int size = minSize + rnd.nextInt(maxSize - minSize);
+            if (sync) {
+                size *= 3;
+            }
+            byte[] data = new byte[size];
+            rnd.nextBytes(data);
+            int flags = sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            for (CircularEncoderBuffer buf : mBuffers) {
+                // Feed from an offset within a larger buffer, like MediaCodec output does.
+                ByteBuffer bb = ByteBuffer.allocate(size + 16);
+                bb.position(7);
+                bb.put(data);
+                bb.position(7);
+                bb.limit(7 + size);
+                buf.add(bb, flags, ptsUsec);
+            }
+            ptsUsec += 1000000 / FRAME_RATE;
+        }
+
+        List<byte[]> expected = readAll(mBuffers[0]);
+        assertTrue(expected.size() > 0);
+        for (int i = 1; i < mBuffers.length; i++) {
+            List<byte[]> actual = readAll(mBuffers[i]);
+            assertEquals(expected.size(), actual.size());
+            for (int j = 0; j < expected.size(); j++) {
+                assertArrayEquals("packet " + j + " backend " + i, expected.get(j), actual.get(j));
+            }
+            assertEquals(mBuffers[0].computeTimeSpanUsec(), mBuffers[i].computeTimeSpanUsec());
+        }
+    }
+
+    /**
+     * Reads every packet from the first sync frame onward.  The PTS and flags are folded
+     * into the returned arrays so they get compared too.
+     */
+    private static List<byte[]> readAll(CircularEncoderBuffer buf) {
+        List<byte[]> packets = new ArrayList<byte[]>();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int index = buf.getFirstIndex();
+        assertTrue(index >= 0);
+        while (index >= 0) {
+            ByteBuffer chunk = buf.getChunk(index, info);
+            byte[] packet = new byte[info.size + 12];
+            ByteBuffer out = ByteBuffer.wrap(packet);
+            out.putLong(info.presentationTimeUs);
+            out.putInt(info.flags);
+            ByteBuffer src = chunk.duplicate();
+            src.limit(info.offset + info.size);
+            src.position(info.offset);
+            out.put(src);
+            packets.add(packet);
+            index = buf.getNextIndex(index);
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that ContentManifest only vouches for files that haven't changed.
+ */
+public class ContentManifestTest {
+    private static final String PARAMS = "test v1 320x240";
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("manifesttest", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    private File writeContent(String name, int length) throws IOException {
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < length; i++) {
+                out.write(i * 31);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void recordedFileSurvivesReload() throws IOException {
+        File manifestFile = new File(mDir, "manifest");
+        File content = writeContent("movie.mp4", 100000);
+        assertFalse(new ContentManifest(manifestFile).isValid(content, PARAMS));
+
+        new ContentManifest(manifestFile).record(content, PARAMS);
+
+        ContentManifest manifest = new ContentManifest(manifestFile);
+        assertTrue(manifest.isRecorded(content, PARAMS));
+        assertTrue(manifest.isValid(content, PARAMS));
+        // Different parameters mean the file is stale.
+        assertFalse(manifest.isValid(content, "test v2 320x240"));
+    }
+
+    @Test
+    public void changedFileIsNotValid() throws IOException {
+        File manifestFile = new File(mDir, "manifest");
+        ContentManifest manifest = new ContentManifest(manifestFile);
+        File content = writeContent("movie.mp4", 100000);
+        manifest.record(content, PARAMS);
+
+        // Same length, one byte different: only the checksum catches it.
+        RandomAccessFile raf = new RandomAccessFile(content, "rw");
+        try {
+            raf.seek(50000);
+            int value = raf.read();
+            raf.seek(50000);
+            raf.write(value ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        assertTrue(manifest.isRecorded(content, PARAMS));
+        assertFalse(manifest.isValid(content, PARAMS));
+
+        // Truncated, as if we died while writing it.
+        writeContent("movie.mp4", 1000);
+        assertFalse(manifest.isRecorded(content, PARAMS));
+
+        // Gone.
+        assertTrue(content.delete());
+        assertFalse(manifest.isRecorded(content, PARAMS));
+    }
+
+    @Test
+    public void removedFileIsNotValid() throws IOException {
+        File manifestFile = new File(mDir, "manifest");
+        ContentManifest manifest = new ContentManifest(manifestFile);
+        File content = writeContent("movie.mp4", 1000);
+        manifest.record(content, PARAMS);
+        manifest.remove(content);
+        assertFalse(manifest.isValid(content, PARAMS));
+        assertFalse(new ContentManifest(manifestFile).isValid(content, PARAMS));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds FrameRateGovernor display-rate frame times and checks what comes out.
+ */
+public class FrameRateGovernorTest {
+    private static final long VSYNC_60 = 16666667L;
+    private static final long START = 5000000000L;
+
+    /**
+     * Offers "count" frames at the given period, with +/-1ms of jitter on every other one,
+     * and returns the presentation times of the ones kept.
+     */
+    private static List<Long> run(FrameRateGovernor governor, long periodNanos, int count) {
+        List<Long> kept = new ArrayList<Long>();
+        for (int i = 0; i < count; i++) {
+            long jitter = (i % 2 == 0) ? 0 : ((i % 4 == 1) ? 1000000 : -1000000);
+            long pts = governor.frameAvailable(START + i * periodNanos + jitter, true);
+            if (pts >= 0) {
+                kept.add(pts);
+            }
+        }
+        return kept;
+    }
+
+    @Test
+    public void passesEverythingByDefault() {
+        FrameRateGovernor governor = new FrameRateGovernor();
+        assertEquals(60, run(governor, VSYNC_60, 60).size());
+        assertEquals(0, governor.getDroppedFrames());
+    }
+
+    @Test
+    public void halvesSixtyToThirty() {
+        FrameRateGovernor governor = new FrameRateGovernor();
+        governor.setTargetFps(30);
+        List<Long> kept = run(governor, VSYNC_60, 600);
+        assertEquals(300, kept.size());
+        assertEvenlySpaced(kept, 1000000000L / 30);
+        assertEquals(300, governor.getDroppedFrames());
+    }
+
+    @Test
+    public void convertsSixtyToTwentyFour() {
+        FrameRateGovernor governor = new FrameRateGovernor();
+        governor.setTargetFps(24);
+        List<Long> kept = run(governor, VSYNC_60, 600);
+        // 10 seconds; allow for the edge.
+        assertTrue("kept " + kept.size(), Math.abs(kept.size() - 240) <= 1);
+        assertEvenlySpaced(kept, 1000000000L / 24);
+    }
+
+    @Test
+    public void timeLapseRewritesTimestamps() {
+        FrameRateGovernor governor = new FrameRateGovernor();
+        governor.setTimeLapse(1000000000L, 30);     // 1 frame per second, played at 30fps
+        List<Long> kept = run(governor, VSYNC_60, 60 * 60);
+        assertTrue("kept " + kept.size(), Math.abs(kept.size() - 60) <= 1);
+        assertEquals(START, (long) kept.get(0));
+        assertEvenlySpaced(kept, 1000000000L / 30);
+    }
+
+    @Test
+    public void dropsDuplicatesButKeepsChanges() {
+        FrameRateGovernor governor = new FrameRateGovernor();
+        governor.setDropDuplicates(true, 1000000000L);
+        long t = START;
+        assertEquals(t, governor.frameAvailable(t, true));
+        // Static for 3 seconds: one frame a second gets through.
+        int kept = 0;
+        for (int i = 1; i <= 180; i++) {
+            if (governor.frameAvailable(t + i * VSYNC_60, false) >= 0) {
+                kept++;
+            }
+        }
+        assertEquals(3, kept);
+        // A change gets through right away.
+        t += 181 * VSYNC_60;
+        assertEquals(t, governor.frameAvailable(t, true));
+    }
+
+    @Test
+    public void changeInSkippedSlotIsNotLost() {
+        FrameRateGovernor governor = new FrameRateGovernor();
+        governor.setTargetFps(30);
+        governor.setDropDuplicates(true, 1000000000L);
+        governor.frameAvailable(START, true);
+        // Changes on a frame the rate limit skips...
+        assertEquals(-1, governor.frameAvailable(START + VSYNC_60, true));
+        // ...so the next slot's frame is kept even though it's unchanged itself.
+        assertTrue(governor.frameAvailable(START + 2 * VSYNC_60, false) >= 0);
+        assertEquals(-1, governor.frameAvailable(START + 4 * VSYNC_60, false));
+    }
+
+    private static void assertEvenlySpaced(List<Long> pts, long intervalNanos) {
+        for (int i = 1; i < pts.size(); i++) {
+            long delta = pts.get(i) - pts.get(i - 1);
+            assertTrue("delta " + delta + " at " + i, Math.abs(delta - intervalNanos) <= 1);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Times FrameSynthesizer on one thread and on all of them.  Not a unit test; run main()
+ * by hand on the host JVM.
+ * <p>
+ * The frames are 720p, with a full-frame clear and a few dozen boxes, which is a bit more
+ * than the generated movies draw.  The consumer copies each frame out, roughly what
+ * queueing it to an encoder costs.
+ */
+public class FrameSynthesizerBenchmark {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int FRAMES = 600;
+    private static final int FRAMES_AHEAD = 4;
+    private static final int ROUNDS = 5;
+
+    private static class BoxesSource implements FrameSynthesizer.FrameSource {
+        @Override
+        public void drawFrame(int frameIndex, FrameSynthesizer.Canvas canvas) {
+            float shade = (frameIndex % 100) / 100.0f;
+            canvas.clear(shade, shade, shade);
+            for (int i = 0; i < 40; i++) {
+                int x = (frameIndex * 7 + i * 31) % WIDTH;
+                int y = (frameIndex * 3 + i * 17) % HEIGHT;
+                canvas.fillRect(x, y, 96, 96, (i % 3) / 2.0f, (i % 5) / 4.0f, (i % 7) / 6.0f);
+            }
+        }
+
+        @Override
+        public long getPresentationTimeNsec(int frameIndex) {
+            return frameIndex * 1000000000L / 30;
+        }
+    }
+
+    public static void main(String[] args) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (int round = 0; round < ROUNDS; round++) {
+            // First rounds are JIT warm-up; the later ones are the numbers to look at.
+            long serial = timeFrames(1);
+            long parallel = timeFrames(cpus);
+            System.out.printf("round %d: 1 thread %.2f ms/frame, %d threads %.2f ms/frame%n",
+                    round, serial / 1e6 / FRAMES, cpus, parallel / 1e6 / FRAMES);
+        }
+    }
+
+    private static long timeFrames(int parallelism) {
+        byte[] encoderInput = new byte[FrameSynthesizer.getFrameSize(WIDTH, HEIGHT)];
+        long startNsec = System.nanoTime();
+        FrameSynthesizer synth = new FrameSynthesizer(WIDTH, HEIGHT, true, new BoxesSource(),
+                FRAMES, FRAMES_AHEAD, parallelism);
+        FrameSynthesizer.Frame frame;
+        while ((frame = synth.take()) != null) {
+            frame.getBuffer().get(encoderInput);
+            synth.release(frame);
+        }
+        synth.shutdown();
+        return System.nanoTime() - startNsec;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks FrameSynthesizer's pixels and frame ordering, without a GPU or encoder.
+ */
+public class FrameSynthesizerTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 200;      // tall enough to be split into bands
+
+    // BT.601 limited-range values for the colors we use.
+    private static final int BLACK_Y = 16;
+    private static final int WHITE_Y = 235;
+    private static final int RED_Y = 81;
+    private static final int RED_U = 90;
+    private static final int RED_V = 240;
+    private static final int NEUTRAL_UV = 128;
+
+    /**
+     * Black frame, with a white bar whose height is the frame number, and a red square in
+     * the bottom-left corner that hangs off the edge of the frame.
+     */
+    private static class TestSource implements FrameSynthesizer.FrameSource {
+        @Override
+        public void drawFrame(int frameIndex, FrameSynthesizer.Canvas canvas) {
+            canvas.clear(0.0f, 0.0f, 0.0f);
+            canvas.fillRect(8, HEIGHT - frameIndex, 8, frameIndex, 1.0f, 1.0f, 1.0f);
+            canvas.fillRect(-4, -4, 20, 20, 1.0f, 0.0f, 0.0f);
+        }
+
+        @Override
+        public long getPresentationTimeNsec(int frameIndex) {
+            return frameIndex * 1000000000L / 30;
+        }
+    }
+
+    private static List<byte[]> synthesize(boolean semiPlanar, int numFrames, int framesAhead,
+            int parallelism) {
+        FrameSynthesizer synth = new FrameSynthesizer(WIDTH, HEIGHT, semiPlanar,
+                new TestSource(), numFrames, framesAhead, parallelism);
+        List<byte[]> frames = new ArrayList<byte[]>();
+        try {
+            FrameSynthesizer.Frame frame;
+            while ((frame = synth.take()) != null) {
+                assertEquals(frames.size(), frame.getIndex());
+                ByteBuffer buf = frame.getBuffer();
+                assertEquals(FrameSynthesizer.getFrameSize(WIDTH, HEIGHT), buf.remaining());
+                byte[] copy = new byte[buf.remaining()];
+                buf.get(copy);
+                frames.add(copy);
+                synth.release(frame);
+            }
+            assertNull(synth.take());
+        } finally {
+            synth.shutdown();
+        }
+        return frames;
+    }
+
+    private static int luma(byte[] frame, int x, int row) {
+        return frame[row * WIDTH + x] & 0xff;
+    }
+
+    @Test
+    public void framesComeOutInOrder() {
+        assertEquals(50, synthesize(false, 50, 3, 4).size());
+    }
+
+    @Test
+    public void drawsWithGlOrientation() {
+        byte[] frame = synthesize(false, 31, 2, 2).get(30);
+        // White bar reaches down 30 rows from the top.
+        assertEquals(WHITE_Y, luma(frame, 8, 0));
+        assertEquals(WHITE_Y, luma(frame, 15, 29));
+        assertEquals(BLACK_Y, luma(frame, 8, 30));
+        assertEquals(BLACK_Y, luma(frame, 16, 0));
+        // Red square covers the 16x16 at the bottom left.
+        assertEquals(RED_Y, luma(frame, 0, HEIGHT - 1));
+        assertEquals(RED_Y, luma(frame, 15, HEIGHT - 16));
+        assertEquals(BLACK_Y, luma(frame, 16, HEIGHT - 1));
+        assertEquals(BLACK_Y, luma(frame, 0, HEIGHT - 17));
+
+        // I420: U plane then V plane, each a quarter the size.
+        int uPlane = WIDTH * HEIGHT;
+        int vPlane = uPlane + WIDTH * HEIGHT / 4;
+        int redChroma = (HEIGHT / 2 - 1) * (WIDTH / 2);
+        assertEquals(RED_U, frame[uPlane + redChroma] & 0xff);
+        assertEquals(RED_V, frame[vPlane + redChroma] & 0xff);
+        assertEquals(NEUTRAL_UV, frame[uPlane] & 0xff);
+        assertEquals(NEUTRAL_UV, frame[vPlane] & 0xff);
+    }
+
+    @Test
+    public void semiPlanarInterleavesChroma() {
+        byte[] frame = synthesize(true, 1, 1, 1).get(0);
+        int uvPlane = WIDTH * HEIGHT;
+        int redChroma = uvPlane + (HEIGHT / 2 - 1) * WIDTH;
+        assertEquals(RED_U, frame[redChroma] & 0xff);
+        assertEquals(RED_V, frame[redChroma + 1] & 0xff);
+        assertEquals(NEUTRAL_UV, frame[uvPlane] & 0xff);
+        assertEquals(NEUTRAL_UV, frame[uvPlane + 1] & 0xff);
+    }
+
+    @Test
+    public void parallelismDoesNotChangeOutput() {
+        List<byte[]> serial = synthesize(false, 40, 1, 1);
+        List<byte[]> parallel = synthesize(false, 40, 6, 8);
+        for (int i = 0; i < serial.size(); i++) {
+            assertArrayEquals("frame " + i, serial.get(i), parallel.get(i));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sourceFailureReachesConsumer() {
+        FrameSynthesizer synth = new FrameSynthesizer(WIDTH, HEIGHT, false,
+                new TestSource() {
+                    @Override
+                    public void drawFrame(int frameIndex, FrameSynthesizer.Canvas canvas) {
+                        throw new IllegalStateException("broken frame " + frameIndex);
+                    }
+                }, 10, 2, 2);
+        try {
+            synth.take();
+        } finally {
+            synth.shutdown();
+        }
+    }
+}
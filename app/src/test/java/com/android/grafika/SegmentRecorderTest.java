@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks segment rotation and crash recovery in SegmentRecorder.  (Export needs a real
+ * MediaMuxer, so it isn't covered here.)
+ */
+public class SegmentRecorderTest {
+    private static final long FRAME_USEC = 33333;
+    private static final int GOP_FRAMES = 30;
+    // Segment lengths are a little short, since 30 frames is 999990us.
+    private static final long ONE_SEC_USEC = 990000;
+    private static final long TWO_SEC_USEC = 1990000;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("segtest", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void dropsPacketsBeforeFirstSyncFrame() throws IOException {
+        SegmentRecorder rec = new SegmentRecorder(mDir, TWO_SEC_USEC, 4);
+        rec.open();
+        feed(rec, 5, 10);
+        assertNull(rec.getTimeRange());
+        rec.close();
+    }
+
+    @Test
+    public void rotatesAtSyncFramesAndTrimsOldest() throws IOException {
+        SegmentRecorder rec = new SegmentRecorder(mDir, TWO_SEC_USEC, 3);
+        rec.open();
+        // 10 seconds at one sync frame per second gives five 2-second segments.
+        feed(rec, 0, GOP_FRAMES * 10);
+        rec.close();
+
+        assertEquals(3, countFiles(".idx"));
+        assertEquals(3, countFiles(".dat"));
+        long[] range = rec.getTimeRange();
+        assertEquals(4 * GOP_FRAMES * FRAME_USEC, range[0]);
+        assertEquals((GOP_FRAMES * 10 - 1) * FRAME_USEC, range[1]);
+    }
+
+    @Test
+    public void recoversClosedSegmentsAfterCrash() throws IOException {
+        SegmentRecorder rec = new SegmentRecorder(mDir, ONE_SEC_USEC, 10);
+        rec.open();
+        feed(rec, 0, GOP_FRAMES * 3 + 5);
+        rec.sync();
+        // No close(): the segment being written has data but no index.
+        assertEquals(4, countFiles(".dat"));
+        assertEquals(3, countFiles(".idx"));
+
+        SegmentRecorder recovered = new SegmentRecorder(mDir, ONE_SEC_USEC, 10);
+        recovered.open();
+        assertEquals(3, countFiles(".dat"));
+        long[] range = recovered.getTimeRange();
+        assertEquals(0, range[0]);
+        assertEquals((GOP_FRAMES * 3 - 1) * FRAME_USEC, range[1]);
+
+        // New segments pick up after the recovered ones.
+        feed(recovered, GOP_FRAMES * 4, GOP_FRAMES * 6);
+        recovered.close();
+        assertTrue(new File(mDir, "seg-4.idx").exists());
+        assertEquals(5, countFiles(".idx"));
+    }
+
+    /**
+     * Writes video frames [first, last), with a sync frame every GOP_FRAMES.
+     */
+    private static void feed(SegmentRecorder rec, int first, int last) throws IOException {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        for (int i = first; i < last; i++) {
+            info.offset = 0;
+            info.size = 100 + (i % 7) * 300;
+            info.presentationTimeUs = i * FRAME_USEC;
+            info.flags = (i % GOP_FRAMES == 0) ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            buf.clear();
+            rec.writeSample(0, buf, info);
+        }
+    }
+
+    private int countFiles(String suffix) {
+        int count = 0;
+        for (File file : mDir.listFiles()) {
+            if (file.getName().endsWith(suffix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
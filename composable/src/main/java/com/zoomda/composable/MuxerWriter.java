@@ -0,0 +1,432 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomda.composable;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Feeds a MediaMuxer from a thread of its own.
+ * <p>
+ * writeSampleData() copies the sample into one of a fixed pool of direct buffers and queues
+ * it, so the caller can release the codec's output buffer right away instead of waiting for
+ * the write to reach storage.  A slow flash write then backs up this queue rather than the
+ * encoder (and, through the encoder's input surface, the render thread).
+ * <p>
+ * The pool size bounds the queue.  When it's full, the {@link FullPolicy} decides whether
+ * the caller waits for the writer to catch up or the sample is thrown away.
+ * <p>
+ * Use it the way you'd use the MediaMuxer: addTrack(), start(), writeSampleData(), stop(),
+ * release().  Everything except writeSampleData() must be called from one thread.
+ */
+public class MuxerWriter {
+    private static final String TAG = MuxerWriter.class.getSimpleName();
+    private static final boolean VERBOSE = false;
+
+    /**
+     * What writeSampleData() does when every pool buffer is queued.
+     */
+    public enum FullPolicy {
+        /** Wait for the writer thread to free a buffer.  Nothing is lost. */
+        BLOCK,
+        /**
+         * Drop the sample.  On video tracks, keep dropping until the next sync frame, since
+         * the frames in between can't be decoded without the one we dropped.
+         */
+        DROP_UNTIL_SYNC
+    }
+
+    /**
+     * Snapshot of the queue state and counters, from {@link #getStats()}.
+     */
+    public static class Stats {
+        /** Samples waiting to be written. */
+        public int queued;
+        /** Most samples that can be waiting (the pool size). */
+        public int capacity;
+        /** Most samples that have been waiting at once. */
+        public int peakQueued;
+
+        /** Samples handed to the muxer. */
+        public long samplesWritten;
+        /** Bytes handed to the muxer. */
+        public long bytesWritten;
+        /** Samples thrown away under {@link FullPolicy#DROP_UNTIL_SYNC}. */
+        public long samplesDropped;
+        /** Time callers spent waiting for room under {@link FullPolicy#BLOCK}. */
+        public long blockedUsec;
+
+        /** Average time spent in MediaMuxer.writeSampleData(). */
+        public long writeAvgUsec;
+        /** Longest time spent in MediaMuxer.writeSampleData(). */
+        public long writeMaxUsec;
+        /** Average time from being queued to being written. */
+        public long latencyAvgUsec;
+        /** Longest time from being queued to being written. */
+        public long latencyMaxUsec;
+
+        @Override
+        public String toString() {
+            return "queued " + queued + "/" + capacity + " (peak " + peakQueued +
+                    "), written " + samplesWritten + " (" + bytesWritten + " bytes), dropped " +
+                    samplesDropped + ", blocked " + blockedUsec + "us, write avg " +
+                    writeAvgUsec + "us max " + writeMaxUsec + "us, latency avg " +
+                    latencyAvgUsec + "us max " + latencyMaxUsec + "us";
+        }
+    }
+
+    /**
+     * The parts of MediaMuxer that we use.  MediaMuxer is final, so this is where tests
+     * substitute a fake.
+     */
+    interface Muxer {
+        int addTrack(MediaFormat format);
+        void start();
+        void writeSampleData(int track, ByteBuffer buf, MediaCodec.BufferInfo info);
+        void stop();
+        void release();
+    }
+
+    /**
+     * Passes everything through to a real MediaMuxer.
+     */
+    private static class MediaMuxerAdapter implements Muxer {
+        private final MediaMuxer mMuxer;
+
+        MediaMuxerAdapter(MediaMuxer muxer) {
+            mMuxer = muxer;
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return mMuxer.addTrack(format);
+        }
+
+        @Override
+        public void start() {
+            mMuxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int track, ByteBuffer buf, MediaCodec.BufferInfo info) {
+            mMuxer.writeSampleData(track, buf, info);
+        }
+
+        @Override
+        public void stop() {
+            mMuxer.stop();
+        }
+
+        @Override
+        public void release() {
+            mMuxer.release();
+        }
+    }
+
+    /**
+     * One pooled sample.  Owned by whoever took it off the free list.
+     */
+    private static class Sample {
+        ByteBuffer mBuf;
+        final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        int mTrack;
+        long mQueuedNsec;
+    }
+
+    private final Muxer mMuxer;
+    private final FullPolicy mPolicy;
+    private final int mCapacity;
+    private Thread mThread;
+
+    // Tracks that need a sync frame after a drop (video), and tracks currently dropping.
+    // Only touched by the thread calling writeSampleData() and, before start(), addTrack().
+    private boolean[] mNeedsSync = new boolean[0];
+    private boolean[] mDropping = new boolean[0];
+
+    // Everything below is guarded by mLock.
+    private final Object mLock = new Object();
+    private final ArrayDeque<Sample> mQueue;
+    private final ArrayDeque<Sample> mFree;
+    private boolean mStopRequested;
+    private RuntimeException mWriteFailure;
+
+    private int mPeakQueued;
+    private long mSamplesWritten;
+    private long mBytesWritten;
+    private long mSamplesDropped;
+    private long mBlockedNsec;
+    private long mWriteTotalNsec;
+    private long mWriteMaxNsec;
+    private long mLatencyTotalNsec;
+    private long mLatencyMaxNsec;
+
+    /**
+     * Wraps a newly-created muxer.  Nothing has been added to it yet.
+     *
+     * @param maxQueued Number of pooled buffers, i.e. how many samples can be waiting.
+     */
+    public MuxerWriter(MediaMuxer muxer, int maxQueued, FullPolicy policy) {
+        this(new MediaMuxerAdapter(muxer), maxQueued, policy);
+    }
+
+    /**
+     * Wraps something that behaves like a newly-created muxer.
+     */
+    MuxerWriter(Muxer muxer, int maxQueued, FullPolicy policy) {
+        if (maxQueued < 1) {
+            throw new IllegalArgumentException("maxQueued must be at least 1");
+        }
+        mMuxer = muxer;
+        mPolicy = policy;
+        mCapacity = maxQueued;
+        mQueue = new ArrayDeque<Sample>(maxQueued);
+        mFree = new ArrayDeque<Sample>(maxQueued);
+        for (int i = 0; i < maxQueued; i++) {
+            // Buffers are allocated on first use, once we know how big the samples are.
+            mFree.add(new Sample());
+        }
+    }
+
+    /**
+     * Adds a track to the muxer.  Call before start().
+     *
+     * @return The track index to pass to writeSampleData().
+     */
+    public int addTrack(MediaFormat format) {
+        int track = mMuxer.addTrack(format);
+        if (track >= mNeedsSync.length) {
+            mNeedsSync = Arrays.copyOf(mNeedsSync, track + 1);
+            mDropping = Arrays.copyOf(mDropping, track + 1);
+        }
+        // Audio packets stand alone; assume anything we can't identify doesn't.
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        mNeedsSync[track] = (mime == null || !mime.startsWith("audio/"));
+        return track;
+    }
+
+    /**
+     * Starts the muxer and the writer thread.
+     */
+    public void start() {
+        mMuxer.start();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, "MuxerWriter");
+        mThread.start();
+    }
+
+    /**
+     * Queues a sample to be written.  The data is copied before this returns, so the caller
+     * is free to release "buf" to the codec.
+     * <p>
+     * May block, depending on the {@link FullPolicy}.
+     *
+     * @throws RuntimeException If an earlier write failed on the writer thread.
+     */
+    public void writeSampleData(int track, ByteBuffer buf, MediaCodec.BufferInfo info) {
+        boolean isSync = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (mDropping[track]) {
+            if (!isSync) {
+                synchronized (mLock) {
+                    mSamplesDropped++;
+                }
+                return;
+            }
+            mDropping[track] = false;
+        }
+
+        Sample sample;
+        synchronized (mLock) {
+            checkFailureLocked();
+            if (mFree.isEmpty()) {
+                if (mPolicy == FullPolicy.DROP_UNTIL_SYNC) {
+                    if (VERBOSE) Log.d(TAG, "queue full, dropping track " + track);
+                    mDropping[track] = mNeedsSync[track];
+                    mSamplesDropped++;
+                    return;
+                }
+                long startNsec = System.nanoTime();
+                while (mFree.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        // not expected
+                    }
+                    checkFailureLocked();
+                }
+                mBlockedNsec += System.nanoTime() - startNsec;
+            }
+            sample = mFree.removeFirst();
+        }
+
+        // Copy outside the lock; the sample is ours until it's queued.
+        if (sample.mBuf == null || sample.mBuf.capacity() < info.size) {
+            sample.mBuf = ByteBuffer.allocateDirect(info.size);
+        }
+        ByteBuffer src = buf.duplicate();
+        src.limit(info.offset + info.size);
+        src.position(info.offset);
+        sample.mBuf.clear();
+        sample.mBuf.put(src);
+        sample.mBuf.flip();
+        sample.mInfo.offset = 0;
+        sample.mInfo.size = info.size;
+        sample.mInfo.presentationTimeUs = info.presentationTimeUs;
+        sample.mInfo.flags = info.flags;
+        sample.mTrack = track;
+
+        synchronized (mLock) {
+            sample.mQueuedNsec = System.nanoTime();
+            mQueue.addLast(sample);
+            mPeakQueued = Math.max(mPeakQueued, mQueue.size());
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Writes whatever is still queued, stops the writer thread, and stops the muxer.
+     *
+     * @throws RuntimeException If a write failed on the writer thread.
+     */
+    public void stop() {
+        if (mThread != null) {
+            synchronized (mLock) {
+                mStopRequested = true;
+                mLock.notifyAll();
+            }
+            try {
+                mThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "writer thread join() was interrupted", ie);
+            }
+            mThread = null;
+        }
+        mMuxer.stop();
+        synchronized (mLock) {
+            checkFailureLocked();
+        }
+    }
+
+    /**
+     * Releases the muxer.
+     */
+    public void release() {
+        mMuxer.release();
+    }
+
+    /**
+     * Returns how full the queue is, from 0 (empty) to 1 (full).  Cheap enough to call for
+     * every sample, unlike getStats().
+     */
+    public float getQueueFill() {
+        synchronized (mLock) {
+            return mQueue.size() / (float) mCapacity;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queue state and counters.
+     */
+    public Stats getStats() {
+        Stats stats = new Stats();
+        synchronized (mLock) {
+            stats.queued = mQueue.size();
+            stats.capacity = mCapacity;
+            stats.peakQueued = mPeakQueued;
+            stats.samplesWritten = mSamplesWritten;
+            stats.bytesWritten = mBytesWritten;
+            stats.samplesDropped = mSamplesDropped;
+            stats.blockedUsec = mBlockedNsec / 1000;
+            stats.writeMaxUsec = mWriteMaxNsec / 1000;
+            stats.latencyMaxUsec = mLatencyMaxNsec / 1000;
+            if (mSamplesWritten != 0) {
+                stats.writeAvgUsec = mWriteTotalNsec / mSamplesWritten / 1000;
+                stats.latencyAvgUsec = mLatencyTotalNsec / mSamplesWritten / 1000;
+            }
+        }
+        return stats;
+    }
+
+    private void checkFailureLocked() {
+        if (mWriteFailure != null) {
+            throw new RuntimeException("muxer write failed", mWriteFailure);
+        }
+    }
+
+    /**
+     * Writes queued samples until stop() is called and the queue is empty.  Runs on the
+     * writer thread.
+     */
+    private void writerLoop() {
+        while (true) {
+            Sample sample;
+            synchronized (mLock) {
+                while (mQueue.isEmpty() && !mStopRequested) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        // not expected
+                    }
+                }
+                if (mQueue.isEmpty()) {
+                    break;
+                }
+                sample = mQueue.removeFirst();
+            }
+
+            long startNsec = System.nanoTime();
+            try {
+                mMuxer.writeSampleData(sample.mTrack, sample.mBuf, sample.mInfo);
+            } catch (RuntimeException re) {
+                Log.w(TAG, "muxer write failed", re);
+                synchronized (mLock) {
+                    // Give everything back so nobody waits forever; callers see the failure.
+                    mWriteFailure = re;
+                    mFree.add(sample);
+                    mFree.addAll(mQueue);
+                    mQueue.clear();
+                    mLock.notifyAll();
+                }
+                break;
+            }
+            long endNsec = System.nanoTime();
+
+            synchronized (mLock) {
+                long writeNsec = endNsec - startNsec;
+                long latencyNsec = endNsec - sample.mQueuedNsec;
+                mSamplesWritten++;
+                mBytesWritten += sample.mInfo.size;
+                mWriteTotalNsec += writeNsec;
+                mWriteMaxNsec = Math.max(mWriteMaxNsec, writeNsec);
+                mLatencyTotalNsec += latencyNsec;
+                mLatencyMaxNsec = Math.max(mLatencyMaxNsec, latencyNsec);
+                mFree.addLast(sample);
+                mLock.notifyAll();
+            }
+        }
+        if (VERBOSE) Log.d(TAG, "writer thread done: " + getStats());
+    }
+}
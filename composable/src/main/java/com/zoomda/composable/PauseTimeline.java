@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomda.composable;
+
+/**
+ * Maps input frame timestamps to output presentation times for a recording that can be
+ * paused.  Frames that arrive while paused are dropped, and the time spent paused is cut
+ * out, so playback runs straight through the pause.
+ * <p>
+ * The first frame after a resume lands one frame interval after the last frame before the
+ * pause, where the interval is a running average of the spacing between input frames.
+ * <p>
+ * Not thread-safe; use it from the thread that submits frames.
+ */
+public class PauseTimeline {
+    private static final long DEFAULT_FRAME_NSEC = 1000000000L / 30;
+
+    private boolean mPaused;
+    private boolean mResumed;           // haven't seen a frame since resume() yet
+    private long mOffsetNanos;          // total time cut out so far
+    private long mFrameNanos = DEFAULT_FRAME_NSEC;
+    private long mLastInputNanos = -1;
+    private long mLastOutputNanos = -1;
+
+    /**
+     * Stops accepting frames.
+     */
+    public void pause() {
+        mPaused = true;
+    }
+
+    /**
+     * Accepts frames again.  The gap since the last frame before the pause is removed from
+     * all later timestamps.
+     */
+    public void resume() {
+        if (mPaused) {
+            mPaused = false;
+            mResumed = true;
+        }
+    }
+
+    /**
+     * Returns true if paused.
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Returns the total time, in nanoseconds, cut out of the timeline by pauses so far.
+     */
+    public long getPausedNanos() {
+        return mOffsetNanos;
+    }
+
+    /**
+     * Returns the presentation time to use for a frame with the given input timestamp, or
+     * -1 if the frame should be dropped because we're paused.  Output times always increase.
+     */
+    public long adjust(long inputNanos) {
+        if (mPaused) {
+            return -1;
+        }
+        if (mLastInputNanos >= 0) {
+            long delta = inputNanos - mLastInputNanos;
+            if (mResumed) {
+                mOffsetNanos += Math.max(0, delta - mFrameNanos);
+            } else if (delta > 0) {
+                mFrameNanos = (mFrameNanos * 7 + delta) / 8;
+            }
+        }
+        mResumed = false;
+        mLastInputNanos = inputNanos;
+
+        long outputNanos = inputNanos - mOffsetNanos;
+        if (mLastOutputNanos >= 0 && outputNanos <= mLastOutputNanos) {
+            // Input went backward, or the running average overshot.  The muxer wants
+            // strictly increasing times, so nudge it forward by a microsecond.
+            outputNanos = mLastOutputNanos + 1000;
+        }
+        mLastOutputNanos = outputNanos;
+        return outputNanos;
+    }
+}
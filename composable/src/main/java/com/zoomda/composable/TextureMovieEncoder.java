@@ -17,12 +17,16 @@
 package com.zoomda.composable;
 
 import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
+import android.view.Surface;
 
 import com.zoomda.composable.gles.EglCore;
 import com.zoomda.composable.gles.FullFrameRect;
@@ -34,6 +38,8 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Encode a movie from frames rendered from an external texture image.
@@ -57,6 +63,30 @@ import java.util.ArrayList;
  * <li>for each frame, after latching it with SurfaceTexture#updateTexImage(),
  *     call TextureMovieEncoder#frameAvailable().
  * </ul>
+ * <p>
+ * The config may list several outputs (say 1280x720, 640x360 and 320x180), each with its
+ * own encoder and file.  The sources are composed once per frame into an offscreen
+ * framebuffer the size of the first output, which is then drawn scaled into each encoder's
+ * input surface.  That's one full-frame textured quad per extra output, rather than a
+ * re-draw of every source.  With a single output, we draw straight into its surface.
+ * <p>
+ * A recording can be paused and resumed without restarting the encoders.  Frames are
+ * dropped while paused, the paused interval is cut out of the presentation times, and the
+ * first frame after resuming is a sync frame.
+ * <p>
+ * drawAllSources() never waits for the encoders.  If they fall behind, frames pile up in
+ * the message queue and in the codecs, and the swap on the encoder surface eventually
+ * blocks; the render thread shouldn't be stuck behind that, because it's usually drawing
+ * the preview too.  So we count frames in flight (submitted, but not yet out of the
+ * slowest encoder), and skip frames while there are more than setMaxFramesInFlight() of
+ * them.  The movie loses a few frames instead of the preview stuttering.
+ * <p>
+ * Normally each recording creates the encoders, EGL context and window surfaces from
+ * scratch and tears them down afterward.  With setKeepWarm() (API 23+), the thread and EGL
+ * state outlive the recording.  Each window surface draws into a persistent input surface,
+ * and as soon as one recording stops, the encoders for the next are created, bound to those
+ * surfaces, and started.  Starting a recording with the same outputs then only has to
+ * create the files.  Call shutdown() when done.
  *
  * TODO: tweak the API (esp. textureId) so it's less awkward for simple use cases.
  */
@@ -72,6 +102,12 @@ public class TextureMovieEncoder implements Runnable {
     private static final int MSG_QUIT = 5;
     private static final int MSG_DRAW_FRAME = 6;
     private static final int MSG_SWAP_BUFFERS = 7;
+    private static final int MSG_PAUSE = 8;
+    private static final int MSG_RESUME = 9;
+
+    private static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = 6;
+    // Skips in a row with no encoder output before we stop waiting for the frames in flight.
+    private static final int STALL_SKIP_LIMIT = 30;
 
     // ----- accessed exclusively by encoder thread -----
     //private WindowSurface mInputWindowSurface;
@@ -80,17 +116,89 @@ public class TextureMovieEncoder implements Runnable {
     private VideoOutput mOutput = new VideoOutput();
     private int mTextureId;
     private int mFrameNum;
-    private VideoEncoderCore mVideoEncoder;
+    private ArrayList<EncoderOutput> mEncoderOutputs = new ArrayList<EncoderOutput>();
+    private int mComposeWidth;
+    private int mComposeHeight;
+    private float[] mComposeProjectionMatrix = new float[16];
+    private boolean mFrameStarted;
+    private PauseTimeline mTimeline;
+    private boolean mEncoding;
+    // Warm mode only.  The config the kept outputs were made for; null if nothing is kept.
+    private EncoderConfig mWarmConfig;
+
+    // Offscreen framebuffer the frame is composed in, when there's more than one output.
+    private int mOffscreenTexture;
+    private int mFramebuffer;
+    private FullFrameRect mBlitRect;
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
 
-    private Object mReadyFence = new Object();      // guards ready/running
+    private Object mReadyFence = new Object();      // guards ready/running/paused/recording/warm
     private boolean mReady;
     private boolean mRunning;
+    private boolean mPaused;
+    private boolean mRecording;
+    private boolean mKeepWarm;
+
+    // Frame accounting for backpressure.  The encoders are published for the render thread
+    // to poll once they exist; frames the encoder thread throws away are counted too.
+    private volatile VideoEncoderCore[] mActiveEncoders;
+    private volatile long mFramesDiscarded;
+
+    // ----- accessed by the thread calling drawAllSources() -----
+    private int mMaxFramesInFlight = DEFAULT_MAX_FRAMES_IN_FLIGHT;
+    private long mFramesSubmitted;
+    private volatile long mFramesSkipped;
+    private long mLastEncodedCount;
+    private int mStalledSkips;
+    private boolean mSkipping;
+
+
+
+    /**
+     * One encoded output: its size, bit rate, and destination file.
+     */
+    public static class OutputConfig {
+        final File mOutputFile;
+        final int mWidth;
+        final int mHeight;
+        final int mBitRate;
+
+        public OutputConfig(File outputFile, int width, int height, int bitRate) {
+            mOutputFile = outputFile;
+            mWidth = width;
+            mHeight = height;
+            mBitRate = bitRate;
+        }
+
+        /**
+         * Returns true if an encoder made for "other" can be used for this.
+         */
+        boolean matches(OutputConfig other) {
+            return mWidth == other.mWidth && mHeight == other.mHeight &&
+                    mBitRate == other.mBitRate;
+        }
+
+        @Override
+        public String toString() {
+            return mWidth + "x" + mHeight + " @" + mBitRate + " to '" + mOutputFile + "'";
+        }
+    }
 
-    private float[] mDisplayProjectionMatrix;
+    /**
+     * Encoder and input surface for one output.  Encoder thread only.
+     */
+    private static class EncoderOutput {
+        OutputConfig mConfig;
+        VideoEncoderCore mVideoEncoder;
+        WindowSurface mWindowSurface;
+        Surface mPersistentSurface;         // warm mode only
 
+        EncoderOutput(OutputConfig config) {
+            mConfig = config;
+        }
+    }
 
     /**
      * Encoder configuration.
@@ -103,25 +211,30 @@ public class TextureMovieEncoder implements Runnable {
      *       with reasonable defaults for those and bit rate.
      */
     public static class EncoderConfig {
-        final File mOutputFile;
-        final int mWidth;
-        final int mHeight;
-        final int mBitRate;
+        final List<OutputConfig> mOutputs;
         final EGLContext mEglContext;
 
         public EncoderConfig(File outputFile, int width, int height, int bitRate,
                 EGLContext sharedEglContext) {
-            mOutputFile = outputFile;
-            mWidth = width;
-            mHeight = height;
-            mBitRate = bitRate;
+            this(Collections.singletonList(new OutputConfig(outputFile, width, height, bitRate)),
+                    sharedEglContext);
+        }
+
+        /**
+         * Configures simulcast recording.  The frame is composed at the size of the first
+         * output, so it should be the largest.
+         */
+        public EncoderConfig(List<OutputConfig> outputs, EGLContext sharedEglContext) {
+            if (outputs.isEmpty()) {
+                throw new IllegalArgumentException("no outputs");
+            }
+            mOutputs = Collections.unmodifiableList(new ArrayList<OutputConfig>(outputs));
             mEglContext = sharedEglContext;
         }
 
         @Override
         public String toString() {
-            return "EncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate +
-                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext;
+            return "EncoderConfig: " + mOutputs + " ctxt=" + mEglContext;
         }
     }
 
@@ -129,6 +242,7 @@ public class TextureMovieEncoder implements Runnable {
      * Tells the video recorder to start recording.  (Call from non-encoder thread.)
      * <p>
      * Creates a new thread, which will create an encoder using the provided configuration.
+     * In warm mode the thread may already be running, with encoders ready to go.
      * <p>
      * Returns after the recorder thread has started and is ready to accept Messages.  The
      * encoder may not yet be fully configured.
@@ -136,17 +250,25 @@ public class TextureMovieEncoder implements Runnable {
     public void startRecording(EncoderConfig config) {
         Log.d(TAG, "Encoder: startRecording()");
         synchronized (mReadyFence) {
-            if (mRunning) {
+            if (mRecording) {
                 Log.w(TAG, "Encoder thread already running");
                 return;
             }
-            mRunning = true;
-            new Thread(this, "TextureMovieEncoder").start();
-            while (!mReady) {
-                try {
-                    mReadyFence.wait();
-                } catch (InterruptedException ie) {
-                    // ignore
+            mRecording = true;
+            mPaused = false;
+            mActiveEncoders = null;
+            mFramesDiscarded = mFramesSubmitted = mFramesSkipped = 0;
+            mLastEncodedCount = mStalledSkips = 0;
+            mSkipping = false;
+            if (!mRunning) {
+                mRunning = true;
+                new Thread(this, "TextureMovieEncoder").start();
+                while (!mReady) {
+                    try {
+                        mReadyFence.wait();
+                    } catch (InterruptedException ie) {
+                        // ignore
+                    }
                 }
             }
         }
@@ -158,27 +280,126 @@ public class TextureMovieEncoder implements Runnable {
      * Tells the video recorder to stop recording.  (Call from non-encoder thread.)
      * <p>
      * Returns immediately; the encoder/muxer may not yet be finished creating the movie.
+     * In warm mode the encoder thread keeps running, and starts preparing for the next
+     * recording once this one is finished.
      * <p>
      * TODO: have the encoder thread invoke a callback on the UI thread just before it shuts down
      * so we can provide reasonable status UI (and let the caller know that movie encoding
      * has completed).
      */
     public void stopRecording() {
+        Log.d(TAG, "Encoder: stopRecording(), skipped " + mFramesSkipped + " frames");
+        boolean keepWarm;
+        synchronized (mReadyFence) {
+            mRecording = false;
+            keepWarm = mKeepWarm;
+        }
         mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+        if (!keepWarm) {
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+        }
         // We don't know when these will actually finish (or even start).  We don't want to
         // delay the UI thread though, so we return immediately.
     }
 
+    /**
+     * Keeps the encoder thread, EGL state and ready-to-go encoders around between
+     * recordings, so the next one starts quickly.  Has no effect before API 23, which
+     * introduced persistent input surfaces.  Set it before the first startRecording().
+     * (Call from non-encoder thread.)
+     */
+    public void setKeepWarm(boolean keepWarm) {
+        synchronized (mReadyFence) {
+            if (mRunning) {
+                Log.w(TAG, "can't change warm mode while the encoder thread is running");
+                return;
+            }
+            mKeepWarm = keepWarm && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        }
+    }
+
+    /**
+     * Stops recording, if we are, and releases everything kept for warm mode.  Returns
+     * immediately.  (Call from non-encoder thread.)
+     */
+    public void shutdown() {
+        synchronized (mReadyFence) {
+            if (!mRunning) {
+                return;
+            }
+            if (mRecording) {
+                mRecording = false;
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
+            }
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+    }
+
     /**
      * Returns true if recording has been started.
      */
     public boolean isRecording() {
         synchronized (mReadyFence) {
-            return mRunning;
+            return mRecording;
         }
     }
 
+    /**
+     * Pauses the current recording.  Frames are ignored until resume() is called, and the
+     * files stay open.  (Call from non-encoder thread.)
+     */
+    public void pause() {
+        synchronized (mReadyFence) {
+            if (!mReady || !mRecording || mPaused) {
+                return;
+            }
+            mPaused = true;
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_PAUSE));
+    }
+
+    /**
+     * Resumes a paused recording.  The next frame follows on from the last one before the
+     * pause, and is encoded as a sync frame.  (Call from non-encoder thread.)
+     */
+    public void resume() {
+        synchronized (mReadyFence) {
+            if (!mReady || !mRecording || !mPaused) {
+                return;
+            }
+            mPaused = false;
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_RESUME));
+    }
+
+    /**
+     * Returns true if the recording is paused.
+     */
+    public boolean isPaused() {
+        synchronized (mReadyFence) {
+            return mPaused;
+        }
+    }
+
+    /**
+     * Sets how many frames may be submitted to the encoders without having come out yet
+     * before drawAllSources() starts skipping frames.  (Call from the drawing thread.)
+     */
+    public void setMaxFramesInFlight(int maxFrames) {
+        if (maxFrames < 1) {
+            throw new IllegalArgumentException("must allow at least one frame in flight");
+        }
+        mMaxFramesInFlight = maxFrames;
+    }
+
+    /**
+     * Returns the number of frames drawAllSources() has skipped in the current (or most
+     * recent) recording because the encoders were behind.
+     */
+    public long getSkippedFrameCount() {
+        return mFramesSkipped;
+    }
+
     /**
      * Tells the video recorder to refresh its EGL surface.  (Call from non-encoder thread.)
      */
@@ -201,7 +422,7 @@ public class TextureMovieEncoder implements Runnable {
      */
     public void frameAvailable(SurfaceTexture st) {
         synchronized (mReadyFence) {
-            if (!mReady) {
+            if (!mReady || !mRecording) {
                 return;
             }
         }
@@ -238,14 +459,29 @@ public class TextureMovieEncoder implements Runnable {
         mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
     }
 
+    /**
+     * Sends the current frame of each source to the encoders.  (Call from non-encoder
+     * thread, with the sources' SurfaceTextures attached to its EGL context.)
+     * <p>
+     * Returns without doing anything if the encoders are too far behind; see
+     * getSkippedFrameCount().
+     */
     public void drawAllSources(ArrayList<VideoInput> videoInputs) {
         synchronized (mReadyFence) {
-            if (!mReady) {
+            if (!mReady || !mRecording) {
                 Log.d(TAG, "drawAllSources return; return; return; return; return;");
                 return;
             }
+            if (mPaused) {
+                return;
+            }
         }
-        long timestamp = System.currentTimeMillis();
+        if (!hasRoomForFrame()) {
+            mFramesSkipped++;
+            return;
+        }
+        mFramesSubmitted++;
+        long timestamp = System.nanoTime();
         for (int i=0; i<1; i++){
 
             videoInputs.get(i).surfaceTexture.updateTexImage();
@@ -258,6 +494,45 @@ public class TextureMovieEncoder implements Runnable {
                 (int) (timestamp >> 32), (int) timestamp, new float[16]));
     }
 
+    /**
+     * Decides whether another frame can go to the encoders without the queue getting too
+     * deep.  (Call from the drawing thread.)
+     */
+    private boolean hasRoomForFrame() {
+        long encoded = 0;
+        VideoEncoderCore[] encoders = mActiveEncoders;
+        if (encoders != null) {
+            // The slowest encoder sets the pace.
+            encoded = Long.MAX_VALUE;
+            for (VideoEncoderCore encoder : encoders) {
+                encoded = Math.min(encoded, encoder.getEncodedFrameCount());
+            }
+        }
+        long inFlight = mFramesSubmitted - mFramesDiscarded - encoded;
+        if (inFlight <= mMaxFramesInFlight) {
+            mSkipping = false;
+            mStalledSkips = 0;
+            return true;
+        }
+        if (!mSkipping || VERBOSE) {
+            Log.d(TAG, "encoder behind (" + inFlight + " frames in flight), skipping frames");
+            mSkipping = true;
+        }
+
+        if (encoded != mLastEncodedCount) {
+            mLastEncodedCount = encoded;
+            mStalledSkips = 0;
+        } else if (++mStalledSkips >= STALL_SKIP_LIMIT) {
+            // Nothing has come out for a while, and nothing new went in, so what we think is
+            // in flight isn't coming (encoders are allowed to drop frames).  Start over.
+            Log.w(TAG, "encoder output stalled with " + inFlight + " frames in flight");
+            mFramesSubmitted = mFramesDiscarded + encoded;
+            mStalledSkips = 0;
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Encoder thread entry point.  Establishes Looper/Handler and waits for messages.
      * <p>
@@ -276,7 +551,7 @@ public class TextureMovieEncoder implements Runnable {
 
         Log.d(TAG, "Encoder thread exiting");
         synchronized (mReadyFence) {
-            mReady = mRunning = false;
+            mReady = mRunning = mPaused = mRecording = false;
             mHandler = null;
         }
     }
@@ -322,11 +597,18 @@ public class TextureMovieEncoder implements Runnable {
                     encoder.handleUpdateSharedContext((EGLContext) inputMessage.obj);
                     break;
                 case MSG_QUIT:
+                    encoder.releaseWarmState();
                     Looper.myLooper().quit();
                     break;
                 case MSG_DRAW_FRAME:
                     encoder.drawFrame((VideoInput) obj, inputMessage.arg1);
                     break;
+                case MSG_PAUSE:
+                    encoder.handlePause();
+                    break;
+                case MSG_RESUME:
+                    encoder.handleResume();
+                    break;
                 case MSG_SWAP_BUFFERS:
                     long timestamp2 = (((long) inputMessage.arg1) << 32) |
                             (((long) inputMessage.arg2) & 0xffffffffL);
@@ -344,8 +626,50 @@ public class TextureMovieEncoder implements Runnable {
     private void handleStartRecording(EncoderConfig config) {
         Log.d(TAG, "handleStartRecording " + config);
         mFrameNum = 0;
-        prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate,
-                config.mOutputFile);
+        mTimeline = new PauseTimeline();
+        mFrameStarted = false;
+        mEncoding = true;
+        if (isWarmFor(config)) {
+            // Everything's ready except the files.
+            for (int i = 0; i < mEncoderOutputs.size(); i++) {
+                EncoderOutput output = mEncoderOutputs.get(i);
+                output.mConfig = config.mOutputs.get(i);
+                try {
+                    output.mVideoEncoder.setOutputFile(output.mConfig.mOutputFile);
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            }
+            if (config.mEglContext.equals(mWarmConfig.mEglContext)) {
+                mEncoderOutputs.get(0).mWindowSurface.makeCurrent();
+            } else {
+                // The view was recreated since the last recording.
+                handleUpdateSharedContext(config.mEglContext);
+            }
+            mWarmConfig = config;
+            publishActiveEncoders();
+            return;
+        }
+        releaseWarmState();
+        prepareEncoder(config.mEglContext, config.mOutputs);
+        if (mEncoderOutputs.get(0).mPersistentSurface != null) {
+            mWarmConfig = config;
+        }
+    }
+
+    /**
+     * Returns true if the outputs kept from the last recording can be used for "config".
+     */
+    private boolean isWarmFor(EncoderConfig config) {
+        if (mWarmConfig == null || mWarmConfig.mOutputs.size() != config.mOutputs.size()) {
+            return false;
+        }
+        for (int i = 0; i < config.mOutputs.size(); i++) {
+            if (!mWarmConfig.mOutputs.get(i).matches(config.mOutputs.get(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -371,40 +695,145 @@ public class TextureMovieEncoder implements Runnable {
     //float[] transform = new float[16];
 
     private void drawFrame(VideoInput videoInput, int textureId) {
+        if (!mEncoding) {
+            return;     // queued before a stop
+        }
 //        float[] transform = new float[16];      // TODO - avoid alloc every frame
 //        SurfaceTexture st = videoInput.surfaceTexture;
 //        st.getTransformMatrix(transform);
 
         //mFullScreen.drawFrame(textureId, GlUtil.IDENTITY_MATRIX);
 
-        mOutput.mRect.setPosition(640 / 2.0f, 360 / 2.0f);
-        mOutput.mRect.setScale(640, 360);
+        if (!mFrameStarted) {
+            beginFrame();
+        }
+
+        mOutput.mRect.setPosition(mComposeWidth / 2.0f, mComposeHeight / 2.0f);
+        mOutput.mRect.setScale(mComposeWidth, mComposeHeight);
         mOutput.mRect.setRotation(0);
         mOutput.mRectDrawable.setScale(1.0f);
 
         mOutput.mRect.setTexture(textureId);
-        mOutput.mRect.draw(videoInput.texProgram, mDisplayProjectionMatrix);
+        mOutput.mRect.draw(videoInput.texProgram, mComposeProjectionMatrix);
 
         //drawBox(mFrameNum++);
     }
 
+    /**
+     * Gets ready to compose a frame: targets the offscreen framebuffer (or the only output)
+     * and clears it.
+     */
+    private void beginFrame() {
+        mEncoderOutputs.get(0).mWindowSurface.makeCurrent();
+        if (mFramebuffer != 0) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        }
+        GLES20.glViewport(0, 0, mComposeWidth, mComposeHeight);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        mFrameStarted = true;
+    }
+
     private void swapBuffers(float[] transform, long timestampNanos) {
-        mVideoEncoder.drainEncoder(false);
+        if (!mEncoding) {
+            return;     // queued before a stop
+        }
+        if (!mFrameStarted) {
+            beginFrame();       // no sources; send a black frame
+        }
+        mFrameStarted = false;
+        long ptsNanos = mTimeline.adjust(timestampNanos);
+        if (ptsNanos < 0) {
+            mFramesDiscarded++;     // only written on this thread
+            return;     // queued before a pause; the next frame clears it
+        }
 
-        mOutput.mWindowSurface.swapBuffers();
+        if (mFramebuffer != 0) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        }
+        // eglSwapBuffers() only works on the current surface, so finish each output before
+        // moving on to the next.
+        for (EncoderOutput output : mEncoderOutputs) {
+            output.mWindowSurface.makeCurrent();
+            output.mVideoEncoder.drainEncoder(false);
+            if (mFramebuffer != 0) {
+                // Scale the composed frame into this encoder's input.
+                GLES20.glViewport(0, 0, output.mConfig.mWidth, output.mConfig.mHeight);
+                mBlitRect.drawFrame(mOffscreenTexture, GlUtil.IDENTITY_MATRIX);
+            }
+            output.mWindowSurface.setPresentationTime(ptsNanos);
+            output.mWindowSurface.swapBuffers();
+        }
 
         //mInputWindowSurface.setPresentationTime(timestampNanos);
         //mInputWindowSurface.swapBuffers();
         //mOutput.mWindowSurface.swapBuffers();
     }
 
+    /**
+     * Handles a request to pause.  Whatever the encoders have finished is sent on to the
+     * files, so they're complete up to the pause.
+     */
+    private void handlePause() {
+        Log.d(TAG, "handlePause");
+        if (!mEncoding) {
+            return;
+        }
+        mTimeline.pause();
+        for (EncoderOutput output : mEncoderOutputs) {
+            output.mVideoEncoder.drainEncoder(false);
+        }
+    }
+
+    /**
+     * Handles a request to resume.
+     */
+    private void handleResume() {
+        Log.d(TAG, "handleResume");
+        if (!mEncoding) {
+            return;
+        }
+        mTimeline.resume();
+        // Frames after a gap shouldn't depend on the ones before it.
+        for (EncoderOutput output : mEncoderOutputs) {
+            output.mVideoEncoder.requestSyncFrame();
+        }
+    }
+
     /**
      * Handles a request to stop encoding.
      */
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
-        mVideoEncoder.drainEncoder(true);
-        releaseEncoder();
+        if (!mEncoding) {
+            return;
+        }
+        mEncoding = false;
+        for (EncoderOutput output : mEncoderOutputs) {
+            output.mVideoEncoder.drainEncoder(true);
+        }
+        if (mWarmConfig == null) {
+            releaseEncoder();
+            return;
+        }
+
+        // Warm mode: swap in fresh encoders on the same surfaces, so the next recording
+        // doesn't have to wait for them.  (Warm mode means API 23+, so always async.)
+        mActiveEncoders = null;
+        for (EncoderOutput output : mEncoderOutputs) {
+            output.mVideoEncoder.release();
+            output.mVideoEncoder = null;
+        }
+        try {
+            for (EncoderOutput output : mEncoderOutputs) {
+                output.mVideoEncoder = new VideoEncoderCore(output.mConfig.mWidth,
+                        output.mConfig.mHeight, output.mConfig.mBitRate,
+                        output.mPersistentSurface, true);
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to prepare next encoders", ioe);
+            releaseWarmState();
+        }
     }
 
     /**
@@ -425,42 +854,191 @@ public class TextureMovieEncoder implements Runnable {
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
 
-        // Release the EGLSurface and EGLContext.
+        // Release the EGLSurfaces and EGLContext.  The framebuffer goes with the context.
         //mInputWindowSurface.releaseEglSurface();
         //mFullScreen.release(false);
-        mOutput.mWindowSurface.releaseEglSurface();
+        for (EncoderOutput output : mEncoderOutputs) {
+            output.mWindowSurface.releaseEglSurface();
+        }
+        if (mBlitRect != null) {
+            mBlitRect.release(false);
+            mBlitRect = null;
+        }
+        mOffscreenTexture = mFramebuffer = 0;
         mEglCore.release();
 
-        // Create a new EGLContext and recreate the window surface.
+        // Create a new EGLContext and recreate the window surfaces.
         mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
         //mInputWindowSurface.recreate(mEglCore);
         //mInputWindowSurface.makeCurrent();
-        mOutput.mWindowSurface.recreate(mEglCore);
-        mOutput.mWindowSurface.makeCurrent();
+        for (EncoderOutput output : mEncoderOutputs) {
+            output.mWindowSurface.recreate(mEglCore);
+        }
+        mEncoderOutputs.get(0).mWindowSurface.makeCurrent();
 
         // Create new programs and such for the new context.
 //        mFullScreen = new FullFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        if (mEncoderOutputs.size() > 1) {
+            prepareFramebuffer();
+        }
     }
 
-    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
-            File outputFile) {
-        try {
-            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile);
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+    private void prepareEncoder(EGLContext sharedContext, List<OutputConfig> outputs) {
+        // On M+ let the encoder call us back with output, so frame submission doesn't
+        // stall on draining.
+        boolean async = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        boolean keepWarm;
+        synchronized (mReadyFence) {
+            keepWarm = mKeepWarm;
         }
+        for (OutputConfig config : outputs) {
+            EncoderOutput output = new EncoderOutput(config);
+            mEncoderOutputs.add(output);
+            try {
+                if (keepWarm) {
+                    output.mPersistentSurface = MediaCodec.createPersistentInputSurface();
+                    output.mVideoEncoder = new VideoEncoderCore(config.mWidth, config.mHeight,
+                            config.mBitRate, output.mPersistentSurface, async);
+                    output.mVideoEncoder.setOutputFile(config.mOutputFile);
+                } else {
+                    output.mVideoEncoder = new VideoEncoderCore(config.mWidth,
+                            config.mHeight, config.mBitRate, config.mOutputFile, async);
+                }
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+        publishActiveEncoders();
+        mComposeWidth = outputs.get(0).mWidth;
+        mComposeHeight = outputs.get(0).mHeight;
+        Matrix.orthoM(mComposeProjectionMatrix, 0, 0, mComposeWidth, 0, mComposeHeight, -1, 1);
+
         mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
 //        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
 //        mInputWindowSurface.makeCurrent();
-        mOutput.mWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
-        mOutput.mWindowSurface.makeCurrent();
+        for (EncoderOutput output : mEncoderOutputs) {
+            // A persistent surface is ours to release, after the window surface is gone.
+            output.mWindowSurface = new WindowSurface(mEglCore,
+                    output.mVideoEncoder.getInputSurface(), output.mPersistentSurface == null);
+        }
+        mEncoderOutputs.get(0).mWindowSurface.makeCurrent();
 
 //        mFullScreen = new FullFrameRect(
 //                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        if (mEncoderOutputs.size() > 1) {
+            prepareFramebuffer();
+        }
+    }
+
+    /**
+     * Lets the drawing thread see the current encoders, for backpressure.
+     */
+    private void publishActiveEncoders() {
+        VideoEncoderCore[] encoders = new VideoEncoderCore[mEncoderOutputs.size()];
+        for (int i = 0; i < encoders.length; i++) {
+            encoders[i] = mEncoderOutputs.get(i).mVideoEncoder;
+        }
+        mActiveEncoders = encoders;
+    }
+
+    /**
+     * Creates the offscreen framebuffer the frame is composed in, and the program that
+     * draws it into the encoder surfaces.  An EGL context must be current.
+     */
+    private void prepareFramebuffer() {
+        GlUtil.checkGlError("prepareFramebuffer start");
+        int[] values = new int[1];
+
+        // Create a texture object and bind it.  This will be the color buffer.
+        GLES20.glGenTextures(1, values, 0);
+        GlUtil.checkGlError("glGenTextures");
+        mOffscreenTexture = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOffscreenTexture);
+        GlUtil.checkGlError("glBindTexture " + mOffscreenTexture);
+
+        // Create texture storage.
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mComposeWidth,
+                mComposeHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+
+        // Set parameters.  We're scaling down, so filter on minification too.
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GlUtil.checkGlError("glTexParameter");
+
+        // Create framebuffer object, bind it, and attach the texture.  No depth buffer;
+        // the sources are drawn in order.
+        GLES20.glGenFramebuffers(1, values, 0);
+        GlUtil.checkGlError("glGenFramebuffers");
+        mFramebuffer = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GlUtil.checkGlError("glBindFramebuffer " + mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mOffscreenTexture, 0);
+        GlUtil.checkGlError("glFramebufferTexture2D");
+
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Framebuffer not complete, status=" + status);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        mBlitRect = new FullFrameRect(
+                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
+        GlUtil.checkGlError("prepareFramebuffer done");
+    }
+
+    /**
+     * Releases the offscreen framebuffer.  The EGL context must be current.
+     */
+    private void releaseFramebuffer() {
+        int[] values = new int[1];
+        if (mBlitRect != null) {
+            mBlitRect.release(true);
+            mBlitRect = null;
+        }
+        if (mFramebuffer != 0) {
+            values[0] = mFramebuffer;
+            GLES20.glDeleteFramebuffers(1, values, 0);
+            mFramebuffer = 0;
+        }
+        if (mOffscreenTexture != 0) {
+            values[0] = mOffscreenTexture;
+            GLES20.glDeleteTextures(1, values, 0);
+            mOffscreenTexture = 0;
+        }
+    }
+
+    /**
+     * Releases the encoders, EGL state and persistent surfaces kept between recordings in
+     * warm mode.  Does nothing if they aren't being kept.
+     */
+    private void releaseWarmState() {
+        if (mWarmConfig == null) {
+            return;
+        }
+        if (mEncoding) {
+            // Still recording; shouldn't happen, since a stop always precedes this.
+            for (EncoderOutput output : mEncoderOutputs) {
+                output.mVideoEncoder.drainEncoder(true);
+            }
+            mEncoding = false;
+        }
+        mWarmConfig = null;
+        releaseEncoder();
     }
 
     private void releaseEncoder() {
-        mVideoEncoder.release();
+        mActiveEncoders = null;
+        if (mEglCore != null) {
+            mEncoderOutputs.get(0).mWindowSurface.makeCurrent();
+            releaseFramebuffer();
+        }
 //        if (mInputWindowSurface != null) {
 //            mInputWindowSurface.release();
 //            mInputWindowSurface = null;
@@ -469,8 +1047,18 @@ public class TextureMovieEncoder implements Runnable {
 //            mFullScreen.release(false);
 //            mFullScreen = null;
 //        }
-        mOutput.mWindowSurface.release();
-        mOutput.mWindowSurface = null;
+        for (EncoderOutput output : mEncoderOutputs) {
+            if (output.mVideoEncoder != null) {
+                output.mVideoEncoder.release();
+            }
+            if (output.mWindowSurface != null) {
+                output.mWindowSurface.release();
+            }
+            if (output.mPersistentSurface != null) {
+                output.mPersistentSurface.release();
+            }
+        }
+        mEncoderOutputs.clear();
         if (mEglCore != null) {
             mEglCore.release();
             mEglCore = null;
@@ -482,7 +1070,7 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void drawBox(int posn) {
         //final int width = mInputWindowSurface.getWidth();
-        final int width = mOutput.mWindowSurface.getWidth();
+        final int width = mComposeWidth;
         int xpos = (posn * 4) % (width - 50);
         GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
         GLES20.glScissor(xpos, 0, 100, 100);
@@ -490,8 +1078,4 @@ public class TextureMovieEncoder implements Runnable {
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
     }
-
-    public void setDisplayProjectionMatrix(float[] mDisplayProjectionMatrix) {
-        this.mDisplayProjectionMatrix = mDisplayProjectionMatrix;
-    }
 }
@@ -20,12 +20,19 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class wraps up the core components used for surface-input video encoding.
@@ -36,6 +43,17 @@ import java.nio.ByteBuffer;
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * In asynchronous mode (API 23+), the encoder hands us output buffers through a
+ * MediaCodec.Callback on a dedicated thread, and we pass them straight to the muxer.
+ * drainEncoder(false) then does nothing, so frame submission never waits on the encoder,
+ * and drainEncoder(true) waits for the end-of-stream buffer to come through instead of
+ * polling for it.
+ * <p>
+ * To cut the cost of starting a recording, the encoder can be bound to a persistent input
+ * surface (API 23+) and created ahead of time without an output file.  The caller's EGL
+ * surface stays attached to the persistent surface from one encoder to the next, and
+ * setOutputFile() supplies the file once recording actually starts.
  */
 public class VideoEncoderCore {
     private static final String TAG = VideoEncoderCore.class.getSimpleName();
@@ -45,20 +63,67 @@ public class VideoEncoderCore {
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int FRAME_RATE = 30;               // 30fps
     private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    private static final long EOS_TIMEOUT_MSEC = 5000;      // give up waiting for EOS
+    private static final int MUXER_QUEUE_DEPTH = 30;        // samples waiting to be written
 
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
+    // Set on the caller's thread, read on the callback thread in async mode.  Assigned
+    // under mMuxerLock, so it can't cross with the output format arriving.
+    private volatile MuxerWriter mMuxer;
     private MediaCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
     private int mTrackIndex;
     private boolean mMuxerStarted;
+    // Set when the muxer was added mid-stream; samples are dropped until a sync frame.
+    private boolean mMuxerNeedsSync;
+    private boolean mMuxerHasData;
+
+    // Guards the muxer being set against the output format arriving.
+    private final Object mMuxerLock = new Object();
+    private MediaFormat mOutputFormat;
+    // Written on the draining thread, read by whoever feeds frames in.
+    private volatile long mFramesEncoded;
+
+    // Only used in asynchronous mode.
+    private HandlerThread mCallbackThread;
+    private CountDownLatch mEosLatch;
 
 
     /**
-     * Configures encoder and muxer state, and prepares the input Surface.
+     * Configures encoder and muxer state, and prepares the input Surface.  Output is drained
+     * synchronously, by drainEncoder().
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
+        this(width, height, bitRate, outputFile, false);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param async If set, output is delivered by MediaCodec callbacks on a thread of our
+     *     own.  Requires API 23.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+            boolean async) throws IOException {
+        this(width, height, bitRate, outputFile, null, async);
+    }
+
+    /**
+     * Configures the encoder to take its input from a surface created with
+     * MediaCodec.createPersistentInputSurface().  Requires API 23.
+     * <p>
+     * No output file is created; call setOutputFile() when recording starts.  Until then
+     * anything encoded is thrown away.  The persistent surface isn't released by release(),
+     * so it can be handed to the next encoder.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, Surface persistentSurface,
+            boolean async) throws IOException {
+        this(width, height, bitRate, null, persistentSurface, async);
+    }
+
+    private VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+            Surface persistentSurface, boolean async) throws IOException {
         mBufferInfo = new MediaCodec.BufferInfo();
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
@@ -72,47 +137,130 @@ public class VideoEncoderCore {
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
-        // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
-        // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mInputSurface = mEncoder.createInputSurface();
-        mEncoder.start();
-
         // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
         // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the encoder after it has started processing data.
+        // obtained from the encoder after it has started processing data.  (In async mode
+        // they can arrive as soon as the encoder starts, so the muxer has to exist first.)
         //
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        if (outputFile != null) {
+            mMuxer = new MuxerWriter(new MediaMuxer(outputFile.toString(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4),
+                    MUXER_QUEUE_DEPTH, MuxerWriter.FullPolicy.BLOCK);
+        }
 
         mTrackIndex = -1;
         mMuxerStarted = false;
+
+        // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
+        // we can use for input and wrap it with a class that handles the EGL work.  The
+        // callback has to be set before configure().
+        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        if (async) {
+            mCallbackThread = new HandlerThread("VideoEncoderCore-callback");
+            mCallbackThread.start();
+            mEosLatch = new CountDownLatch(1);
+            mEncoder.setCallback(new EncoderCallback(),
+                    new Handler(mCallbackThread.getLooper()));
+        }
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        if (persistentSurface != null) {
+            mEncoder.setInputSurface(persistentSurface);
+            mInputSurface = persistentSurface;
+        } else {
+            mInputSurface = mEncoder.createInputSurface();
+        }
+        mEncoder.start();
+    }
+
+    /**
+     * Creates the .mp4 file for an encoder that was created without one.
+     * <p>
+     * If the encoder has already produced its output format, the muxer is started right
+     * away, and the file begins at the next sync frame, which we ask the encoder for.
+     */
+    public void setOutputFile(File outputFile) throws IOException {
+        MuxerWriter muxer = new MuxerWriter(new MediaMuxer(outputFile.toString(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4),
+                MUXER_QUEUE_DEPTH, MuxerWriter.FullPolicy.BLOCK);
+        boolean midStream;
+        synchronized (mMuxerLock) {
+            if (mMuxer != null) {
+                muxer.release();
+                throw new RuntimeException("output already started");
+            }
+            midStream = mOutputFormat != null;
+            if (midStream) {
+                mTrackIndex = muxer.addTrack(mOutputFormat);
+                muxer.start();
+                mMuxerNeedsSync = true;
+            }
+            mMuxer = muxer;
+        }
+        if (midStream) {
+            requestSyncFrame();
+        }
     }
 
     /**
-     * Returns the encoder's input surface.
+     * Returns the encoder's input surface.  For a persistent surface, this is the one
+     * passed to the constructor.
      */
     public Surface getInputSurface() {
         return mInputSurface;
     }
 
+    /**
+     * Asks the encoder to make the next frame it encodes a sync frame, e.g. so a recording
+     * that resumes after a pause starts cleanly.  Needs API 19; ignored on older releases.
+     */
+    public void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            Log.w(TAG, "can't request sync frame before API 19");
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mEncoder.setParameters(params);
+    }
+
+    /**
+     * Returns the number of frames that have come out of the encoder so far.  Safe to call
+     * from any thread.
+     */
+    public long getEncodedFrameCount() {
+        return mFramesEncoded;
+    }
+
     /**
      * Releases encoder resources.
      */
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        if (mCallbackThread != null) {
+            // Let any callbacks already queued finish, so nobody's touching the muxer.
+            mCallbackThread.quitSafely();
+            try {
+                mCallbackThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "callback thread join() was interrupted", ie);
+            }
+            mCallbackThread = null;
+        }
         if (mEncoder != null) {
             mEncoder.stop();
             mEncoder.release();
             mEncoder = null;
         }
         if (mMuxer != null) {
-            // TODO: stop() throws an exception if you haven't fed it any data.  Keep track
-            //       of frames submitted, and don't call stop() if we haven't written anything.
-            mMuxer.stop();
+            // stop() throws an exception if you haven't fed it any data.
+            if (mMuxerHasData) {
+                mMuxer.stop();
+            } else {
+                Log.w(TAG, "nothing was written to the output file");
+            }
+            if (VERBOSE) Log.d(TAG, "muxer: " + mMuxer.getStats());
             mMuxer.release();
             mMuxer = null;
         }
@@ -132,6 +280,16 @@ public class VideoEncoderCore {
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
+        if (mEosLatch != null) {
+            // Async mode: the callback thread is doing the draining.
+            if (endOfStream) {
+                if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+                mEncoder.signalEndOfInputStream();
+                awaitEndOfStream();
+            }
+            return;
+        }
+
         if (endOfStream) {
             if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
             mEncoder.signalEndOfInputStream();
@@ -152,16 +310,7 @@ public class VideoEncoderCore {
                 encoderOutputBuffers = mEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
+                startMuxer(mEncoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
@@ -173,29 +322,7 @@ public class VideoEncoderCore {
                             " was null");
                 }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) {
-                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                mBufferInfo.presentationTimeUs);
-                    }
-                }
-
+                writeSample(encodedData, mBufferInfo);
                 mEncoder.releaseOutputBuffer(encoderStatus, false);
 
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
@@ -209,4 +336,113 @@ public class VideoEncoderCore {
             }
         }
     }
+
+    /**
+     * Waits for the callback thread to see the end-of-stream buffer.
+     */
+    private void awaitEndOfStream() {
+        try {
+            if (!mEosLatch.await(EOS_TIMEOUT_MSEC, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "timed out waiting for end of stream");
+            }
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "interrupted waiting for end of stream", ie);
+        }
+    }
+
+    /**
+     * Adds the video track to the muxer and starts it, now that we have the format with
+     * the codec-specific data.
+     */
+    private void startMuxer(MediaFormat newFormat) {
+        if (mMuxerStarted) {
+            throw new RuntimeException("format changed twice");
+        }
+        Log.d(TAG, "encoder output format changed: " + newFormat);
+
+        synchronized (mMuxerLock) {
+            // now that we have the Magic Goodies, start the muxer
+            if (mMuxer != null) {
+                mTrackIndex = mMuxer.addTrack(newFormat);
+                mMuxer.start();
+            }
+            mMuxerStarted = true;
+            mOutputFormat = newFormat;
+        }
+    }
+
+    /**
+     * Sends an encoder output buffer to the muxer, unless it's empty or codec config data.
+     */
+    private void writeSample(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer when we got
+            // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            info.size = 0;
+        }
+
+        if (info.size != 0) {
+            if (!mMuxerStarted) {
+                throw new RuntimeException("muxer hasn't started");
+            }
+
+            // adjust the ByteBuffer values to match BufferInfo (not needed?)
+            encodedData.position(info.offset);
+            encodedData.limit(info.offset + info.size);
+
+            MuxerWriter muxer = mMuxer;
+            if (muxer != null && mMuxerNeedsSync &&
+                    (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                mMuxerNeedsSync = false;
+            }
+            if (muxer != null && !mMuxerNeedsSync) {
+                muxer.writeSampleData(mTrackIndex, encodedData, info);
+                mMuxerHasData = true;
+                if (VERBOSE) {
+                    Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" +
+                            info.presentationTimeUs);
+                }
+            }
+            mFramesEncoded++;       // only one thread drains
+        }
+    }
+
+    /**
+     * Receives encoder output in async mode.  Runs on the callback thread.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // not used with Surface input
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            ByteBuffer encodedData = codec.getOutputBuffer(index);
+            if (encodedData == null) {
+                throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+            }
+            writeSample(encodedData, info);
+            codec.releaseOutputBuffer(index, false);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "end of stream reached");
+                mEosLatch.countDown();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "encoder error", e);
+            mEosLatch.countDown();      // don't leave drainEncoder(true) waiting
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            startMuxer(format);
+        }
+    }
 }
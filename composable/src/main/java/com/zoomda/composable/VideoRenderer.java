@@ -191,6 +191,30 @@ public class VideoRenderer {
         rh.sendStopRecording();
     }
 
+    /**
+     * Pauses the recording without finishing the file.  Nothing is recorded until
+     * resumeRecording(), and the pause doesn't show up as a gap in the movie.
+     */
+    public void pauseRecording(){
+        mVideoEncoder.pause();
+    }
+
+    public void resumeRecording(){
+        mVideoEncoder.resume();
+    }
+
+    public boolean isRecordingPaused(){
+        return mVideoEncoder.isPaused();
+    }
+
+    /**
+     * Returns how many frames were left out of the recording because the encoder couldn't
+     * keep up.  The preview is never held back for the encoder; it drops frames instead.
+     */
+    public long getSkippedRecordingFrames(){
+        return mVideoEncoder.getSkippedFrameCount();
+    }
+
     public void addImage(Bitmap bitmap){
         RenderHandler rh = mRenderThread.getHandler();
         rh.sendAddImage(bitmap);
@@ -227,7 +251,6 @@ public class VideoRenderer {
 
         // Orthographic projection matrix.
         private float[] mDisplayProjectionMatrix = new float[16];
-        private float[] mCodecProjectionMatrix = new float[16];
 
         // Receives the output from the camera preview.
         //private VideoInput mCameraVideoInput = new VideoInput();
@@ -270,10 +293,14 @@ public class VideoRenderer {
             // Prepare EGL and open the camera before we start handling messages.
             mEglCore = new EglCore(null, 0);
             openCamera(REQ_CAMERA_WIDTH, REQ_CAMERA_HEIGHT, REQ_CAMERA_FPS);
+            // Keep the encoder ready between clips, so recording starts within a frame.
+            mVideoEncoder.setKeepWarm(true);
 
             Looper.loop();
 
             Log.d(TAG, "looper quit");
+            // No more frames are coming, so finish any recording and drop the warm encoder.
+            mVideoEncoder.shutdown();
             releaseCamera();
             releaseGl();
             mEglCore.release();
@@ -578,8 +605,6 @@ public class VideoRenderer {
 //                    mVideoEncoder.frameAvailable(mSourceList.get(i).surfaceTexture);
 //                }
 
-                Matrix.orthoM(mCodecProjectionMatrix, 0, 0, 640, 0, 360, -1, 1);
-                mVideoEncoder.setDisplayProjectionMatrix(mCodecProjectionMatrix);
                 mVideoEncoder.drawAllSources(mSourceList);
             }
 
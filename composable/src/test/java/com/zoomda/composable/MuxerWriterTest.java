@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomda.composable;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks queueing, copying, and the full-queue policies in MuxerWriter, using a fake muxer
+ * that records what it's given.
+ */
+public class MuxerWriterTest {
+
+    /**
+     * Records the first byte and pts of each sample.  Can be made to stall or fail.
+     */
+    private static class FakeMuxer implements MuxerWriter.Muxer {
+        final List<Long> mPts = new ArrayList<Long>();
+        final List<Byte> mFirstBytes = new ArrayList<Byte>();
+        final CountDownLatch mEntered = new CountDownLatch(1);
+        CountDownLatch mGate;
+        boolean mFail;
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {}
+
+        @Override
+        public void writeSampleData(int track, ByteBuffer buf, MediaCodec.BufferInfo info) {
+            mEntered.countDown();
+            if (mGate != null) {
+                try {
+                    mGate.await();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+            }
+            if (mFail) {
+                throw new IllegalStateException("fake failure");
+            }
+            synchronized (this) {
+                mPts.add(info.presentationTimeUs);
+                mFirstBytes.add(buf.get(info.offset));
+            }
+        }
+
+        @Override
+        public void stop() {}
+
+        @Override
+        public void release() {}
+    }
+
+    @Test
+    public void writesCopiesInOrder() {
+        FakeMuxer muxer = new FakeMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 4, MuxerWriter.FullPolicy.BLOCK);
+        writer.addTrack(new MediaFormat());
+        writer.start();
+
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        for (int i = 0; i < 20; i++) {
+            write(writer, buf, i, i == 0);
+            // Scribble on the caller's buffer; the queued copy mustn't change.
+            buf.put(4, (byte) -1);
+        }
+        writer.stop();
+        writer.release();
+
+        assertEquals(20, muxer.mPts.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (long) muxer.mPts.get(i));
+            assertEquals(i, (byte) muxer.mFirstBytes.get(i));
+        }
+        MuxerWriter.Stats stats = writer.getStats();
+        assertEquals(20, stats.samplesWritten);
+        assertEquals(20 * 10, stats.bytesWritten);
+        assertEquals(0, stats.samplesDropped);
+        assertTrue(stats.peakQueued <= 4);
+    }
+
+    @Test
+    public void dropsUntilSyncFrameWhenFull() throws Exception {
+        FakeMuxer muxer = new FakeMuxer();
+        muxer.mGate = new CountDownLatch(1);
+        MuxerWriter writer = new MuxerWriter(muxer, 2, MuxerWriter.FullPolicy.DROP_UNTIL_SYNC);
+        writer.addTrack(new MediaFormat());
+        writer.start();
+
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        write(writer, buf, 0, true);
+        muxer.mEntered.await();         // writer thread is now stuck holding sample 0
+        write(writer, buf, 1, false);   // takes the last free buffer
+        write(writer, buf, 2, false);   // full: dropped
+        write(writer, buf, 3, true);    // full: dropped
+        write(writer, buf, 4, false);   // still waiting for a sync frame
+        muxer.mGate.countDown();
+        while (writer.getStats().samplesWritten < 2) {
+            Thread.sleep(1);
+        }
+        write(writer, buf, 5, false);   // room now, but not a sync frame
+        write(writer, buf, 6, true);
+        write(writer, buf, 7, false);
+        writer.stop();
+
+        assertEquals(4, muxer.mPts.size());
+        assertEquals(0, (long) muxer.mPts.get(0));
+        assertEquals(1, (long) muxer.mPts.get(1));
+        assertEquals(6, (long) muxer.mPts.get(2));
+        assertEquals(7, (long) muxer.mPts.get(3));
+        assertEquals(4, writer.getStats().samplesDropped);
+    }
+
+    @Test
+    public void writeFailureReachesCaller() throws Exception {
+        FakeMuxer muxer = new FakeMuxer();
+        muxer.mFail = true;
+        MuxerWriter writer = new MuxerWriter(muxer, 2, MuxerWriter.FullPolicy.BLOCK);
+        writer.addTrack(new MediaFormat());
+        writer.start();
+
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        try {
+            // The first write fails on the writer thread; a later call reports it.
+            for (int i = 0; i < 100; i++) {
+                write(writer, buf, i, i == 0);
+                Thread.sleep(1);
+            }
+            fail("write failure was not reported");
+        } catch (RuntimeException re) {
+            assertTrue(re.getCause() instanceof IllegalStateException);
+        }
+        try {
+            writer.stop();
+            fail("stop() did not report the failure");
+        } catch (RuntimeException re) {
+            // expected
+        }
+    }
+
+    /**
+     * Writes a 10-byte sample at offset 4 of "buf", whose first byte is the pts.
+     */
+    private static void write(MuxerWriter writer, ByteBuffer buf, int pts, boolean sync) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 4;
+        info.size = 10;
+        info.presentationTimeUs = pts;
+        info.flags = sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        buf.clear();
+        buf.put(4, (byte) pts);
+        writer.writeSampleData(0, buf, info);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomda.composable;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the timestamp mapping in PauseTimeline.
+ */
+public class PauseTimelineTest {
+    private static final long FRAME = 20000000L;      // 50fps, in nsec
+
+    @Test
+    public void passesTimesThroughWithoutPause() {
+        PauseTimeline timeline = new PauseTimeline();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1000 + i * FRAME, timeline.adjust(1000 + i * FRAME));
+        }
+        assertEquals(0, timeline.getPausedNanos());
+    }
+
+    @Test
+    public void closesGapAfterResume() {
+        PauseTimeline timeline = new PauseTimeline();
+        long t = 0;
+        for (int i = 0; i < 50; i++) {
+            timeline.adjust(t);
+            t += FRAME;
+        }
+        long lastOut = t - FRAME;
+
+        timeline.pause();
+        assertTrue(timeline.isPaused());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(-1, timeline.adjust(t));
+            t += FRAME;
+        }
+        timeline.resume();
+        assertFalse(timeline.isPaused());
+
+        // Picks up one (averaged) frame after the last one before the pause.
+        long out = timeline.adjust(t);
+        assertTrue(Math.abs(out - (lastOut + FRAME)) < FRAME / 10);
+        assertEquals(t - out, timeline.getPausedNanos());
+
+        // Later frames keep their spacing.
+        assertEquals(out + FRAME, timeline.adjust(t + FRAME));
+    }
+
+    @Test
+    public void outputAlwaysIncreases() {
+        PauseTimeline timeline = new PauseTimeline();
+        assertEquals(5 * FRAME, timeline.adjust(5 * FRAME));
+        long out = timeline.adjust(4 * FRAME);       // input went backward
+        assertTrue(out > 5 * FRAME);
+
+        // Resume right away, with frames closer together than the average.
+        timeline.pause();
+        timeline.resume();
+        long next = timeline.adjust(4 * FRAME + 1);
+        assertTrue(next > out);
+    }
+}